@@ -0,0 +1,102 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Compares a JMH JSON result file against the committed baseline and exits with status 1 if
+ * any benchmark got slower than the allowed tolerance.
+ *
+ * Usage: java -cp target/benchmarks.jar benchmarks.BaselineCheck baseline.json results.json [tolerancePercent]
+ */
+public class BaselineCheck {
+
+    private static final class Score {
+        final String mode;
+        final double value;
+        final String unit;
+
+        Score(String mode, double value, String unit) {
+            this.mode = mode;
+            this.value = value;
+            this.unit = unit;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineCheck <baseline.json> <results.json> [tolerancePercent]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+        Map<String, Score> baseline = read(args[0]);
+        Map<String, Score> results = read(args[1]);
+
+        int regressions = 0;
+        for (Map.Entry<String, Score> entry : new TreeMap<>(results).entrySet()) {
+            Score current = entry.getValue();
+            Score previous = baseline.get(entry.getKey());
+            if (previous == null) {
+                System.out.printf("NEW        %-70s %12.3f %s%n", entry.getKey(), current.value, current.unit);
+                continue;
+            }
+            double change = percentWorse(previous, current);
+            String verdict = change > tolerance ? "REGRESSION" : "ok";
+            if (change > tolerance) {
+                regressions++;
+            }
+            System.out.printf("%-10s %-70s %12.3f -> %12.3f %s (%+.1f%% worse)%n",
+                    verdict, entry.getKey(), previous.value, current.value, current.unit, change);
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) regressed by more than " + tolerance + "%");
+            System.exit(1);
+        }
+    }
+
+    // Positive when current is worse; throughput is better when higher, every other mode when lower
+    private static double percentWorse(Score previous, Score current) {
+        if (previous.value == 0) {
+            return 0;
+        }
+        double ratio = "thrpt".equals(current.mode)
+                ? previous.value / current.value
+                : current.value / previous.value;
+        return (ratio - 1) * 100;
+    }
+
+    private static Map<String, Score> read(String file) throws IOException {
+        Map<String, Score> scores = new LinkedHashMap<>();
+        try (Reader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            JsonArray runs = JsonParser.parseReader(reader).getAsJsonArray();
+            for (JsonElement element : runs) {
+                JsonObject run = element.getAsJsonObject();
+                JsonObject metric = run.getAsJsonObject("primaryMetric");
+                scores.put(key(run), new Score(run.get("mode").getAsString(),
+                        metric.get("score").getAsDouble(), metric.get("scoreUnit").getAsString()));
+            }
+        }
+        return scores;
+    }
+
+    // Benchmark name plus its parameters, e.g. server.BroadcastBenchmark.broadcastMessage[clients=1000]
+    private static String key(JsonObject run) {
+        StringBuilder key = new StringBuilder(run.get("benchmark").getAsString());
+        JsonObject params = run.getAsJsonObject("params");
+        if (params != null) {
+            key.append(new TreeMap<>(params.asMap()).toString().replace("{", "[").replace("}", "]").replace("\"", ""));
+        }
+        return key.toString();
+    }
+}
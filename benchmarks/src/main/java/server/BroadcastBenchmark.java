@@ -0,0 +1,54 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Sender-side cost of one chat line fanned out to every other connected client
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dserver.log.file=target/bench_server_log.txt")
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    private ServerHandler sender;
+    // Ten of the connected clients, so room chat should cost the same at any server size
+    private Room team;
+    private OutboundMessage teamMessage;
+
+    @Setup
+    public void setUp() {
+        ChatRoomFixture room = new ChatRoomFixture(clients);
+        sender = room.get("user0");
+        team = room.rooms.open("team");
+        for (int i = 0; i < Math.min(clients, 10); i++) {
+            room.get("user" + i).enter(team);
+        }
+        teamMessage = OutboundMessage.roomChat(0, "user0", "team", "hello team");
+    }
+
+    @Benchmark
+    public void broadcastMessage() {
+        sender.broadcastMessage("user0: hello everyone", "user0");
+    }
+
+    @Benchmark
+    public void broadcastToRoomOfTen() {
+        sender.broadcast(team, teamMessage, "user0");
+    }
+}
@@ -0,0 +1,38 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A registered population of handlers over loopback sockets, built without the O(n^2) join broadcasts
+final class ChatRoomFixture {
+    final Map<String, ServerHandler> clients = new ConcurrentHashMap<>();
+    final RoomRegistry rooms = new RoomRegistry();
+    private int nextPort = 40000;
+
+    ChatRoomFixture(int size) {
+        for (int i = 0; i < size; i++) {
+            add("user" + i);
+        }
+    }
+
+    ServerHandler add(String userID) {
+        ServerHandler handler = newHandler();
+        handler.setUserID(userID);
+        clients.put(userID, handler);
+        // The first one in becomes the lobby coordinator
+        handler.enter(rooms.lobby());
+        return handler;
+    }
+
+    ServerHandler newHandler() {
+        return new ServerHandler(new LoopbackSocket(nextPort++), clients, rooms);
+    }
+
+    ServerHandler get(String userID) {
+        return clients.get(userID);
+    }
+
+    ServerHandler coordinator() {
+        return clients.get(rooms.lobby().coordinatorID());
+    }
+}
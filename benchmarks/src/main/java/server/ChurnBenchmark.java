@@ -0,0 +1,43 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The coordinator leaves (forcing a reassignment) and a new user joins, with everyone else notified each time
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dserver.log.file=target/bench_server_log.txt")
+public class ChurnBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    private ChatRoomFixture room;
+    private long joined;
+
+    @Setup
+    public void setUp() {
+        room = new ChatRoomFixture(clients);
+    }
+
+    @Benchmark
+    public boolean coordinatorLeavesAndUserJoins() {
+        ServerHandler coordinator = room.coordinator();
+        coordinator.cleanUp();
+        return room.newHandler().handleLogin("churn" + joined++);
+    }
+}
@@ -0,0 +1,124 @@
+package server;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reports the heap one idle session costs the NIO server. Starts a server in this JVM and
+ * connects the sessions from a child JVM, which logs them in and then only reads. Once every
+ * session is registered and has nothing left to write, the heap growth since before the first
+ * connection, after a full GC, is divided by the number of sessions. The lobby's join
+ * announcements are part of what each session has been sent, as they would be on a real server.
+ *
+ * Usage: java -cp target/benchmarks.jar server.IdleSessionFootprint [sessions] [resume]
+ * where resume=true has the clients offer session resume, so the server keeps a resume buffer.
+ */
+public class IdleSessionFootprint {
+    private static final String CLIENTS_MODE = "--clients";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && CLIENTS_MODE.equals(args[0])) {
+            runClients(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Boolean.parseBoolean(args[3]));
+            return;
+        }
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        boolean resume = args.length > 1 && Boolean.parseBoolean(args[1]);
+
+        Map<String, ServerHandler> clients = new ConcurrentHashMap<>();
+        NioServer server = new NioServer(0, clients, 2);
+        Thread acceptor = new Thread(() -> {
+            try {
+                server.start();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "footprint-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        while (server.getLocalPort() <= 0) {
+            Thread.sleep(10);
+        }
+        long before = usedHeapAfterGc();
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                IdleSessionFootprint.class.getName(), CLIENTS_MODE, String.valueOf(sessions),
+                String.valueOf(server.getLocalPort()), String.valueOf(resume))
+                .inheritIO()
+                .start();
+        try {
+            long deadline = System.currentTimeMillis() + 120_000;
+            while (!settled(clients, sessions)) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Only " + clients.size() + " of " + sessions + " sessions settled");
+                }
+                Thread.sleep(100);
+            }
+            // Give the writers a moment to hand back anything they hold
+            Thread.sleep(500);
+            long after = usedHeapAfterGc();
+            System.out.printf("%d idle sessions (resume %s): %d bytes of heap retained per session%n",
+                    sessions, resume ? "on" : "off", (after - before) / sessions);
+            // Time to take a heap histogram of the settled server, e.g. with jcmd <pid> GC.class_histogram
+            Thread.sleep(Long.getLong("footprint.holdMillis", 0L));
+        } finally {
+            child.destroy();
+            server.stop();
+        }
+    }
+
+    private static boolean settled(Map<String, ServerHandler> clients, int sessions) {
+        if (clients.size() < sessions) {
+            return false;
+        }
+        for (ServerHandler handler : clients.values()) {
+            if (handler.getOutboundQueueDepth() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+
+    // Child JVM: logs every client in, then reads and discards whatever the server sends until killed
+    private static void runClients(int sessions, int port, boolean resume) throws Exception {
+        Selector selector = Selector.open();
+        for (int i = 0; i < sessions; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            String login = (resume ? "HELLO RESUME\n" : "") + "idle" + i + "\n";
+            channel.write(ByteBuffer.wrap(login.getBytes(StandardCharsets.UTF_8)));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+        ByteBuffer discard = ByteBuffer.allocateDirect(64 * 1024);
+        while (true) {
+            selector.select();
+            for (SelectionKey key : selector.selectedKeys()) {
+                discard.clear();
+                if (((SocketChannel) key.channel()).read(discard) < 0) {
+                    key.cancel();
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+}
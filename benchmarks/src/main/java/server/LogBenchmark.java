@@ -0,0 +1,43 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Handler-side cost of recording one audit log line, with several handlers logging at once
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = {"-Dserver.log.file=target/bench_server_log.txt", "-Dserver.log.policy=BLOCK"})
+public class LogBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    private ServerHandler handler;
+
+    @Setup
+    public void setUp() {
+        ChatRoomFixture room = new ChatRoomFixture(clients);
+        handler = room.get("user" + (clients / 2));
+    }
+
+    @Benchmark
+    public void logMessage() {
+        handler.logMessage("Received from user: hello everyone", true);
+    }
+}
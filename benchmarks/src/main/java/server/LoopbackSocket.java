@@ -0,0 +1,67 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.LongAdder;
+
+// In-memory stand-in for a client connection: reads see end of stream, writes are counted and discarded
+final class LoopbackSocket extends Socket {
+    private static final byte[] NO_INPUT = new byte[0];
+
+    private final int port;
+    private final LongAdder bytesWritten = new LongAdder();
+    private volatile boolean closed;
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) {
+            bytesWritten.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytesWritten.add(len);
+        }
+    };
+
+    LoopbackSocket(int port) {
+        this.port = port;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(NO_INPUT);
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    long bytesWritten() {
+        return bytesWritten.sum();
+    }
+}
@@ -0,0 +1,55 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Routing an @user message to one recipient; should not depend on how many users are online
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dserver.log.file=target/bench_server_log.txt")
+public class PrivateMessageBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    private ServerHandler sender;
+    private String message;
+    // Distinct recipients, so every message takes the keyed lookup rather than the cached route
+    private String[] rotating;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        ChatRoomFixture room = new ChatRoomFixture(clients);
+        sender = room.get("user0");
+        message = "@user" + (clients - 1) + " are you there?";
+        rotating = new String[Math.min(clients - 1, 64)];
+        for (int i = 0; i < rotating.length; i++) {
+            rotating[i] = "@user" + (clients - 1 - i) + " are you there?";
+        }
+    }
+
+    @Benchmark
+    public void handlePrivateMessage() {
+        sender.handlePrivateMessage(message);
+    }
+
+    @Benchmark
+    public void handlePrivateMessageRotatingRecipients() {
+        sender.handlePrivateMessage(rotating[next++ % rotating.length]);
+    }
+}
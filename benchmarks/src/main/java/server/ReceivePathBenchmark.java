@@ -0,0 +1,43 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One received line from parsing to dispatch, with a single recipient so fan-out does not hide it.
+// Run with -prof gc to see the bytes allocated per line (gc.alloc.rate.norm).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dserver.log.file=target/bench_server_log.txt",
+        "-Dserver.limit.chat=0", "-Dserver.limit.private=0", "-Dserver.limit.ip.chat=0", "-Dserver.limit.ip.private=0"})
+public class ReceivePathBenchmark {
+
+    @Param({"hello there", "@user1 are you there?", "PONG", "DENY_DETAILS user1"})
+    public String line;
+
+    private ServerHandler sender;
+
+    @Setup
+    public void setUp() {
+        ChatRoomFixture room = new ChatRoomFixture(2);
+        sender = room.get("user0");
+    }
+
+    @Benchmark
+    public boolean handleCommand() {
+        return sender.handleCommand(line);
+    }
+}
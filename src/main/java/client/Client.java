@@ -1,26 +1,71 @@
 package client;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
+import protocol.BinaryProtocol;
+import protocol.MailboxKey;
+import protocol.SessionResume;
+import protocol.WireReader;
+
 public class Client {
-    private Socket socket;
-    PrintWriter writer;
+    // Clients that own their socket ask for a resume token unless started with -Dclient.resume=false
+    private static final boolean RESUME = Boolean.parseBoolean(System.getProperty("client.resume", "true"));
+    // A lost connection is retried this many times, waiting twice as long after each failure up to the maximum
+    private static final int RECONNECT_ATTEMPTS = Integer.getInteger("client.reconnect.attempts", 10);
+    private static final long RECONNECT_INITIAL_MILLIS = Long.getLong("client.reconnect.initialMillis", 250L);
+    private static final long RECONNECT_MAX_MILLIS = Long.getLong("client.reconnect.maxMillis", 10000L);
+    // Lines that may wait for the server, for instance while reconnecting
+    private static final int OUTBOX_CAPACITY = Integer.getInteger("client.outbox.capacity", 1000);
+    // How long QUIT waits for what was typed before it to go out
+    private static final long QUIT_FLUSH_MILLIS = 1000;
+
+    private volatile Socket socket;
+    volatile PrintWriter writer;
     private BufferedReader reader;
     public GUI gui;
     public String userID;
-    private static boolean isTestingMode;
-    private static UserIDProvider userIDProvider;
+    private boolean isTestingMode;
+    private UserIDProvider userIDProvider;
+    // Headless clients hand every server line to this listener instead of a GUI
+    private MessageListener listener;
+    // Set when the client owns the raw socket streams and may negotiate the binary protocol
+    private volatile WireReader wire;
+    private volatile OutputStream rawOut;
+    private boolean binaryRequested;
+    private boolean resumeRequested;
+    // Token for taking the session back after a dropped connection, if the server handed one out
+    private volatile String resumeToken;
+    // Messages delivered since ID_ACCEPTED, counted the way the server numbers them for a resume
+    private volatile long received;
+    // Keys that open this client's mailboxes on the server, saved to disk only by the interactive client
+    private MailboxKeys mailboxKeys = MailboxKeys.inMemory();
+    private volatile boolean quitting;
+    // True once the server accepted the binary protocol for this connection
+    volatile boolean binary;
+    // Binary protocol: user IDs announced by the server, keyed by the index used in frames
+    private final Map<Integer, String> userNames = new HashMap<>();
+    // Everything sent to the server after the handshake goes through here, off the caller's thread
+    private final Outbox outbox = new Outbox(OUTBOX_CAPACITY);
 
     public interface UserIDProvider {
         String getUserID();
     }
 
+    public interface MessageListener {
+        void onMessage(String message);
+    }
+
     // This class is used to get the userID in a GUI environment
     public static class GUIUserIDProvider implements UserIDProvider {
         @Override
@@ -34,102 +79,403 @@ public class Client {
         this.socket = socket;
         this.writer = writer;
         this.reader = reader;
-        Client.isTestingMode = isTestingMode;
-        Client.userIDProvider = userIDProvider; // Use the provided UserIDProvider
+        this.isTestingMode = isTestingMode;
+        this.userIDProvider = userIDProvider; // Use the provided UserIDProvider
 
         // GUI initialization is now conditional based on isTestingMode
         if (!isTestingMode) {
             this.gui = new GUI(this, isTestingMode);
+            this.mailboxKeys = MailboxKeys.onDisk();
+        }
+        connectToServer();
+    }
+
+    // Reads straight from the socket so the connection can switch to binary frames after the handshake
+    public Client(Socket socket, boolean binaryRequested, boolean isTestingMode, UserIDProvider userIDProvider) throws IOException {
+        this.socket = socket;
+        this.rawOut = socket.getOutputStream();
+        this.writer = new PrintWriter(rawOut, true);
+        this.wire = new WireReader(socket.getInputStream());
+        this.binaryRequested = binaryRequested;
+        this.resumeRequested = RESUME;
+        this.isTestingMode = isTestingMode;
+        this.userIDProvider = userIDProvider;
+
+        if (!isTestingMode) {
+            this.gui = new GUI(this, isTestingMode);
+            this.mailboxKeys = MailboxKeys.onDisk();
         }
         connectToServer();
     }
 
+    /**
+     * Headless client for load tests and scripts: no GUI and no dialogs. A taken ID is retried
+     * with the provider's next answer, PING_REQUEST is answered automatically, and connection
+     * errors are thrown or end the reader instead of exiting the JVM.
+     */
+    public Client(Socket socket, boolean binaryRequested, UserIDProvider userIDProvider, MessageListener listener) throws IOException {
+        this.socket = socket;
+        this.rawOut = socket.getOutputStream();
+        this.writer = new PrintWriter(rawOut, true);
+        this.wire = new WireReader(socket.getInputStream());
+        this.binaryRequested = binaryRequested;
+        this.resumeRequested = RESUME;
+        this.userIDProvider = userIDProvider;
+        this.listener = listener;
+        connectToServer();
+    }
+
     private void connectToServer() {
         if (!isTestingMode) {
             attemptIDVerification();
         }
+        outbox.connected(connection());
         readMessages();
     }
 
     public void sendMessage(String message) {
-        writer.println(message);
+        sendCommand(message);
         if(gui != null) {
             gui.appendMessage("You: " + message + "\n");
         }
     }
 
     public void sendPingToMembers() {
-        writer.println("PING_MEMBERS");
+        sendCommand("PING_MEMBERS");
     }
 
     public void requestDetails() {
-        writer.println("REQUEST_DETAILS");
-        writer.flush();
+        sendCommand("REQUEST_DETAILS");
+    }
+
+    // Queues one protocol line for the writer thread; never blocks, even while the connection is down
+    public void sendCommand(String line) {
+        if (!outbox.offer(line) && gui != null && !quitting) {
+            gui.appendMessage("Not sent, too many messages are waiting for the server: " + line + "\n");
+        }
+    }
+
+    // Writes to the connection as it is now, in whichever format it negotiated; a reconnect hands the outbox a new one
+    private Outbox.Connection connection() {
+        Socket current = socket;
+        OutputStream out = rawOut;
+        PrintWriter lineWriter = writer;
+        boolean frames = binary;
+        if (out == null) {
+            return lines -> {
+                for (String line : lines) {
+                    lineWriter.println(line);
+                }
+                lineWriter.flush();
+                if (lineWriter.checkError()) {
+                    throw new IOException("Could not write to the server");
+                }
+            };
+        }
+        return lines -> {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            for (String line : lines) {
+                batch.write(frames ? BinaryProtocol.encode(BinaryProtocol.OP_LINE, line) : (line + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            try {
+                out.write(batch.toByteArray());
+                out.flush();
+            } catch (IOException e) {
+                // Wakes the reader, which reconnects
+                current.close();
+                throw e;
+            }
+        };
     }
 
     public void quitApplication() {
+        quitting = true;
         try {
             if (writer != null) {
-                writer.println("QUIT");
-                writer.flush();
+                sendCommand("QUIT");
+                // Lets whatever was typed before QUIT go out first
+                outbox.awaitFlushed(QUIT_FLUSH_MILLIS);
             }
+            outbox.close();
             if (socket != null) {
                 socket.close();
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
-            if (!isTestingMode) {
+            if (isInteractive()) {
                 System.exit(0);
             }
         }
     }
+
+    // False for tests and headless clients, which must never show dialogs or exit the JVM
+    private boolean isInteractive() {
+        return !isTestingMode && listener == null;
+    }
     
     void attemptIDVerification() {
+        try {
+            verifyID(null);
+        } catch (IOException e) {
+            if (listener != null) {
+                throw new UncheckedIOException(e);
+            }
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Error reading from server. Please try reconnecting.", "Connection Error", JOptionPane.ERROR_MESSAGE));
+            System.exit(1);
+        }
+    }
+
+    // Logs in on the current connection, trying preferredID first if there is one and then asking the provider
+    private void verifyID(String preferredID) throws IOException {
+        if (binaryRequested) {
+            // Offer the binary protocol once, before the first ID
+            writer.println(BinaryProtocol.OFFER);
+            writer.flush();
+        }
+        if (resumeRequested) {
+            writer.println(SessionResume.OFFER);
+            writer.flush();
+        }
         while (true) {
-            userID = userIDProvider.getUserID();
+            userID = preferredID != null ? preferredID : userIDProvider.getUserID();
+            preferredID = null;
             if (userID == null || userID.isEmpty()) {
+                if (listener != null) {
+                    throw new IllegalStateException("No user ID available");
+                }
                 SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "You must enter a valid ID. Please try again.", "Invalid ID", JOptionPane.ERROR_MESSAGE));
                 continue;
             }
+            String mailboxKey = mailboxKeys.get(serverAddress(), userID);
+            if (mailboxKey != null) {
+                writer.println(MailboxKey.offer(mailboxKey));
+            }
             writer.println(userID);
             writer.flush();
 
-            try {
-                String serverResponse = reader.readLine();
-                if ("ID_TAKEN".equals(serverResponse)) {
-                    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "ID is already taken. Please choose another ID.", "ID Taken", JOptionPane.WARNING_MESSAGE));
-                } else {
-                    break;
+            String serverResponse = wire != null ? wire.readLine() : reader.readLine();
+            if (serverResponse == null) {
+                throw new IOException("Server closed the connection");
+            } else if ("ID_TAKEN".equals(serverResponse)) {
+                if (listener != null) {
+                    continue;
                 }
-            } catch (IOException e) {
-                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Error reading from server. Please try reconnecting.", "Connection Error", JOptionPane.ERROR_MESSAGE));
-                System.exit(1);
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "ID is already taken. Please choose another ID.", "ID Taken", JOptionPane.WARNING_MESSAGE));
+            } else {
+                // A plain ID_ACCEPTED means the server kept this connection on the text protocol
+                binary = BinaryProtocol.ACCEPTED.equals(SessionResume.withoutToken(serverResponse));
+                resumeToken = SessionResume.tokenOf(serverResponse);
+                return;
             }
         }
     }
 
     void readMessages() {
-        new Thread(() -> {
+        Thread readerThread = new Thread(() -> {
             try {
+                if (wire != null) {
+                    // A dropped connection is replaced by a new one, and the outbox waits for it meanwhile
+                    while (true) {
+                        try {
+                            readFromWire();
+                        } catch (IOException e) {
+                            // Same as the end of the stream
+                        }
+                        if (quitting) {
+                            return;
+                        }
+                        outbox.disconnected();
+                        if (!reconnect()) {
+                            throw new IOException("Could not reconnect to the server");
+                        }
+                    }
+                }
                 String fromServer;
                 while ((fromServer = reader.readLine()) != null) {
-                    if(gui != null) {
-                        gui.processServerMessage(fromServer);
-                    }
+                    deliver(fromServer);
                 }
             } catch (IOException e) {
-                if (!isTestingMode) {
+                if (isInteractive()) {
                     SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Lost connection to server.", "Connection Error", JOptionPane.ERROR_MESSAGE));
                     System.exit(1);
                 }
             }
-        }).start();
+        });
+        // Headless clients must not keep the JVM alive once their owner is done
+        readerThread.setDaemon(listener != null);
+        readerThread.start();
+    }
+
+    private void readFromWire() throws IOException {
+        while (true) {
+            String fromServer;
+            if (binary) {
+                if (!wire.readFrame()) {
+                    return;
+                }
+                fromServer = decodeFrame(wire, userNames);
+                if (fromServer == null) {
+                    continue;
+                }
+            } else if ((fromServer = wire.readLine()) == null) {
+                return;
+            }
+            deliver(fromServer);
+        }
+    }
+
+    /**
+     * Reconnects to the same server, waiting twice as long after each failed attempt. The session is
+     * taken back if the server gave out a token and still has the session; otherwise the user logs in
+     * again under the same ID. Either way the outbox then writes whatever could not be sent meanwhile.
+     */
+    private boolean reconnect() {
+        Socket lost = socket;
+        long delay = RECONNECT_INITIAL_MILLIS;
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS && !quitting; attempt++) {
+            try {
+                if (attempt > 0) {
+                    Thread.sleep(delay);
+                    delay = Math.min(delay * 2, RECONNECT_MAX_MILLIS);
+                }
+                if (resumeToken == null || !resumeSession(lost)) {
+                    logInAgain(lost);
+                }
+                outbox.connected(connection());
+                return true;
+            } catch (IOException e) {
+                // The server may not be reachable yet; try again
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Takes the session back, reporting how many messages arrived so the server sends only the rest.
+    // False if the server no longer has the session.
+    private boolean resumeSession(Socket lost) throws IOException {
+        Socket replacement = new Socket(lost.getInetAddress(), lost.getPort());
+        WireReader replacementWire;
+        OutputStream replacementOut;
+        String reply;
+        try {
+            replacementWire = new WireReader(replacement.getInputStream());
+            replacementOut = replacement.getOutputStream();
+            PrintWriter replacementWriter = new PrintWriter(replacementOut, true);
+            if (binaryRequested) {
+                replacementWriter.println(BinaryProtocol.OFFER);
+            }
+            replacementWriter.println(SessionResume.OFFER);
+            replacementWriter.println(SessionResume.request(resumeToken, received, userID));
+            reply = replacementWire.readLine();
+            if (reply == null) {
+                throw new IOException("Server closed the connection");
+            }
+        } catch (IOException e) {
+            replacement.close();
+            throw e;
+        }
+        if (!reply.startsWith("ID_ACCEPTED")) {
+            // The session expired or was ended; there is nothing left to resume
+            replacement.close();
+            resumeToken = null;
+            return false;
+        }
+        binary = BinaryProtocol.ACCEPTED.equals(SessionResume.withoutToken(reply));
+        resumeToken = SessionResume.tokenOf(reply);
+        use(replacement, replacementWire, replacementOut);
+        return true;
+    }
+
+    // Logs in on a new connection as a new session, under the same ID if it is free
+    private void logInAgain(Socket lost) throws IOException {
+        Socket replacement = new Socket(lost.getInetAddress(), lost.getPort());
+        try {
+            use(replacement, new WireReader(replacement.getInputStream()), replacement.getOutputStream());
+            verifyID(userID);
+        } catch (IOException | RuntimeException e) {
+            replacement.close();
+            throw e;
+        }
+        received = 0;
+        userNames.clear();
+        if (gui != null) {
+            gui.appendMessage("Reconnected to the server as a new session; rooms you had joined must be joined again.\n");
+        }
+    }
+
+    // Which server the mailbox keys belong to
+    private String serverAddress() {
+        Socket current = socket;
+        return current == null || current.getInetAddress() == null ? ""
+                : current.getInetAddress().getHostAddress() + ":" + current.getPort();
+    }
+
+    private void use(Socket replacement, WireReader replacementWire, OutputStream replacementOut) {
+        wire = replacementWire;
+        rawOut = replacementOut;
+        writer = new PrintWriter(replacementOut, true);
+        socket = replacement;
+    }
+
+    private void deliver(String fromServer) {
+        received++;
+        if ("PING".equals(fromServer)) {
+            // Server heartbeat: answered here and never shown
+            sendCommand("PONG");
+            return;
+        }
+        String mailboxKey = MailboxKey.issuedKey(fromServer);
+        if (mailboxKey != null) {
+            // Handed out on this user's first login here; kept for the next one and never shown
+            mailboxKeys.put(serverAddress(), userID, mailboxKey);
+            return;
+        }
+        if (listener != null) {
+            if ("PING_REQUEST".equals(fromServer)) {
+                sendCommand("PONG");
+            }
+            listener.onMessage(fromServer);
+        } else if (gui != null) {
+            gui.processServerMessage(fromServer);
+        }
+    }
+
+    // Turns a frame back into the line the text protocol would have carried; null for frames with nothing to show
+    static String decodeFrame(WireReader wire, Map<Integer, String> userNames) throws IOException {
+        switch (wire.opcode()) {
+            case BinaryProtocol.OP_USER:
+                userNames.put(wire.index(), wire.text());
+                return null;
+            case BinaryProtocol.OP_CHAT:
+                return userNames.getOrDefault(wire.index(), "?") + ": " + wire.text();
+            case BinaryProtocol.OP_PRIVATE:
+                return userNames.getOrDefault(wire.index(), "?") + "(private): " + wire.text();
+            case BinaryProtocol.OP_ROOM_CHAT: {
+                String payload = wire.text();
+                int space = payload.indexOf(' ');
+                if (space < 0) {
+                    throw new IOException("Room chat frame without a room");
+                }
+                return "#" + payload.substring(0, space) + " " + userNames.getOrDefault(wire.index(), "?") + ": " + payload.substring(space + 1);
+            }
+            case BinaryProtocol.OP_SYSTEM:
+                return "SYSTEM: " + wire.text();
+            case BinaryProtocol.OP_LINE:
+                return wire.text();
+            default:
+                // Opcodes from a newer server are skipped
+                return null;
+        }
     }
 
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
-            userIDProvider = new GUIUserIDProvider(); // Use GUI to get the user ID
             Client client = createWithRealConnection();
             if (client == null) {
                 System.exit(1);
@@ -142,9 +488,9 @@ public class Client {
             String hostname = JOptionPane.showInputDialog(null, "Enter server IP address:", "localhost");
             int port = Integer.parseInt(JOptionPane.showInputDialog(null, "Enter server port:", "1234"));
             Socket socket = new Socket(hostname, port);
-            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            return new Client(socket, writer, reader, false, userIDProvider);
+            // -Dclient.protocol=binary offers the compact framing; the server may still answer with text
+            boolean binary = "binary".equalsIgnoreCase(System.getProperty("client.protocol"));
+            return new Client(socket, binary, false, new GUIUserIDProvider()); // Use GUI to get the user ID
         } catch (IOException e) {
             JOptionPane.showMessageDialog(null, "Unable to connect to server. Please try again later.", "Connection Error", JOptionPane.ERROR_MESSAGE);
             System.exit(1);
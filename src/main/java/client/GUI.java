@@ -12,6 +12,9 @@ public class GUI {
     public boolean isCoordinator = false;
     public boolean isMember = false;
     private boolean isTestingMode;
+    // Lines waiting for the message area, and the timer that writes them there at most once a frame
+    private final Scrollback scrollback = new Scrollback(Scrollback.LINES);
+    private Timer flushTimer;
     public GUI(Client client) {
         this.client = client;
         createAndShowGUI();
@@ -33,6 +36,8 @@ public class GUI {
         pingMembersButton = new JButton("Ping Members");
 
         messageArea.setEditable(false);
+        flushTimer = new Timer(Scrollback.FRAME_MILLIS, e -> scrollback.flushTo(messageArea));
+        flushTimer.setRepeats(false);
 
         frame.setLayout(new BorderLayout());
         frame.add(new JScrollPane(messageArea), BorderLayout.CENTER);
@@ -61,23 +66,34 @@ public class GUI {
         pingMembersButton.setVisible(false);
     }
 
+    // Called from any thread; the line shows up with the rest of its frame
     public void appendMessage(String message) {
-        SwingUtilities.invokeLater(() -> messageArea.append(message));
+        if (flushTimer != null && scrollback.add(message)) {
+            flushTimer.restart();
+        }
     }
 
+    // Runs on the reader thread. Only lines that change the window or need an answer go to the event
+    // dispatch thread one by one; chat lines are gathered and drawn a frame at a time.
     public void processServerMessage(String message) {
-        SwingUtilities.invokeLater(() -> {
-            if (message.equals("you are the coordinator.") || message.equals("You are now the coordinator.")) {
+        // Sent at login to the first client; later the server announces a new coordinator once, to everybody,
+        // and it is this client if the ID is its own. No user may take the ID SYSTEM, so chat never matches.
+        if (message.equals("you are the coordinator.") || message.equals("SYSTEM: " + client.userID + " is now the coordinator.")) {
+            SwingUtilities.invokeLater(() -> {
                 isCoordinator = true;
                 isMember = false;
                 pingMembersButton.setVisible(true);
                 requestDetailsButton.setVisible(false);
-            } else if (message.startsWith("welcome ")) {
+            });
+        } else if (message.startsWith("welcome ")) {
+            SwingUtilities.invokeLater(() -> {
                 isMember = true;
                 isCoordinator = false;
                 requestDetailsButton.setVisible(true);
                 pingMembersButton.setVisible(false); // Hide as this is for coordinators only
-            } else if ("PING_REQUEST".equals(message)) {
+            });
+        } else if ("PING_REQUEST".equals(message)) {
+            SwingUtilities.invokeLater(() -> {
                 Timer timer = new Timer(20000, (e) -> {
                     client.quitApplication();
                 });
@@ -88,28 +104,29 @@ public class GUI {
                 if (response == JOptionPane.YES_OPTION) {
                     // If the user responds within 20 seconds, stop the timer
                     timer.stop();
-                    client.writer.println("PONG");
+                    client.sendCommand("PONG");
                 } else {
                     client.quitApplication(); // If the user clicks no, quit immediately
                 }
-            } else if (message.startsWith("DETAILS_REQUEST_FROM ")) {
-                String requestingUser = message.substring("DETAILS_REQUEST_FROM ".length());
+            });
+        } else if (message.startsWith("DETAILS_REQUEST_FROM ")) {
+            String requestingUser = message.substring("DETAILS_REQUEST_FROM ".length());
+            SwingUtilities.invokeLater(() -> {
                 int approve = JOptionPane.showConfirmDialog(frame, "Approve details request from " + requestingUser + "?", "Approve Request", JOptionPane.YES_NO_OPTION);
                 if (approve == JOptionPane.YES_OPTION) {
-                    client.writer.println("APPROVE_DETAILS " + requestingUser);
+                    client.sendCommand("APPROVE_DETAILS " + requestingUser);
                 } else {
-                    client.writer.println("DENY_DETAILS " + requestingUser);
+                    client.sendCommand("DENY_DETAILS " + requestingUser);
                 }
-            } else if (message.startsWith("APPROVE_DETAILS") || message.startsWith("DETAILS_DENIED")) {
-                JOptionPane.showMessageDialog(frame, message, "Response", JOptionPane.INFORMATION_MESSAGE);
-            
-            }else if (isTestingMode) {
-                // Handle message without GUI interaction, or simply print to console for testing
-                System.out.println("Processing message in testing mode: " + message);
-            } else {
-                appendMessage(message + "\n");
-            }
-        });
+            });
+        } else if (message.startsWith("APPROVE_DETAILS") || message.startsWith("DETAILS_DENIED")) {
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame, message, "Response", JOptionPane.INFORMATION_MESSAGE));
+        } else if (isTestingMode) {
+            // Handle message without GUI interaction, or simply print to console for testing
+            System.out.println("Processing message in testing mode: " + message);
+        } else {
+            appendMessage(message + "\n");
+        }
     }
 
 }
@@ -0,0 +1,273 @@
+package client;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import metrics.Histogram;
+
+/**
+ * Headless load driver: opens many {@link Client} connections against a running server, sends
+ * broadcast and private traffic at a fixed rate and measures end-to-end latency from the send
+ * timestamp embedded in every message. The timestamp is taken as the message is queued in the
+ * sending client's outbox, so the latency includes the wait for that client's writer thread.
+ * Sender and receivers share this JVM, so System.nanoTime is a valid clock on both ends.
+ *
+ * Configured with system properties, for example:
+ * java -Dload.clients=1000 -Dload.rate=5000 -cp target/classes client.LoadGenerator
+ * A comma-separated load.port spreads the clients over the nodes of a local cluster.
+ *
+ * All clients connect from this host, so the server's per-address limits apply to the whole
+ * load: at the defaults (-Dserver.limit.ip.chat and -Dserver.limit.ip.private, 200/400 each) a
+ * rate much above 400 messages a second is mostly shed. Start the server with those set to 0,
+ * and the per-user limits raised if load.rate/load.clients exceeds 20, to measure the server
+ * rather than its limits. Sent messages no client received are reported as undelivered.
+ */
+public class LoadGenerator {
+    static final String MARKER = "LOAD ";
+    static final String THROTTLED = "SYSTEM: You are sending too fast; messages are being dropped.";
+
+    private final String host;
+    private final int[] ports;
+    private final int clientCount;
+    private final int messagesPerSecond;
+    private final double privateRatio;
+    private final long durationMillis;
+    private final boolean binary;
+    private final String idPrefix;
+
+    private final List<Client> clients = Collections.synchronizedList(new ArrayList<>());
+    private final Histogram latency = new Histogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final AtomicInteger connectFailures = new AtomicInteger();
+    private final LongAdder throttleNotices = new LongAdder();
+    // One bit per message sent, by sequence number, set once any client has received it
+    private final AtomicLongArray delivered;
+
+    public LoadGenerator(String host, int port, int clientCount, int messagesPerSecond, double privateRatio,
+                         long durationMillis, boolean binary) {
+        this(host, new int[] {port}, clientCount, messagesPerSecond, privateRatio, durationMillis, binary);
+    }
+
+    // Client i connects to ports[i % ports.length]
+    public LoadGenerator(String host, int[] ports, int clientCount, int messagesPerSecond, double privateRatio,
+                         long durationMillis, boolean binary) {
+        this.host = host;
+        this.ports = ports.clone();
+        this.clientCount = clientCount;
+        this.messagesPerSecond = messagesPerSecond;
+        this.privateRatio = privateRatio;
+        this.durationMillis = durationMillis;
+        this.binary = binary;
+        // Distinct per run so a second generator against the same server does not collide
+        // Letters and digits only, since the server ends an @username at the first other character
+        this.idPrefix = "load" + Long.toString(System.nanoTime() % 1_000_000, 36) + "x";
+        // The fixed schedule never sends more than this
+        long most = (long) Math.max(1, messagesPerSecond) * durationMillis / 1000 + 1;
+        this.delivered = new AtomicLongArray((int) (most / 64) + 1);
+    }
+
+    public static class Report {
+        public int connected;
+        public int connectFailures;
+        public long connectMillis;
+        public long sent;
+        public long received;
+        // Messages no client received, most likely shed by the server's rate limits
+        public long undelivered;
+        // How often the server said a client was sending too fast; it says so once per episode, not per line
+        public long throttleNotices;
+        public long sendMillis;
+        // Nanoseconds from send to delivery, one sample per recipient
+        public Histogram latency;
+
+        public double connectsPerSecond() {
+            return connectMillis == 0 ? connected : connected * 1000.0 / connectMillis;
+        }
+
+        public double sentPerSecond() {
+            return sendMillis == 0 ? sent : sent * 1000.0 / sendMillis;
+        }
+
+        public double receivedPerSecond() {
+            return sendMillis == 0 ? received : received * 1000.0 / sendMillis;
+        }
+
+        public void print(PrintStream out) {
+            out.printf("connected %d clients (%d failed) in %d ms: %.0f connects/sec%n",
+                    connected, connectFailures, connectMillis, connectsPerSecond());
+            out.printf("sent %d messages in %d ms: %.0f msgs/sec, %d deliveries: %.0f msgs/sec%n",
+                    sent, sendMillis, sentPerSecond(), received, receivedPerSecond());
+            if (undelivered > 0 || throttleNotices > 0) {
+                out.printf("%d messages never delivered, %d throttle notices: raise the server's rate limits (-Dserver.limit.*)%n",
+                        undelivered, throttleNotices);
+            }
+            out.println("end-to-end latency:");
+            latency.printPercentiles(out, "us", 1000.0);
+        }
+    }
+
+    public Report run() throws InterruptedException {
+        Report report = new Report();
+        long start = System.nanoTime();
+        connectAll();
+        report.connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        report.connected = clients.size();
+        report.connectFailures = connectFailures.get();
+
+        start = System.nanoTime();
+        if (!clients.isEmpty()) {
+            sendAtRate();
+        }
+        report.sendMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        awaitDeliveries();
+        report.sent = sent.sum();
+        report.received = received.sum();
+        report.undelivered = report.sent - deliveredCount();
+        report.throttleNotices = throttleNotices.sum();
+        report.latency = latency;
+        quitAll();
+        return report;
+    }
+
+    private void connectAll() throws InterruptedException {
+        ExecutorService connectors = Executors.newFixedThreadPool(Math.min(clientCount, 32));
+        for (int i = 0; i < clientCount; i++) {
+            String userID = idPrefix + i;
+            int port = ports[i % ports.length];
+            connectors.execute(() -> connect(userID, port));
+        }
+        connectors.shutdown();
+        connectors.awaitTermination(5, TimeUnit.MINUTES);
+    }
+
+    private void connect(String userID, int port) {
+        AtomicInteger attempt = new AtomicInteger();
+        // A taken ID gets a numeric suffix and is retried
+        Client.UserIDProvider ids = () -> attempt.getAndIncrement() == 0 ? userID : userID + "r" + attempt.get();
+        try {
+            Socket socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            clients.add(new Client(socket, binary, ids, this::onMessage));
+        } catch (IOException | RuntimeException e) {
+            connectFailures.incrementAndGet();
+        }
+    }
+
+    // Lines look like "<sender>: LOAD <nanos> <sequence>" or "<sender>(private): LOAD <nanos> <sequence>"
+    private void onMessage(String message) {
+        int marker = message.indexOf(": " + MARKER);
+        if (marker < 0) {
+            if (THROTTLED.equals(message)) {
+                throttleNotices.increment();
+            }
+            return;
+        }
+        long now = System.nanoTime();
+        try {
+            String[] fields = message.substring(marker + 2 + MARKER.length()).trim().split(" ");
+            long sentAt = Long.parseLong(fields[0]);
+            int sequence = Integer.parseInt(fields[1]);
+            latency.record(now - sentAt);
+            received.increment();
+            long bit = 1L << (sequence & 63);
+            if ((delivered.get(sequence >>> 6) & bit) == 0) {
+                delivered.getAndAccumulate(sequence >>> 6, bit, (bits, mark) -> bits | mark);
+            }
+        } catch (RuntimeException e) {
+            // Not one of ours
+        }
+    }
+
+    private long deliveredCount() {
+        long count = 0;
+        for (int i = 0; i < delivered.length(); i++) {
+            count += Long.bitCount(delivered.get(i));
+        }
+        return count;
+    }
+
+    private void sendAtRate() {
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, messagesPerSecond);
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long next = System.nanoTime();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int sequence = 0;
+        while (next < end) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Client sender = clients.get(random.nextInt(clients.size()));
+            // Stamped when handed to the client's outbox, so the time it waits for the writer thread counts as latency
+            if (clients.size() > 1 && random.nextDouble() < privateRatio) {
+                Client target = clients.get(random.nextInt(clients.size()));
+                if (target == sender) {
+                    continue;
+                }
+                sender.sendCommand("@" + target.userID + " " + MARKER + System.nanoTime() + " " + sequence);
+            } else {
+                sender.sendCommand(MARKER + System.nanoTime() + " " + sequence);
+            }
+            sent.increment();
+            sequence++;
+            // Fixed schedule, so a slow write is followed by a catch-up burst rather than lost load
+            next += interval;
+        }
+    }
+
+    // Waits until deliveries stop arriving for a while, or at most ten seconds
+    private void awaitDeliveries() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        long last = -1;
+        while (System.currentTimeMillis() < deadline) {
+            long now = received.sum();
+            if (now == last) {
+                return;
+            }
+            last = now;
+            Thread.sleep(500);
+        }
+    }
+
+    private void quitAll() {
+        synchronized (clients) {
+            for (Client client : clients) {
+                client.quitApplication();
+            }
+        }
+    }
+
+    private static int[] parsePorts(String ports) {
+        String[] parts = ports.split(",");
+        int[] parsed = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            parsed[i] = Integer.parseInt(parts[i].trim());
+        }
+        return parsed;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator(
+                System.getProperty("load.host", "localhost"),
+                parsePorts(System.getProperty("load.port", "1234")),
+                Integer.getInteger("load.clients", 100),
+                Integer.getInteger("load.rate", 1000),
+                Double.parseDouble(System.getProperty("load.privateRatio", "0.5")),
+                Long.getLong("load.durationMillis", 10_000L),
+                "binary".equalsIgnoreCase(System.getProperty("load.protocol")));
+        generator.run().print(System.out);
+    }
+}
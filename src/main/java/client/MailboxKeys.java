@@ -0,0 +1,80 @@
+package client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Properties;
+
+/**
+ * Mailbox keys handed out by servers, one per server address and user ID. A client presents the
+ * key when it logs in again so the server sends it the private messages kept while it was away.
+ * The interactive client keeps them in a properties file readable only by its owner
+ * (-Dclient.mailbox.keys, ~/.chat-mailbox-keys by default), so they outlive the process;
+ * headless clients only remember them for as long as the process runs.
+ */
+final class MailboxKeys {
+    private static final MailboxKeys IN_MEMORY = new MailboxKeys(null);
+    private static volatile MailboxKeys onDisk;
+
+    // Null when the keys are not saved
+    private final Path file;
+    private final Properties keys = new Properties();
+
+    MailboxKeys(Path file) {
+        this.file = file;
+        if (file != null && Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                keys.load(in);
+            } catch (IOException e) {
+                System.err.println("Could not read mailbox keys from " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    static MailboxKeys inMemory() {
+        return IN_MEMORY;
+    }
+
+    static MailboxKeys onDisk() {
+        if (onDisk == null) {
+            synchronized (MailboxKeys.class) {
+                if (onDisk == null) {
+                    onDisk = new MailboxKeys(Paths.get(System.getProperty("client.mailbox.keys",
+                            Paths.get(System.getProperty("user.home"), ".chat-mailbox-keys").toString())));
+                }
+            }
+        }
+        return onDisk;
+    }
+
+    synchronized String get(String server, String userID) {
+        return keys.getProperty(server + " " + userID);
+    }
+
+    synchronized void put(String server, String userID, String key) {
+        keys.setProperty(server + " " + userID, key);
+        if (file == null) {
+            return;
+        }
+        try {
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.deleteIfExists(temporary);
+            try {
+                Files.createFile(temporary, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system; the file gets the default permissions
+            }
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                keys.store(out, "Chat mailbox keys");
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not save the mailbox key to " + file + ": " + e.getMessage());
+        }
+    }
+}
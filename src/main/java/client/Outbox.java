@@ -0,0 +1,141 @@
+package client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Lines on their way to the server, written by a thread of their own so that a stalled
+ * connection never blocks the window. Whatever has piled up since the last write goes out in
+ * one write. When a write fails, its lines are kept, and the writer waits until the reader
+ * thread has reconnected and handed over the new connection, then writes them again before
+ * anything newer.
+ */
+final class Outbox {
+    // Most lines gathered into one write
+    private static final int BATCH_LINES = 256;
+
+    /** Writes lines to one connection; a failure means that connection is gone. */
+    interface Connection {
+        void write(List<String> lines) throws IOException;
+    }
+
+    private final BlockingQueue<String> queue;
+    private final Object lock = new Object();
+    // Null while disconnected (guarded by lock)
+    private Connection connection;
+    // Lines accepted and lines written so far, for waiting until everything is out (guarded by lock)
+    private long offered;
+    private long written;
+    private volatile boolean closed;
+    private Thread thread;
+
+    Outbox(int capacity) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    // Any thread; false if the queue is full, which only happens after a long outage
+    boolean offer(String line) {
+        synchronized (lock) {
+            if (closed || !queue.offer(line)) {
+                return false;
+            }
+            offered++;
+            return true;
+        }
+    }
+
+    // Hands over a freshly opened (or reopened) connection and starts the writer the first time
+    void connected(Connection replacement) {
+        synchronized (lock) {
+            connection = replacement;
+            lock.notifyAll();
+            if (thread == null && !closed) {
+                thread = new Thread(this::run, "client-writer");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    // Called by the reader when it sees the connection drop; the writer waits for the next one
+    void disconnected() {
+        synchronized (lock) {
+            connection = null;
+        }
+    }
+
+    // Waits until every line offered so far was written, or the time is up; true if it was
+    boolean awaitFlushed(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        synchronized (lock) {
+            long target = offered;
+            while (written < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                lock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    int pending() {
+        return queue.size();
+    }
+
+    void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        Thread writer = thread;
+        if (writer != null) {
+            writer.interrupt();
+        }
+    }
+
+    private void run() {
+        List<String> batch = new ArrayList<>();
+        while (!closed) {
+            Connection current = null;
+            try {
+                if (batch.isEmpty()) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, BATCH_LINES - 1);
+                }
+                current = awaitConnection();
+                current.write(batch);
+                synchronized (lock) {
+                    written += batch.size();
+                    lock.notifyAll();
+                }
+                batch.clear();
+            } catch (IOException e) {
+                // Kept for the next connection; a newer one may already have been handed over
+                synchronized (lock) {
+                    if (connection == current) {
+                        connection = null;
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private Connection awaitConnection() throws InterruptedException {
+        synchronized (lock) {
+            while (connection == null) {
+                if (closed) {
+                    throw new InterruptedException();
+                }
+                lock.wait();
+            }
+            return connection;
+        }
+    }
+}
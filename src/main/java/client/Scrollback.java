@@ -0,0 +1,74 @@
+package client;
+
+import javax.swing.JTextArea;
+import javax.swing.text.BadLocationException;
+
+/**
+ * The chat window's lines on their way to the screen. The reader thread adds lines to a ring
+ * that holds at most as many lines as the window keeps, so a window that falls behind loses the
+ * oldest ones, which it would have trimmed anyway, rather than growing. The event dispatch
+ * thread takes everything waiting at most once a frame, appends it in one edit and removes lines
+ * from the top past the capacity.
+ */
+final class Scrollback {
+    // Lines the window keeps, and how long lines wait so that they reach the screen together
+    static final int LINES = Integer.getInteger("client.scrollback.lines", 5000);
+    static final int FRAME_MILLIS = Integer.getInteger("client.render.frameMillis", 33);
+
+    private final String[] pending;
+    private int first;
+    private int count;
+    // Set from the first line after a flush until the next flush
+    private boolean flushScheduled;
+
+    Scrollback(int capacity) {
+        this.pending = new String[Math.max(1, capacity)];
+    }
+
+    // Any thread. Returns true if this is the first line since the last flush, so one is due.
+    synchronized boolean add(String text) {
+        if (count == pending.length) {
+            pending[first] = null;
+            first = (first + 1) % pending.length;
+            count--;
+        }
+        pending[(first + count) % pending.length] = text;
+        count++;
+        if (flushScheduled) {
+            return false;
+        }
+        flushScheduled = true;
+        return true;
+    }
+
+    synchronized int pendingCount() {
+        return count;
+    }
+
+    // Event dispatch thread. Every line added ends with a newline, so the area's last line is empty.
+    void flushTo(JTextArea area) {
+        StringBuilder text = new StringBuilder();
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                int index = (first + i) % pending.length;
+                text.append(pending[index]);
+                pending[index] = null;
+            }
+            first = 0;
+            count = 0;
+            flushScheduled = false;
+        }
+        if (text.length() == 0) {
+            return;
+        }
+        area.append(text.toString());
+        int excess = area.getLineCount() - 1 - pending.length;
+        if (excess > 0) {
+            try {
+                area.replaceRange("", 0, area.getLineEndOffset(excess - 1));
+            } catch (BadLocationException e) {
+                area.setText("");
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package metrics;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe log-linear histogram in the style of HdrHistogram, shared by the server metrics and
+ * the load generator. Values up to 128 are counted exactly; above that each power of two is split
+ * into 64 buckets, so any recorded value is reported within 1/64 (about 1.6%) of its true size
+ * while the whole range of a long fits in under 4,000 counters. Buckets end on powers of two, so
+ * counts at power-of-two bounds, as a Prometheus export needs, are exact. Recording is a LongAdder
+ * increment and no search; a bucket's adder is only created the first time a value lands in it.
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    // Exact buckets 0..128, then 64 per power of two up to the largest long
+    private static final int BUCKETS = SUB_BUCKETS + 1 + (64 - SUB_BUCKET_BITS - 1) * HALF_SUB_BUCKETS;
+
+    private final AtomicReferenceArray<LongAdder> counts = new AtomicReferenceArray<>(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int index = indexOf(value);
+        LongAdder count = counts.get(index);
+        if (count == null) {
+            counts.compareAndSet(index, null, new LongAdder());
+            count = counts.get(index);
+        }
+        count.increment();
+        total.increment();
+        sum.add(value);
+        // Only a new maximum writes the shared field
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    // Recorded values no larger than the given one; exact when it ends a bucket, as powers of two do
+    public long countAtOrBelow(long value) {
+        if (value < 0) {
+            return 0;
+        }
+        int last = indexOf(value);
+        if (highestEquivalentValue(last) > value) {
+            last--;
+        }
+        long seen = 0;
+        for (int i = 0; i <= last; i++) {
+            seen += bucketCount(i);
+        }
+        return seen;
+    }
+
+    // Highest value in the bucket that holds the given percentile (0-100), or 0 when empty
+    public long valueAtPercentile(double percentile) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += bucketCount(i);
+            if (seen >= rank) {
+                return Math.min(highestEquivalentValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // One line per standard percentile, values divided by scale (e.g. 1000.0 for ns -> us)
+    public void printPercentiles(PrintStream out, String unit, double scale) {
+        out.printf("  count %d, mean %.1f %s, max %.1f %s%n", count(), mean() / scale, unit, max() / scale, unit);
+        for (double percentile : new double[] {50, 90, 99, 99.9, 99.99, 100}) {
+            out.printf("  p%-6s %12.1f %s%n", format(percentile), valueAtPercentile(percentile) / scale, unit);
+        }
+    }
+
+    private long bucketCount(int index) {
+        LongAdder count = counts.get(index);
+        return count == null ? 0 : count.sum();
+    }
+
+    private static String format(double percentile) {
+        return percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+    }
+
+    static int indexOf(long value) {
+        if (value <= SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Buckets above 128 run from just over one multiple of their width up to the next, so
+        // shift value - 1 into [64, 128) within its power of two
+        long below = value - 1;
+        int shift = 64 - Long.numberOfLeadingZeros(below) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + 1 + (shift - 1) * HALF_SUB_BUCKETS + (int) (below >>> shift) - HALF_SUB_BUCKETS;
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index <= SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS - 1) / HALF_SUB_BUCKETS + 1;
+        long subBucket = (index - SUB_BUCKETS - 1) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        long highest = (subBucket + 1) << shift;
+        // The top bucket would end at 2^63
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+}
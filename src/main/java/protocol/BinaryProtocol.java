@@ -0,0 +1,160 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact framing shared by client and server. A frame is a varint length followed by that
+ * many bytes: one opcode byte and the payload. Chat, private and user-binding frames start
+ * their payload with a varint user index so a sender's name only crosses the wire once.
+ *
+ * The protocol is opt-in: a client sends {@link #OFFER} before its ID, and the server switches
+ * the session to frames only if it answers {@link #ACCEPTED} instead of a plain ID_ACCEPTED.
+ */
+public final class BinaryProtocol {
+    public static final int VERSION = 1;
+    public static final String HELLO_PREFIX = "HELLO ";
+    public static final String OFFER = HELLO_PREFIX + "BIN " + VERSION;
+    public static final String ACCEPTED = "ID_ACCEPTED BIN " + VERSION;
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    // Any protocol line or command, as UTF-8 text
+    public static final byte OP_LINE = 1;
+    // varint sender index, then the chat text
+    public static final byte OP_CHAT = 2;
+    // varint sender index, then the private message text
+    public static final byte OP_PRIVATE = 3;
+    // A server notice, shown with a "SYSTEM: " prefix
+    public static final byte OP_SYSTEM = 4;
+    // varint user index, then the user ID it stands for in later frames
+    public static final byte OP_USER = 5;
+    // varint sender index, then the room name, a space and the chat text
+    public static final byte OP_ROOM_CHAT = 6;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private BinaryProtocol() {
+    }
+
+    // Highest binary version offered by a HELLO line, or 0 if it does not offer one
+    public static int offeredVersion(String line) {
+        String prefix = HELLO_PREFIX + "BIN ";
+        if (line == null || !line.startsWith(prefix)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(line.substring(prefix.length()).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // The command lines in an OP_LINE frame from a client, split at each LF with a CR before it dropped,
+    // the way WireReader.readLine splits a text stream, so a frame never carries a line break on to text clients
+    public static List<String> lines(String text) {
+        List<String> lines = new ArrayList<>(1);
+        int start = 0;
+        int newline;
+        while ((newline = text.indexOf('\n', start)) >= 0) {
+            int end = newline > start && text.charAt(newline - 1) == '\r' ? newline - 1 : newline;
+            lines.add(text.substring(start, end));
+            start = newline + 1;
+        }
+        if (start < text.length() || lines.isEmpty()) {
+            lines.add(text.substring(start));
+        }
+        return lines;
+    }
+
+    public static byte[] encode(byte opcode, String text) {
+        return encode(opcode, -1, text);
+    }
+
+    // Builds a complete frame; index is left out when negative
+    public static byte[] encode(byte opcode, int index, String text) {
+        byte[] body = text == null ? EMPTY : text.getBytes(StandardCharsets.UTF_8);
+        int payload = 1 + (index >= 0 ? varintSize(index) : 0) + body.length;
+        byte[] frame = new byte[varintSize(payload) + payload];
+        int position = writeVarint(frame, 0, payload);
+        frame[position++] = opcode;
+        if (index >= 0) {
+            position = writeVarint(frame, position, index);
+        }
+        System.arraycopy(body, 0, frame, position, body.length);
+        return frame;
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // Returns the position after the written varint
+    public static int writeVarint(byte[] target, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            target[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position;
+    }
+
+    // Reads a varint without checking bounds; callers only use it inside a complete frame
+    public static int readVarint(byte[] data, int position) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = data[position++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in frame");
+    }
+
+    /**
+     * Size of the frame starting at position, header included, or -1 if the buffer does not
+     * hold all of it yet. Rejects empty or oversized frames.
+     */
+    public static int frameSize(byte[] data, int position, int limit) throws IOException {
+        int length = 0;
+        int cursor = position;
+        for (int shift = 0; ; shift += 7) {
+            if (cursor >= limit) {
+                return -1;
+            }
+            if (shift > 28) {
+                throw new IOException("Malformed frame length");
+            }
+            byte b = data[cursor++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        int total = (cursor - position) + length;
+        return limit - position >= total ? total : -1;
+    }
+
+    // Offset of the opcode byte within a complete frame starting at position
+    public static int headerSize(byte[] data, int position) {
+        int cursor = position;
+        while ((data[cursor] & 0x80) != 0) {
+            cursor++;
+        }
+        return cursor + 1 - position;
+    }
+
+    public static boolean hasIndex(byte opcode) {
+        return opcode == OP_CHAT || opcode == OP_PRIVATE || opcode == OP_USER || opcode == OP_ROOM_CHAT;
+    }
+}
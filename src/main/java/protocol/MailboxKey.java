@@ -0,0 +1,52 @@
+package protocol;
+
+/**
+ * Lines proving that a client may read the private messages kept for its user while offline.
+ * The first time a user ID logs in, the server sends "MAILBOX_KEY key" once, after the welcome;
+ * the client keeps the key and on later logins sends {@link #offer} before the ID. Only a login
+ * that presents the key is sent the stored messages, since anybody may log in under a free ID.
+ */
+public final class MailboxKey {
+    public static final String OFFER_PREFIX = BinaryProtocol.HELLO_PREFIX + "MAILBOX ";
+    public static final String ISSUED_PREFIX = "MAILBOX_KEY ";
+    // Keys are SessionResume tokens: 32 hex digits
+    private static final int KEY_LENGTH = 32;
+
+    private MailboxKey() {
+    }
+
+    public static String newKey() {
+        return SessionResume.newToken();
+    }
+
+    public static String offer(String key) {
+        return OFFER_PREFIX + key;
+    }
+
+    public static String issued(String key) {
+        return ISSUED_PREFIX + key;
+    }
+
+    // The key offered by a HELLO MAILBOX line, or null
+    public static String offeredKey(String line) {
+        return line != null && line.startsWith(OFFER_PREFIX) ? keyAt(line, OFFER_PREFIX.length()) : null;
+    }
+
+    // The key carried by a MAILBOX_KEY line, or null. The whole rest of the line has to be a key, so
+    // a chat line from a user whose ID happens to start with MAILBOX_KEY never passes for one.
+    public static String issuedKey(String line) {
+        return line != null && line.startsWith(ISSUED_PREFIX) ? keyAt(line, ISSUED_PREFIX.length()) : null;
+    }
+
+    private static String keyAt(String line, int start) {
+        if (line.length() - start != KEY_LENGTH) {
+            return null;
+        }
+        for (int i = start; i < line.length(); i++) {
+            if (Character.digit(line.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        return line.substring(start);
+    }
+}
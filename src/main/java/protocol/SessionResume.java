@@ -0,0 +1,84 @@
+package protocol;
+
+import java.security.SecureRandom;
+
+/**
+ * Handshake lines for resuming a session after a dropped connection. A client sends
+ * {@link #OFFER} before its ID; the server then appends " RESUME token" to its ID_ACCEPTED
+ * reply and keeps the session for a grace window if the connection drops. To take the session
+ * back the client logs in on a new connection with "RESUME token received userID", where
+ * received counts the messages it got since ID_ACCEPTED: one per line on the text protocol,
+ * one per frame other than user bindings on the binary one. The server answers with a new
+ * ID_ACCEPTED (and token) and sends only what the client missed, or {@link #FAILED} if the
+ * session is gone.
+ */
+public final class SessionResume {
+    public static final String OFFER = BinaryProtocol.HELLO_PREFIX + "RESUME";
+    public static final String REQUEST_PREFIX = "RESUME ";
+    public static final String FAILED = "RESUME_FAILED";
+    private static final String TOKEN_PREFIX = " RESUME ";
+    private static final SecureRandom random = new SecureRandom();
+
+    private SessionResume() {
+    }
+
+    // 128 random bits as hex
+    public static String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return token.toString();
+    }
+
+    public static String accepted(String acceptedLine, String token) {
+        return acceptedLine + TOKEN_PREFIX + token;
+    }
+
+    // The token carried by an ID_ACCEPTED reply, or null
+    public static String tokenOf(String acceptedLine) {
+        int at = acceptedLine == null ? -1 : acceptedLine.indexOf(TOKEN_PREFIX);
+        return at < 0 ? null : acceptedLine.substring(at + TOKEN_PREFIX.length());
+    }
+
+    // The ID_ACCEPTED reply without its token
+    public static String withoutToken(String acceptedLine) {
+        int at = acceptedLine == null ? -1 : acceptedLine.indexOf(TOKEN_PREFIX);
+        return at < 0 ? acceptedLine : acceptedLine.substring(0, at);
+    }
+
+    public static String request(String token, long received, String userID) {
+        return REQUEST_PREFIX + token + " " + received + " " + userID;
+    }
+
+    /** A parsed RESUME line. */
+    public static final class Request {
+        public final String token;
+        public final long received;
+        public final String userID;
+
+        private Request(String token, long received, String userID) {
+            this.token = token;
+            this.received = received;
+            this.userID = userID;
+        }
+    }
+
+    // Null if the line is not a well-formed RESUME request
+    public static Request parse(String line) {
+        if (line == null || !line.startsWith(REQUEST_PREFIX)) {
+            return null;
+        }
+        String[] parts = line.substring(REQUEST_PREFIX.length()).split(" ", 3);
+        if (parts.length < 3 || parts[2].isEmpty()) {
+            return null;
+        }
+        try {
+            return new Request(parts[0], Long.parseLong(parts[1]), parts[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads newline-terminated text lines and length-prefixed binary frames from the same
+ * buffered stream, so a connection can switch protocols after the handshake without losing
+ * bytes that were already read ahead. After {@link #readFrame()} the frame's fields stay
+ * valid until the next read.
+ */
+public final class WireReader {
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    // The frame returned by the last readFrame()
+    private byte opcode;
+    private int payloadStart;
+    private int payloadEnd;
+
+    public WireReader(InputStream in) {
+        this(in, 8192);
+    }
+
+    public WireReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+    }
+
+    // Next text line without its terminator, or null at end of stream
+    public String readLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = position + scanned; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    int end = (i > position && buffer[i - 1] == '\r') ? i - 1 : i;
+                    String line = new String(buffer, position, end - position, StandardCharsets.UTF_8);
+                    position = i + 1;
+                    return line;
+                }
+            }
+            scanned = limit - position;
+            if (scanned > MAX_LINE_LENGTH) {
+                throw new IOException("Line too long");
+            }
+            if (!fill()) {
+                if (limit > position) {
+                    String line = new String(buffer, position, limit - position, StandardCharsets.UTF_8);
+                    position = limit;
+                    return line;
+                }
+                return null;
+            }
+        }
+    }
+
+    // Reads the next complete frame; returns false at a clean end of stream
+    public boolean readFrame() throws IOException {
+        while (true) {
+            int size = BinaryProtocol.frameSize(buffer, position, limit);
+            if (size > 0) {
+                int opcodeAt = position + BinaryProtocol.headerSize(buffer, position);
+                opcode = buffer[opcodeAt];
+                payloadStart = opcodeAt + 1;
+                payloadEnd = position + size;
+                position += size;
+                return true;
+            }
+            if (!fill()) {
+                if (limit > position) {
+                    throw new EOFException("Stream ended inside a frame");
+                }
+                return false;
+            }
+        }
+    }
+
+    public byte opcode() {
+        return opcode;
+    }
+
+    // User index of a chat, private or user-binding frame
+    public int index() throws IOException {
+        return BinaryProtocol.readVarint(buffer, payloadStart);
+    }
+
+    // Text payload of the last frame, after the user index when the opcode carries one
+    public String text() throws IOException {
+        int start = payloadStart;
+        if (BinaryProtocol.hasIndex(opcode)) {
+            start += BinaryProtocol.varintSize(index());
+        }
+        return new String(buffer, start, payloadEnd - start, StandardCharsets.UTF_8);
+    }
+
+    // Moves unread bytes to the front, grows the buffer if it is full, and reads more
+    private boolean fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            payloadStart -= position;
+            payloadEnd -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            if (buffer.length >= BinaryProtocol.MAX_FRAME_LENGTH + 8) {
+                throw new IOException("Frame too large");
+            }
+            byte[] larger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, larger, 0, limit);
+            buffer = larger;
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+}
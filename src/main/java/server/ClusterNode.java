@@ -0,0 +1,779 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One server of a cluster. Every node keeps a link to every other node. Room chat, system
+ * messages and lines for users connected elsewhere are relayed over these links, so each node
+ * only writes to its own sessions. The live node with the lowest ID leads. It grants user IDs,
+ * which keeps ID_TAKEN cluster-wide, and it decides who the lobby coordinator is. Every node
+ * keeps a copy of the directory of users and the node each one is on, so a relay goes straight
+ * to the right node.
+ *
+ * Links carry one tab-separated line per message. Fields are escaped, so a tab, line break or
+ * backslash in chat text or a user ID can never end a field or the line early. A node dials the nodes with higher IDs and
+ * redials them when a link drops; nodes with lower IDs dial it.
+ */
+final class ClusterNode {
+    private static final char SEPARATOR = '\t';
+    // How long a login waits for the leader to grant its ID
+    private static final long CLAIM_TIMEOUT_MILLIS = Long.getLong("server.cluster.claimTimeoutMillis", 2000L);
+    private static final long REDIAL_MILLIS = Long.getLong("server.cluster.redialMillis", 1000L);
+    // Lines queued for one peer before the link is given up as too slow
+    private static final int LINK_CAPACITY = Integer.getInteger("server.cluster.linkCapacity", 65536);
+
+    final int nodeId;
+    private final Map<String, ServerHandler> clients;
+    private final RoomRegistry rooms;
+    // Live links by node ID
+    private final Map<Integer, Peer> peers = new ConcurrentHashMap<>();
+    // Nodes this one dials, and redials after a link drops
+    private final Map<Integer, InetSocketAddress> seeds = new ConcurrentHashMap<>();
+    // Every user in the cluster and the node it is connected to
+    private final Map<String, Integer> directory = new ConcurrentHashMap<>();
+    // Binary user indexes on this node for users connected elsewhere
+    private final Map<String, Integer> remoteIndexes = new ConcurrentHashMap<>();
+    private final Map<Long, CompletableFuture<String[]>> pendingClaims = new ConcurrentHashMap<>();
+    private final AtomicLong nextClaim = new AtomicLong();
+    // Guards the coordinator fields below and, on the leader, makes each grant and appointment atomic
+    private final Object leaderLock = new Object();
+    // The lobby coordinator as last decided by a leader. Decisions are ordered by epoch, and by the
+    // deciding node's ID when two leaders used the same epoch before their link came up.
+    private String coordinatorID;
+    private long coordinatorEpoch;
+    private int decidedBy = Integer.MAX_VALUE;
+    // Brings the local lobby in line with a decision. The lobby's coordinator is a CAS in the Room, so no
+    // lock is taken and a login waiting for the leader holds nothing this needs. It still runs on one
+    // thread of its own, so decisions are applied in order and a link's reader thread never waits on
+    // the announcement's fan-out to every lobby member on this node.
+    private final ExecutorService lobbyUpdates = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "cluster-lobby");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile ServerSocket listener;
+    private volatile Thread dialer;
+    private volatile boolean running;
+
+    ClusterNode(int nodeId, Map<String, ServerHandler> clients, RoomRegistry rooms) {
+        this.nodeId = nodeId;
+        this.clients = clients;
+        this.rooms = rooms;
+    }
+
+    // "2@host:port,3@host:port"
+    static Map<Integer, InetSocketAddress> parsePeers(String peers) {
+        Map<Integer, InetSocketAddress> parsed = new HashMap<>();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at < 0 || colon < at) {
+                throw new IllegalArgumentException("Cluster peers look like id@host:port, not " + peer);
+            }
+            parsed.put(Integer.parseInt(peer.substring(0, at)),
+                    new InetSocketAddress(peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return parsed;
+    }
+
+    // Listens for peers on the port (0 picks a free one) and returns the bound port
+    int start(int port) throws IOException {
+        running = true;
+        listener = new ServerSocket(port);
+        rooms.attach(this);
+        Thread acceptor = new Thread(this::acceptLinks, "cluster-accept-" + nodeId);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        dialer = new Thread(this::dialLinks, "cluster-dial-" + nodeId);
+        dialer.setDaemon(true);
+        dialer.start();
+        return listener.getLocalPort();
+    }
+
+    // Only peers with a higher ID are dialed; the others are expected to dial this node
+    void addPeer(int id, InetSocketAddress address) {
+        if (id > nodeId) {
+            seeds.put(id, address);
+            LockSupport.unpark(dialer);
+        }
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing cluster listener: " + e.getMessage());
+        }
+        LockSupport.unpark(dialer);
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+        lobbyUpdates.shutdown();
+        rooms.attach(null);
+    }
+
+    int peerCount() {
+        return peers.size();
+    }
+
+    int leader() {
+        int leader = nodeId;
+        for (int id : peers.keySet()) {
+            leader = Math.min(leader, id);
+        }
+        return leader;
+    }
+
+    // Node the user is connected to, or null
+    Integer nodeOf(String userID) {
+        return directory.get(userID);
+    }
+
+    String coordinatorID() {
+        synchronized (leaderLock) {
+            return coordinatorID;
+        }
+    }
+
+    /**
+     * Reserves the user ID across the cluster. Returns false if the ID is taken or the leader did
+     * not answer in time. On success the local lobby has the coordinator the leader decided on, so
+     * the join that follows takes the role only if the leader gave it to this user.
+     */
+    boolean claim(String userID) {
+        int leader = leader();
+        if (leader == nodeId) {
+            if (!grant(userID, nodeId)) {
+                return false;
+            }
+        } else {
+            String[] granted = requestGrant(leader, userID);
+            if (granted == null) {
+                return false;
+            }
+            coordinatorDecided(Long.parseLong(granted[3]), Integer.parseInt(granted[4]), user(granted[5]));
+        }
+        directory.put(userID, nodeId);
+        broadcast("JOINED", userID);
+        // Under the leader lock so that a newer decision applied meanwhile is not overwritten with this one
+        synchronized (leaderLock) {
+            rooms.lobby().assignCoordinator(coordinatorID);
+        }
+        return true;
+    }
+
+    private String[] requestGrant(int leader, String userID) {
+        Peer link = peers.get(leader);
+        if (link == null) {
+            return null;
+        }
+        long request = nextClaim.incrementAndGet();
+        CompletableFuture<String[]> reply = new CompletableFuture<>();
+        pendingClaims.put(request, reply);
+        link.send(line("CLAIM", Long.toString(request), userID));
+        try {
+            return reply.get(CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            System.err.println("Cluster leader " + leader + " did not answer a claim for " + userID);
+            if (pendingClaims.remove(request) == null) {
+                // The reply came in just now
+                return reply.getNow(null);
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pendingClaims.remove(request);
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    // Leader only: true if the ID was free. The first user in an empty cluster becomes coordinator.
+    private boolean grant(String userID, int node) {
+        synchronized (leaderLock) {
+            if (directory.putIfAbsent(userID, node) != null) {
+                return false;
+            }
+            if (coordinatorID == null) {
+                appoint(userID);
+            }
+            return true;
+        }
+    }
+
+    // Leader only, under leaderLock: makes the decision and tells every node, this one included
+    private void appoint(String userID) {
+        coordinatorEpoch++;
+        coordinatorID = userID;
+        decidedBy = nodeId;
+        broadcast("COORDINATOR", Long.toString(coordinatorEpoch), Integer.toString(nodeId), userID == null ? "" : userID);
+        updateLobby();
+    }
+
+    // Takes a leader's decision if it is newer than the one this node has
+    private void coordinatorDecided(long epoch, int by, String userID) {
+        synchronized (leaderLock) {
+            if (epoch < coordinatorEpoch || (epoch == coordinatorEpoch && by >= decidedBy)) {
+                return;
+            }
+            coordinatorEpoch = epoch;
+            coordinatorID = userID;
+            decidedBy = by;
+            updateLobby();
+        }
+    }
+
+    private void updateLobby() {
+        if (running) {
+            lobbyUpdates.execute(this::syncLobbyCoordinator);
+        }
+    }
+
+    // Lobby updates thread: applies whatever the latest decision is, so stale tasks do no harm. The
+    // announcement goes out after the lock is released.
+    private void syncLobbyCoordinator() {
+        String coordinator;
+        Room lobby = rooms.lobby();
+        synchronized (leaderLock) {
+            coordinator = coordinatorID;
+            if (coordinator == null ? lobby.coordinatorID() == null : coordinator.equals(lobby.coordinatorID())) {
+                return;
+            }
+            lobby.assignCoordinator(coordinator);
+        }
+        if (coordinator != null && clients.containsKey(coordinator) && lobby.contains(coordinator)) {
+            // This node announces its own user to the whole cluster
+            String announcement = lobby.coordinatorAnnouncement(coordinator);
+            lobby.broadcast(OutboundMessage.system(announcement), null);
+            relaySystem(lobby.name, announcement);
+        }
+    }
+
+    // The session has ended on this node
+    void left(String userID) {
+        directory.remove(userID, nodeId);
+        broadcast("LEFT", userID);
+    }
+
+    // The lobby coordinator left this node; successor is the member the lobby handed the role to, or null
+    void coordinatorLeft(String departed, String successor) {
+        int leader = leader();
+        if (leader == nodeId) {
+            replaceCoordinator(departed, successor, nodeId);
+            return;
+        }
+        Peer link = peers.get(leader);
+        if (link != null) {
+            link.send(line("SUCCESSOR", departed, successor == null ? "" : successor));
+        }
+    }
+
+    // Leader only: keeps a proposed successor on the coordinator's node, or else picks any user
+    private void replaceCoordinator(String departed, String proposed, int node) {
+        synchronized (leaderLock) {
+            if (!departed.equals(coordinatorID)) {
+                // Decided otherwise meanwhile; make sure the proposing node has the current decision
+                Peer link = peers.get(node);
+                if (link != null) {
+                    link.send(line("COORDINATOR", Long.toString(coordinatorEpoch), Integer.toString(decidedBy),
+                            coordinatorID == null ? "" : coordinatorID));
+                } else {
+                    updateLobby();
+                }
+                return;
+            }
+            Integer at = proposed == null ? null : directory.get(proposed);
+            // The departed user may still be in the directory: a session leaves its rooms before freeing its ID
+            appoint(at != null && at == node ? proposed : anyUserBut(departed));
+        }
+    }
+
+    private String anyUserBut(String excluded) {
+        for (String userID : directory.keySet()) {
+            if (!userID.equals(excluded)) {
+                return userID;
+            }
+        }
+        return null;
+    }
+
+    // Leader only: a new leader, or one that lost a node, replaces a coordinator who is gone
+    private void checkCoordinator() {
+        if (leader() != nodeId) {
+            return;
+        }
+        synchronized (leaderLock) {
+            if (coordinatorID == null ? !directory.isEmpty() : !directory.containsKey(coordinatorID)) {
+                appoint(anyUserBut(null));
+            }
+        }
+    }
+
+    void relayChat(String room, String senderID, String message) {
+        broadcast("CHAT", room, senderID, message);
+    }
+
+    void relaySystem(String room, String message) {
+        broadcast("SYSTEM", room, message);
+    }
+
+    // False if the target is not connected to another node
+    boolean relayPrivate(String senderID, String targetID, String message) {
+        Peer link = linkTo(targetID);
+        if (link == null) {
+            return false;
+        }
+        link.send(line("PRIVATE", senderID, targetID, message));
+        return true;
+    }
+
+    // A plain line for a user on another node; a multi-line message goes as one relay per line
+    boolean relayLine(String targetID, String message) {
+        Peer link = linkTo(targetID);
+        if (link == null) {
+            return false;
+        }
+        for (String part : message.split("\n")) {
+            link.send(line("LINE", targetID, part));
+        }
+        return true;
+    }
+
+    private Peer linkTo(String userID) {
+        Integer node = directory.get(userID);
+        return node == null || node == nodeId ? null : peers.get(node);
+    }
+
+    private void broadcast(String... fields) {
+        if (peers.isEmpty()) {
+            return;
+        }
+        String line = line(fields);
+        for (Peer peer : peers.values()) {
+            peer.send(line);
+        }
+    }
+
+    private static String line(String... fields) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                line.append(SEPARATOR);
+            }
+            escape(line, fields[i]);
+        }
+        return line.toString();
+    }
+
+    // Backslash escapes for the separator, both line break characters and the backslash itself
+    static void escape(StringBuilder line, String field) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case SEPARATOR:
+                    line.append("\\t");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                default:
+                    line.append(c);
+            }
+        }
+    }
+
+    static String unescape(String field) {
+        int backslash = field.indexOf('\\');
+        if (backslash < 0) {
+            return field;
+        }
+        StringBuilder text = new StringBuilder(field.length());
+        text.append(field, 0, backslash);
+        for (int i = backslash; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c != '\\' || i + 1 == field.length()) {
+                text.append(c);
+                continue;
+            }
+            char escaped = field.charAt(++i);
+            text.append(escaped == 't' ? SEPARATOR : escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+        }
+        return text.toString();
+    }
+
+    private static String user(String field) {
+        return field.isEmpty() ? null : field;
+    }
+
+    // Reader thread of the link: handles one line from a peer
+    private void receive(Peer from, String line) {
+        int tab = line.indexOf(SEPARATOR);
+        String type = tab < 0 ? line : line.substring(0, tab);
+        String rest = tab < 0 ? "" : line.substring(tab + 1);
+        String[] fields;
+        switch (type) {
+            case "JOINED":
+                directory.put(unescape(rest), from.id);
+                break;
+            case "LEFT":
+                String left = unescape(rest);
+                directory.remove(left, from.id);
+                releaseIndex(left);
+                break;
+            case "CLAIM":
+                fields = split(rest, 2);
+                if (grant(fields[1], from.id)) {
+                    String coordinator;
+                    long epoch;
+                    int by;
+                    synchronized (leaderLock) {
+                        coordinator = coordinatorID;
+                        epoch = coordinatorEpoch;
+                        by = decidedBy;
+                    }
+                    from.send(line("GRANTED", fields[0], fields[1], Long.toString(epoch), Integer.toString(by),
+                            coordinator == null ? "" : coordinator));
+                } else {
+                    from.send(line("TAKEN", fields[0]));
+                }
+                break;
+            case "GRANTED":
+                fields = split("GRANTED" + SEPARATOR + rest, 6);
+                CompletableFuture<String[]> granted = pendingClaims.remove(Long.parseLong(fields[1]));
+                if (granted != null) {
+                    granted.complete(fields);
+                } else {
+                    // The login gave up waiting, so hand the ID back
+                    from.send(line("LEFT", fields[2]));
+                }
+                break;
+            case "TAKEN":
+                CompletableFuture<String[]> taken = pendingClaims.remove(Long.parseLong(rest));
+                if (taken != null) {
+                    taken.complete(null);
+                }
+                break;
+            case "COORDINATOR":
+                fields = split(rest, 3);
+                coordinatorDecided(Long.parseLong(fields[0]), Integer.parseInt(fields[1]), user(fields[2]));
+                break;
+            case "SUCCESSOR":
+                fields = split(rest, 2);
+                if (leader() == nodeId) {
+                    replaceCoordinator(fields[0], user(fields[1]), from.id);
+                }
+                break;
+            case "CHAT":
+                fields = split(rest, 3);
+                deliverChat(fields[0], fields[1], fields[2]);
+                break;
+            case "SYSTEM":
+                fields = split(rest, 2);
+                Room room = rooms.get(fields[0]);
+                if (room != null) {
+                    room.broadcast(OutboundMessage.system(fields[1]), null);
+                }
+                break;
+            case "PRIVATE":
+                fields = split(rest, 3);
+                ServerHandler target = clients.get(fields[1]);
+                if (target == null) {
+                    from.send(line("UNDELIVERED", fields[0], fields[1]));
+                } else {
+                    target.send(OutboundMessage.privateMessage(indexOf(fields[0]), fields[0], fields[2]));
+                }
+                break;
+            case "LINE":
+                fields = split(rest, 2);
+                ServerHandler recipient = clients.get(fields[0]);
+                if (recipient != null) {
+                    recipient.sendMessage(fields[1]);
+                }
+                break;
+            case "UNDELIVERED":
+                fields = split(rest, 2);
+                ServerHandler sender = clients.get(fields[0]);
+                if (sender != null) {
+                    sender.send(OutboundMessage.system("Message not delivered: " + fields[1] + " is not online."));
+                }
+                break;
+            default:
+                System.err.println("Unknown cluster message from node " + from.id + ": " + type);
+        }
+    }
+
+    private static String[] split(String rest, int count) {
+        String[] fields = rest.split(String.valueOf(SEPARATOR), count);
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = unescape(fields[i]);
+        }
+        if (fields.length < count) {
+            String[] padded = new String[count];
+            System.arraycopy(fields, 0, padded, 0, fields.length);
+            for (int i = fields.length; i < count; i++) {
+                padded[i] = "";
+            }
+            return padded;
+        }
+        return fields;
+    }
+
+    // Journaled here as well, so history is complete on every node
+    private void deliverChat(String roomName, String senderID, String message) {
+        MessageJournal journal = rooms.journal();
+        if (journal != null) {
+            journal.append(roomName, senderID, message);
+        }
+        Room room = rooms.get(roomName);
+        if (room == null) {
+            return;
+        }
+        int index = indexOf(senderID);
+        room.broadcast(room == rooms.lobby()
+                ? OutboundMessage.chat(index, senderID, message)
+                : OutboundMessage.roomChat(index, senderID, roomName, message), null);
+    }
+
+    private int indexOf(String remoteUserID) {
+        return remoteIndexes.computeIfAbsent(remoteUserID, key -> ServerHandler.allocateUserIndex());
+    }
+
+    private void releaseIndex(String remoteUserID) {
+        Integer index = remoteIndexes.remove(remoteUserID);
+        if (index != null) {
+            ServerHandler.releaseUserIndex(index);
+        }
+    }
+
+    private void acceptLinks() {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                try {
+                    Peer peer = new Peer(socket);
+                    String hello = peer.in.readLine();
+                    if (hello == null || !hello.startsWith("NODE" + SEPARATOR)) {
+                        socket.close();
+                        continue;
+                    }
+                    peer.id = Integer.parseInt(hello.substring(5));
+                    peer.writeNow(line("NODE", Integer.toString(nodeId)));
+                    linked(peer);
+                } catch (IOException | NumberFormatException e) {
+                    System.err.println("Rejected cluster link: " + e.getMessage());
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting cluster link: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void dialLinks() {
+        while (running) {
+            for (Map.Entry<Integer, InetSocketAddress> seed : seeds.entrySet()) {
+                if (!peers.containsKey(seed.getKey())) {
+                    dial(seed.getKey(), seed.getValue());
+                }
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(REDIAL_MILLIS));
+        }
+    }
+
+    private void dial(int id, InetSocketAddress address) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, (int) CLAIM_TIMEOUT_MILLIS);
+            Peer peer = new Peer(socket);
+            peer.id = id;
+            peer.writeNow(line("NODE", Integer.toString(nodeId)));
+            String hello = peer.in.readLine();
+            if (!line("NODE", Integer.toString(id)).equals(hello)) {
+                throw new IOException("expected node " + id + ", got " + hello);
+            }
+            linked(peer);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Nothing left to release
+            }
+        }
+    }
+
+    // A link is up: tell the peer who is connected here and what this node knows about the coordinator
+    private void linked(Peer peer) {
+        if (peers.putIfAbsent(peer.id, peer) != null) {
+            peer.close();
+            return;
+        }
+        for (Map.Entry<String, Integer> entry : directory.entrySet()) {
+            if (entry.getValue() == nodeId) {
+                peer.send(line("JOINED", entry.getKey()));
+            }
+        }
+        synchronized (leaderLock) {
+            if (coordinatorEpoch > 0) {
+                peer.send(line("COORDINATOR", Long.toString(coordinatorEpoch), Integer.toString(decidedBy),
+                        coordinatorID == null ? "" : coordinatorID));
+            }
+        }
+        peer.startThreads();
+        System.out.println("Cluster node " + nodeId + " linked to node " + peer.id);
+    }
+
+    // A link dropped: users on that node are gone, and this node may now lead
+    private void unlinked(Peer peer) {
+        if (!peers.remove(peer.id, peer)) {
+            return;
+        }
+        System.out.println("Cluster node " + nodeId + " lost node " + peer.id);
+        List<String> gone = new ArrayList<>();
+        directory.forEach((userID, node) -> {
+            if (node == peer.id) {
+                gone.add(userID);
+            }
+        });
+        Room lobby = rooms.lobby();
+        for (String userID : gone) {
+            if (directory.remove(userID, peer.id)) {
+                releaseIndex(userID);
+                lobby.broadcast(OutboundMessage.system(userID + " has left the chat."), null);
+            }
+        }
+        // A claim sent to a leader that is gone will not be answered
+        for (Long request : new ArrayList<>(pendingClaims.keySet())) {
+            CompletableFuture<String[]> pending = pendingClaims.remove(request);
+            if (pending != null) {
+                pending.complete(null);
+            }
+        }
+        checkCoordinator();
+    }
+
+    /** One link to another node, with a reader thread and a writer thread that batches flushes. */
+    private final class Peer {
+        volatile int id;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final BufferedWriter out;
+        private final LinkedBlockingQueue<String> outbox = new LinkedBlockingQueue<>(LINK_CAPACITY);
+        private volatile Thread writer;
+
+        Peer(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        // Handshake only, before the writer thread starts
+        void writeNow(String line) throws IOException {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        }
+
+        void startThreads() {
+            Thread reader = new Thread(this::readLoop, "cluster-read-" + nodeId + "-" + id);
+            reader.setDaemon(true);
+            writer = new Thread(this::writeLoop, "cluster-write-" + nodeId + "-" + id);
+            writer.setDaemon(true);
+            writer.start();
+            reader.start();
+            // The link may have been checked before it was registered
+            checkCoordinator();
+        }
+
+        void send(String line) {
+            if (!outbox.offer(line)) {
+                System.err.println("Cluster link to node " + id + " is not keeping up, dropping it");
+                close();
+            }
+        }
+
+        private void readLoop() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    receive(this, line);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Cluster link to node " + id + " failed: " + e.getMessage());
+                }
+            } finally {
+                close();
+                unlinked(this);
+            }
+        }
+
+        // Writes everything queued, then flushes once
+        private void writeLoop() {
+            try {
+                while (true) {
+                    String line = outbox.take();
+                    do {
+                        out.write(line);
+                        out.write('\n');
+                    } while ((line = outbox.poll()) != null);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close();
+            } catch (InterruptedException e) {
+                // Link closed
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing cluster link: " + e.getMessage());
+            }
+            Thread thread = writer;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import protocol.MailboxKey;
+
+/**
+ * Private messages kept for known users while they are offline, and sent to them when they
+ * next log in. The messages live in a MessageJournal of their own, with the recipient in place
+ * of the room, so they are stored in the same compact segment files, survive a restart and are
+ * bounded by the same size and age limits; the journal's index gives each recipient's pending
+ * count without reading anything. Which users are known, and how far each has been delivered,
+ * is kept in a small recipients file next to the segments, one "userID TAB sequence TAB keyHash"
+ * line per change and compacted when it is opened. A message older than the TTL is no longer
+ * delivered, and a recipient with the quota of messages waiting takes no more.
+ *
+ * <p>User IDs are not authenticated, so each recipient is given a random key when enrolled, and
+ * only a session presenting that key may read the mail; the file keeps just its SHA-256 hash.
+ */
+final class Mailbox {
+
+    enum StoreResult {
+        STORED,
+        // The recipient has the quota of messages waiting already
+        FULL,
+        // Nobody by that name has ever logged in here
+        UNKNOWN,
+        // Too large for a segment, closed, or an I/O error
+        FAILED
+    }
+
+    private static final String RECIPIENTS = "recipients";
+    // The recipients file is rewritten once it has this many lines more than there are recipients
+    private static final int COMPACT_SLACK = 4096;
+
+    private static volatile Mailbox shared;
+    private static volatile boolean sharedOpened;
+
+    private final MessageJournal journal;
+    private final Path recipientsFile;
+    private final long ttlMillis;
+    private final int quota;
+    private final int chunk;
+    // Covers the recipients and their file; the journal has a lock of its own, always taken after this one
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Recipient> recipients = new HashMap<>();
+    private FileChannel recipientsLog;
+    private int loggedLines;
+    private boolean closed;
+
+    private static final class Recipient {
+        final String userID;
+        // Hex SHA-256 of the key handed out when the user was enrolled
+        final String keyHash;
+        // Sequence number of the newest message handed to the user's connection, and the newest one on disk
+        long deliveredThrough;
+        long savedThrough;
+        // The running delivery; one started for a newer session takes its place
+        Delivery delivery;
+
+        Recipient(String userID, String keyHash, long deliveredThrough) {
+            this.userID = userID;
+            this.keyHash = keyHash;
+            this.deliveredThrough = deliveredThrough;
+            this.savedThrough = deliveredThrough;
+        }
+    }
+
+    /**
+     * Opens the mailbox in directory, creating it if needed. Segments are segmentBytes long and
+     * the whole mailbox is kept under retainBytes; messages are dropped after ttlMillis and each
+     * recipient may have at most quota waiting, 0 meaning no limit. Deliveries go out chunk
+     * messages at a time.
+     */
+    Mailbox(Path directory, int segmentBytes, long retainBytes, long ttlMillis, int quota, int chunk) throws IOException {
+        this.journal = new MessageJournal(directory, segmentBytes, retainBytes, ttlMillis);
+        this.recipientsFile = directory.resolve(RECIPIENTS);
+        this.ttlMillis = ttlMillis;
+        this.quota = quota;
+        this.chunk = Math.max(1, chunk);
+        load();
+    }
+
+    // The server-wide mailbox, configured from server.mailbox.* system properties on first use.
+    // Null when disabled with -Dserver.mailbox.enabled=false or when the directory cannot be opened.
+    static Mailbox shared() {
+        if (!sharedOpened) {
+            synchronized (Mailbox.class) {
+                if (!sharedOpened) {
+                    shared = openShared();
+                    sharedOpened = true;
+                }
+            }
+        }
+        return shared;
+    }
+
+    private static Mailbox openShared() {
+        if (!Boolean.parseBoolean(System.getProperty("server.mailbox.enabled", "true"))) {
+            return null;
+        }
+        Path directory = Paths.get(System.getProperty("server.mailbox.dir", "mailbox"));
+        try {
+            Mailbox mailbox = new Mailbox(directory,
+                    Integer.getInteger("server.mailbox.segmentBytes", 4 * 1024 * 1024),
+                    Long.getLong("server.mailbox.retainBytes", 256L * 1024 * 1024),
+                    Long.getLong("server.mailbox.ttlMillis", 7L * 24 * 60 * 60 * 1000),
+                    Integer.getInteger("server.mailbox.quota", 10000),
+                    Integer.getInteger("server.mailbox.chunk", 500));
+            Runtime.getRuntime().addShutdownHook(new Thread(mailbox::close, "mailbox-shutdown"));
+            return mailbox;
+        } catch (IOException e) {
+            System.err.println("Could not open mailbox in " + directory + ", offline messages are disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Reads the recipients file, newest line per user winning, and writes it back with one line each
+    private void load() throws IOException {
+        if (Files.exists(recipientsFile)) {
+            for (String line : Files.readAllLines(recipientsFile, StandardCharsets.UTF_8)) {
+                int keyTab = line.lastIndexOf('\t');
+                int tab = keyTab <= 0 ? -1 : line.lastIndexOf('\t', keyTab - 1);
+                if (tab <= 0 || line.length() - keyTab - 1 != 64) {
+                    // A line torn by a crash
+                    continue;
+                }
+                try {
+                    String userID = line.substring(0, tab);
+                    recipients.put(userID, new Recipient(userID, line.substring(keyTab + 1),
+                            Long.parseLong(line.substring(tab + 1, keyTab))));
+                } catch (NumberFormatException e) {
+                    // Torn as well
+                }
+            }
+        }
+        compact();
+    }
+
+    // Rewrites the recipients file with one line per recipient and reopens it for appending
+    private void compact() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Recipient recipient : recipients.values()) {
+            recipient.savedThrough = recipient.deliveredThrough;
+            lines.append(recipient.userID).append('\t').append(recipient.savedThrough)
+                    .append('\t').append(recipient.keyHash).append('\n');
+        }
+        Path temporary = recipientsFile.resolveSibling(RECIPIENTS + ".tmp");
+        Files.write(temporary, lines.toString().getBytes(StandardCharsets.UTF_8));
+        if (recipientsLog != null) {
+            recipientsLog.close();
+        }
+        Files.move(temporary, recipientsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        recipientsLog = FileChannel.open(recipientsFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        loggedLines = recipients.size();
+    }
+
+    // Appends the recipient's delivery progress if it moved since it was last written (lock held)
+    private void save(Recipient recipient) {
+        if (closed || recipient.deliveredThrough == recipient.savedThrough) {
+            return;
+        }
+        recipient.savedThrough = recipient.deliveredThrough;
+        try {
+            if (loggedLines >= recipients.size() + COMPACT_SLACK) {
+                compact();
+                return;
+            }
+            byte[] line = (recipient.userID + '\t' + recipient.savedThrough + '\t' + recipient.keyHash + '\n')
+                    .getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = ByteBuffer.wrap(line);
+            while (buffer.hasRemaining()) {
+                recipientsLog.write(buffer);
+            }
+            loggedLines++;
+        } catch (IOException e) {
+            System.err.println("Could not save mailbox progress for " + recipient.userID + ": " + e.getMessage());
+        }
+    }
+
+    // Remembers a user who logged in, so messages sent to them while they are away are kept. Returns the key
+    // that opens the mailbox, to be handed to the client, or null if the user was known already. An ID that
+    // could break a line of the recipients file is never enrolled.
+    String enroll(String userID) {
+        if (!ServerHandler.validUserID(userID)) {
+            return null;
+        }
+        lock.lock();
+        try {
+            if (closed || recipients.containsKey(userID)) {
+                return null;
+            }
+            String key = MailboxKey.newKey();
+            Recipient recipient = new Recipient(userID, hash(key), journal.nextSequence() - 1);
+            recipients.put(userID, recipient);
+            // Written now, since the user has to be known after a restart even with no mail yet
+            recipient.savedThrough = -1;
+            save(recipient);
+            return key;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True if key is the one handed out when the user was enrolled
+    boolean opens(String userID, String key) {
+        if (key == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            Recipient recipient = recipients.get(userID);
+            return recipient != null && MessageDigest.isEqual(
+                    recipient.keyHash.getBytes(StandardCharsets.US_ASCII), hash(key).getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    StoreResult store(String recipientID, String senderID, String text) {
+        lock.lock();
+        try {
+            Recipient recipient = recipients.get(recipientID);
+            if (closed) {
+                return StoreResult.FAILED;
+            }
+            if (recipient == null) {
+                return StoreResult.UNKNOWN;
+            }
+            if (quota > 0 && journal.countAfter(recipientID, recipient.deliveredThrough) >= quota
+                    && skipExpired(recipient) >= quota) {
+                return StoreResult.FULL;
+            }
+            return journal.append(recipientID, senderID, text) < 0 ? StoreResult.FAILED : StoreResult.STORED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Messages waiting for the user, counting any past the TTL that were not deleted yet
+    int pending(String userID) {
+        lock.lock();
+        try {
+            Recipient recipient = recipients.get(userID);
+            return recipient == null ? 0 : journal.countAfter(userID, recipient.deliveredThrough);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts sending the user's waiting messages to the session owner, or returns null if there
+     * are none or owner's delivery is already running. It takes over from a delivery started for
+     * an earlier session, which stops where it was. onChunkTaken is called from the outbound
+     * drain once a chunk has been taken; the owner then asks for the next with nextChunk().
+     */
+    Delivery start(String userID, Object owner, Consumer<Delivery> onChunkTaken) {
+        lock.lock();
+        try {
+            Recipient recipient = recipients.get(userID);
+            if (closed || recipient == null || (recipient.delivery != null && recipient.delivery.owner == owner)) {
+                return null;
+            }
+            int waiting = skipExpired(recipient);
+            boolean resumed = recipient.delivery != null;
+            recipient.delivery = null;
+            if (waiting == 0) {
+                return null;
+            }
+            // A session taking over a running delivery has had the notice already
+            String notice = resumed ? null
+                    : waiting == 1 ? "1 private message arrived while you were away."
+                    : waiting + " private messages arrived while you were away.";
+            Delivery delivery = new Delivery(recipient, owner, notice, onChunkTaken);
+            delivery.records = journal.records(userID, recipient.deliveredThrough, chunk);
+            recipient.delivery = delivery;
+            return delivery;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Passes over the recipient's oldest messages while they are past the TTL and returns how many are left. The
+    // journal only deletes whole segments, so expired messages can still be in it. (Lock held.)
+    private int skipExpired(Recipient recipient) {
+        if (ttlMillis > 0) {
+            long now = System.currentTimeMillis();
+            MessageJournal.Records oldest = journal.records(recipient.userID, recipient.deliveredThrough, Integer.MAX_VALUE);
+            while (oldest.advance() && now - oldest.timeMillis() > ttlMillis) {
+                recipient.deliveredThrough = oldest.sequence();
+            }
+        }
+        return journal.countAfter(recipient.userID, recipient.deliveredThrough);
+    }
+
+    // The owner's session ended: its delivery stops and what it sent is saved, so the next login starts afresh
+    void release(String userID, Object owner) {
+        lock.lock();
+        try {
+            Recipient recipient = recipients.get(userID);
+            if (recipient != null && recipient.delivery != null && recipient.delivery.owner == owner) {
+                recipient.delivery = null;
+                save(recipient);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Saves the delivery's progress and moves it on to the next chunk; false when it is over or was taken over
+    private boolean nextChunk(Delivery delivery) {
+        lock.lock();
+        try {
+            Recipient recipient = delivery.recipient;
+            if (recipient.delivery != delivery) {
+                return false;
+            }
+            save(recipient);
+            if (closed || journal.countAfter(recipient.userID, recipient.deliveredThrough) == 0) {
+                recipient.delivery = null;
+                return false;
+            }
+            delivery.records = journal.records(recipient.userID, recipient.deliveredThrough, chunk);
+            delivery.finished = false;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Records that the delivery handed the message on; false if a newer delivery took over meanwhile
+    private boolean taken(Delivery delivery, long sequence) {
+        lock.lock();
+        try {
+            Recipient recipient = delivery.recipient;
+            if (recipient.delivery != delivery) {
+                return false;
+            }
+            recipient.deliveredThrough = Math.max(recipient.deliveredThrough, sequence);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One user's waiting messages as a replay for their outbound queue, a chunk at a time. Each
+     * is sent in the form it would have had live, "sender(private): text", after a notice
+     * saying how many are waiting. The drain reads one record per message, so a long backlog is
+     * read only as fast as the client takes it, and between chunks the replay is detached, so
+     * live messages and other replays get their turn.
+     */
+    final class Delivery implements OutboundQueue.Replay {
+        private final Recipient recipient;
+        private final Object owner;
+        private final Consumer<Delivery> onChunkTaken;
+        private String notice;
+        // The current chunk (guarded by the mailbox lock when replaced, read by the drain in between)
+        private volatile MessageJournal.Records records;
+        private volatile boolean finished;
+
+        private Delivery(Recipient recipient, Object owner, String notice, Consumer<Delivery> onChunkTaken) {
+            this.recipient = recipient;
+            this.owner = owner;
+            this.notice = notice;
+            this.onChunkTaken = onChunkTaken;
+        }
+
+        @Override
+        public OutboundMessage next() {
+            if (finished) {
+                return null;
+            }
+            if (notice != null) {
+                String first = notice;
+                notice = null;
+                return OutboundMessage.system(first);
+            }
+            long now = System.currentTimeMillis();
+            MessageJournal.Records current = records;
+            while (current.advance()) {
+                if (!taken(this, current.sequence())) {
+                    finished = true;
+                    return null;
+                }
+                if (ttlMillis > 0 && now - current.timeMillis() > ttlMillis) {
+                    // Expired; passed over as if delivered
+                    continue;
+                }
+                ServerHandler.metrics.mailDelivered();
+                return OutboundMessage.of(current.sender() + "(private): " + current.text());
+            }
+            finished = true;
+            onChunkTaken.accept(this);
+            return null;
+        }
+
+        @Override
+        public boolean finished() {
+            return finished;
+        }
+
+        // Moves on to the next chunk, to be attached to the queue again; false once everything was sent
+        boolean nextChunk() {
+            return Mailbox.this.nextChunk(this);
+        }
+    }
+
+    // Saves every recipient's progress; later stores are refused
+    void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            for (Recipient recipient : recipients.values()) {
+                save(recipient);
+            }
+            closed = true;
+            try {
+                recipientsLog.close();
+            } catch (IOException e) {
+                System.err.println("Could not close mailbox recipients file: " + e.getMessage());
+            }
+        } finally {
+            lock.unlock();
+        }
+        journal.close();
+    }
+}
@@ -0,0 +1,120 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable, ID-ordered view of one room's members for MEMBERS queries. The room builds it
+ * from its concurrent member map without stopping joins or leaves, and keeps it until the next
+ * join or leave, so paging through a large room costs a binary search per page rather than a
+ * copy of the room. A page is streamed through the requester's outbound queue one line per
+ * member, "MEMBER id ip port", with " COORDINATOR" on the coordinator's line, and ends with
+ * "MEMBERS_END count", plus " NEXT id" when more members match; that ID is the cursor for the
+ * next page.
+ */
+final class MemberDirectory {
+    // The room's membership version the view was built from
+    final long version;
+    private final Entry[] entries;
+
+    private static final class Entry {
+        final String userID;
+        final String address;
+
+        Entry(String userID, String address) {
+            this.userID = userID;
+            this.address = address;
+        }
+    }
+
+    private MemberDirectory(long version, Entry[] entries) {
+        this.version = version;
+        this.entries = entries;
+    }
+
+    static MemberDirectory of(long version, Iterable<ServerHandler> members) {
+        List<Entry> entries = new ArrayList<>();
+        for (ServerHandler member : members) {
+            entries.add(new Entry(member.getUserID(), member.address()));
+        }
+        entries.sort(Comparator.comparing(entry -> entry.userID));
+        return new MemberDirectory(version, entries.toArray(new Entry[0]));
+    }
+
+    int size() {
+        return entries.length;
+    }
+
+    /**
+     * Up to limit members whose IDs start with prefix and sort after the cursor. A null or empty
+     * prefix matches everyone, and a null cursor starts at the beginning.
+     */
+    Page page(String prefix, String after, int limit, String coordinatorID) {
+        String match = prefix == null ? "" : prefix;
+        int from = firstAtOrAbove(match);
+        if (after != null && after.compareTo(match) >= 0) {
+            from = firstAtOrAbove(after);
+            if (from < entries.length && entries[from].userID.equals(after)) {
+                from++;
+            }
+        }
+        return new Page(from, match, Math.max(0, limit), coordinatorID);
+    }
+
+    // Index of the first entry whose ID is not less than key
+    private int firstAtOrAbove(String key) {
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries[mid].userID.compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** One page of the directory, produced a line at a time by the session's drainer. */
+    final class Page implements OutboundQueue.Replay {
+        private int position;
+        private final String prefix;
+        private final int limit;
+        private final String coordinatorID;
+        private int listed;
+        private boolean finished;
+
+        private Page(int position, String prefix, int limit, String coordinatorID) {
+            this.position = position;
+            this.prefix = prefix;
+            this.limit = limit;
+            this.coordinatorID = coordinatorID;
+        }
+
+        @Override
+        public OutboundMessage next() {
+            if (finished) {
+                return null;
+            }
+            boolean matches = position < entries.length && entries[position].userID.startsWith(prefix);
+            if (matches && listed < limit) {
+                Entry entry = entries[position++];
+                listed++;
+                return OutboundMessage.of("MEMBER " + entry.userID + " " + entry.address
+                        + (entry.userID.equals(coordinatorID) ? " COORDINATOR" : ""));
+            }
+            finished = true;
+            if (matches && listed > 0) {
+                return OutboundMessage.of("MEMBERS_END " + listed + " NEXT " + entries[position - 1].userID);
+            }
+            return OutboundMessage.of("MEMBERS_END " + listed);
+        }
+
+        @Override
+        public boolean finished() {
+            return finished;
+        }
+    }
+}
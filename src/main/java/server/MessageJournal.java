@@ -0,0 +1,550 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of room chat. Records go into fixed-size segment files, named after the
+ * first sequence number they hold, through a memory mapping of the active segment; history is
+ * read back through the same mappings one record at a time, so a replay never loads a segment
+ * onto the heap. Each room keeps an in-memory index of its records' sequence numbers and
+ * locations. A segment is sealed when it is full or its first record is older than the age
+ * limit, and the oldest sealed segments are deleted once the journal is over its size or age
+ * limit. Records written before a crash are found again by scanning the segments on open.
+ * The mailbox keeps offline private messages in a journal of its own, keyed by recipient
+ * instead of room.
+ */
+final class MessageJournal {
+    // Record header: payload length, then the CRC32 of the payload
+    private static final int HEADER = 8;
+    // Payload before the strings: sequence, time, room length, sender length
+    private static final int FIXED_PAYLOAD = 8 + 8 + 2 + 2;
+    private static final int MAX_NAME_BYTES = 0xFFFF;
+    private static final String SUFFIX = ".seg";
+    private static final long RETENTION_CHECK_MILLIS = 1000;
+
+    private static volatile MessageJournal shared;
+    private static volatile boolean sharedOpened;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retainBytes;
+    private final long retainMillis;
+    // Appends and reads are single record copies, so one lock covers the segments and the indexes
+    private final ReentrantLock lock = new ReentrantLock();
+    // Oldest first; the last one is written to
+    private final List<Segment> segments = new ArrayList<>();
+    // Ordinal of segments.get(0); record locations name segments by ordinal so deletions do not move them
+    private int firstOrdinal;
+    private final Map<String, RoomIndex> indexes = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private long nextSequence = 1;
+    private long lastRetentionCheck;
+    private boolean closed;
+
+    private static final class Segment {
+        final Path file;
+        final MappedByteBuffer map;
+        // Bytes of complete records; everything after is unused
+        int size;
+        long firstAppendMillis;
+        long lastAppendMillis;
+
+        Segment(Path file, MappedByteBuffer map) {
+            this.file = file;
+            this.map = map;
+        }
+    }
+
+    // Sequence numbers and locations of one room's records, oldest first
+    private static final class RoomIndex {
+        long[] sequences = new long[16];
+        long[] locations = new long[16];
+        int size;
+        // Entries trimmed off the front so far; cursors count positions including them
+        long trimmed;
+
+        void add(long sequence, long location) {
+            if (size == sequences.length) {
+                sequences = Arrays.copyOf(sequences, size * 2);
+                locations = Arrays.copyOf(locations, size * 2);
+            }
+            sequences[size] = sequence;
+            locations[size] = location;
+            size++;
+        }
+
+        // Drops entries in segments before firstOrdinal; returns true if none are left
+        boolean trim(int firstOrdinal) {
+            int drop = 0;
+            while (drop < size && (int) (locations[drop] >>> 32) < firstOrdinal) {
+                drop++;
+            }
+            if (drop > 0) {
+                System.arraycopy(sequences, drop, sequences, 0, size - drop);
+                System.arraycopy(locations, drop, locations, 0, size - drop);
+                size -= drop;
+                trimmed += drop;
+            }
+            return size == 0;
+        }
+
+        long end() {
+            return trimmed + size;
+        }
+
+        // Position of the first record with a sequence number above the given one
+        long after(long sequence) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sequences[mid] <= sequence) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return trimmed + low;
+        }
+    }
+
+    /**
+     * Opens the journal in directory, creating it if needed. Segments are segmentBytes long;
+     * retainBytes and retainMillis bound the journal's size and age, 0 meaning no limit.
+     */
+    MessageJournal(Path directory, int segmentBytes, long retainBytes, long retainMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retainBytes = retainBytes;
+        this.retainMillis = retainMillis;
+        Files.createDirectories(directory);
+        recover();
+        if (segments.isEmpty()) {
+            segments.add(createSegment(nextSequence));
+        }
+    }
+
+    // The server-wide journal, configured from server.journal.* system properties on first use.
+    // Null when disabled with -Dserver.journal.enabled=false or when the directory cannot be opened.
+    static MessageJournal shared() {
+        if (!sharedOpened) {
+            synchronized (MessageJournal.class) {
+                if (!sharedOpened) {
+                    shared = openShared();
+                    sharedOpened = true;
+                }
+            }
+        }
+        return shared;
+    }
+
+    private static MessageJournal openShared() {
+        if (!Boolean.parseBoolean(System.getProperty("server.journal.enabled", "true"))) {
+            return null;
+        }
+        Path directory = Paths.get(System.getProperty("server.journal.dir", "journal"));
+        try {
+            MessageJournal journal = new MessageJournal(directory,
+                    Integer.getInteger("server.journal.segmentBytes", 16 * 1024 * 1024),
+                    Long.getLong("server.journal.retainBytes", 1024L * 1024 * 1024),
+                    Long.getLong("server.journal.retainMillis", 7L * 24 * 60 * 60 * 1000));
+            Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "message-journal-shutdown"));
+            return journal;
+        } catch (IOException e) {
+            System.err.println("Could not open message journal in " + directory + ", history is disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Rebuilds the indexes from the segment files; the newest segment becomes the active one
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort(null);
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            boolean active = i == files.size() - 1;
+            long fileSize = Files.size(file);
+            Segment segment;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                segment = active
+                        ? new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(fileSize, segmentBytes)))
+                        : new Segment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize));
+            }
+            segments.add(segment);
+            // Numbering goes on from the segment's first sequence number even if it holds no records, so numbers are
+            // never handed out twice after every record was deleted
+            String name = file.getFileName().toString();
+            nextSequence = Math.max(nextSequence, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            scan(segment, firstOrdinal + segments.size() - 1, active ? segment.map.capacity() : (int) fileSize);
+        }
+    }
+
+    // Indexes every intact record; a torn or corrupt record ends the segment
+    private void scan(Segment segment, int ordinal, int limit) {
+        ByteBuffer buffer = segment.map.duplicate();
+        int position = 0;
+        while (position + HEADER + FIXED_PAYLOAD <= limit) {
+            int length = buffer.getInt(position);
+            if (length < FIXED_PAYLOAD || position + HEADER + length > limit) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.limit(position + HEADER + length).position(position + HEADER));
+            buffer.clear();
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            int at = position + HEADER;
+            long sequence = buffer.getLong(at);
+            if (sequence < nextSequence) {
+                // Left over from before the segment was written over
+                break;
+            }
+            long timeMillis = buffer.getLong(at + 8);
+            int roomLength = buffer.getShort(at + 16) & 0xFFFF;
+            String room = string(buffer, at + FIXED_PAYLOAD, roomLength);
+            index(room).add(sequence, location(ordinal, position));
+            if (segment.firstAppendMillis == 0) {
+                segment.firstAppendMillis = timeMillis;
+            }
+            segment.lastAppendMillis = timeMillis;
+            nextSequence = sequence + 1;
+            position += HEADER + length;
+        }
+        segment.size = position;
+    }
+
+    private Segment createSegment(long baseSequence) throws IOException {
+        Path file = directory.resolve(String.format("%020d", baseSequence) + SUFFIX);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+        }
+    }
+
+    /**
+     * Appends one chat message and returns its sequence number, or -1 if it was not journaled
+     * (too large for a segment, journal closed, or an I/O error).
+     */
+    long append(String room, String sender, String text) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = FIXED_PAYLOAD + roomBytes.length + senderBytes.length + textBytes.length;
+        if (roomBytes.length > MAX_NAME_BYTES || senderBytes.length > MAX_NAME_BYTES || HEADER + length > segmentBytes) {
+            return -1;
+        }
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            if (closed) {
+                return -1;
+            }
+            Segment active = segments.get(segments.size() - 1);
+            if (active.size + HEADER + length > active.map.capacity()
+                    || (retainMillis > 0 && active.size > 0 && now - active.firstAppendMillis > retainMillis)) {
+                active = roll(active);
+                enforceRetention(now);
+            } else if (now - lastRetentionCheck >= RETENTION_CHECK_MILLIS) {
+                enforceRetention(now);
+            }
+            long sequence = nextSequence++;
+            int position = active.size;
+            ByteBuffer buffer = active.map.duplicate();
+            buffer.position(position + HEADER);
+            buffer.putLong(sequence).putLong(now)
+                    .putShort((short) roomBytes.length).putShort((short) senderBytes.length)
+                    .put(roomBytes).put(senderBytes).put(textBytes);
+            crc.reset();
+            crc.update(buffer.flip().position(position + HEADER));
+            buffer.clear();
+            buffer.putInt(position + 4, (int) crc.getValue());
+            // The length goes in last, so a record is never seen half written
+            buffer.putInt(position, length);
+            active.size += HEADER + length;
+            if (active.firstAppendMillis == 0) {
+                active.firstAppendMillis = now;
+            }
+            active.lastAppendMillis = now;
+            index(room).add(sequence, location(firstOrdinal + segments.size() - 1, position));
+            return sequence;
+        } catch (IOException e) {
+            System.err.println("Could not append to message journal: " + e.getMessage());
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Seals the active segment, trimming its file to the records it holds, and starts a new one
+    private Segment roll(Segment active) throws IOException {
+        active.map.force();
+        try (FileChannel channel = FileChannel.open(active.file, StandardOpenOption.WRITE)) {
+            channel.truncate(active.size);
+        }
+        Segment next = createSegment(nextSequence);
+        segments.add(next);
+        return next;
+    }
+
+    // Deletes the oldest sealed segments while the journal is over its size or age limit.
+    // The mappings of deleted segments are released by the garbage collector.
+    private void enforceRetention(long now) {
+        lastRetentionCheck = now;
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.size;
+        }
+        int dropped = 0;
+        while (segments.size() - dropped > 1) {
+            Segment oldest = segments.get(dropped);
+            boolean tooBig = retainBytes > 0 && total > retainBytes;
+            boolean tooOld = retainMillis > 0 && now - oldest.lastAppendMillis > retainMillis;
+            if (!tooBig && !tooOld) {
+                break;
+            }
+            total -= oldest.size;
+            dropped++;
+            try {
+                Files.deleteIfExists(oldest.file);
+            } catch (IOException e) {
+                System.err.println("Could not delete journal segment " + oldest.file + ": " + e.getMessage());
+            }
+        }
+        if (dropped == 0) {
+            return;
+        }
+        segments.subList(0, dropped).clear();
+        firstOrdinal += dropped;
+        Iterator<RoomIndex> rooms = indexes.values().iterator();
+        while (rooms.hasNext()) {
+            if (rooms.next().trim(firstOrdinal)) {
+                rooms.remove();
+            }
+        }
+    }
+
+    private RoomIndex index(String room) {
+        return indexes.computeIfAbsent(room, key -> new RoomIndex());
+    }
+
+    private static long location(int ordinal, int position) {
+        return ((long) ordinal << 32) | position;
+    }
+
+    private static String string(ByteBuffer buffer, int at, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(at, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // The newest count messages of the room, oldest first
+    Cursor last(String room, int count) {
+        lock.lock();
+        try {
+            RoomIndex index = indexes.get(room);
+            long end = index == null ? 0 : index.end();
+            long start = index == null ? 0 : Math.max(index.trimmed, end - count);
+            return new Cursor(room, start, end);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Up to count messages of the room with sequence numbers above the given one, oldest first
+    Cursor since(String room, long sequence, int count) {
+        lock.lock();
+        try {
+            RoomIndex index = indexes.get(room);
+            long start = index == null ? 0 : index.after(sequence);
+            long end = index == null ? 0 : Math.min(index.end(), start + count);
+            return new Cursor(room, start, end);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The room's messages with sequence numbers above the given one, up to count of them, oldest first
+    Records records(String room, long sequence, int count) {
+        lock.lock();
+        try {
+            RoomIndex index = indexes.get(room);
+            long start = index == null ? 0 : index.after(sequence);
+            long end = index == null ? 0 : Math.min(index.end(), start + count);
+            return new Records(room, start, end);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // How many of the room's messages have sequence numbers above the given one
+    int countAfter(String room, long sequence) {
+        lock.lock();
+        try {
+            RoomIndex index = indexes.get(room);
+            return index == null ? 0 : (int) (index.end() - index.after(sequence));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sequence number the next message will get
+    long nextSequence() {
+        lock.lock();
+        try {
+            return nextSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int segmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Reads the next record into records; false once they are exhausted or their records were deleted
+    private boolean read(Records records) {
+        lock.lock();
+        try {
+            RoomIndex index = indexes.get(records.room);
+            if (closed || index == null) {
+                return false;
+            }
+            // Records deleted by retention since the range was taken are skipped
+            long position = Math.max(records.position, index.trimmed);
+            if (position >= records.end || position >= index.end()) {
+                return false;
+            }
+            long location = index.locations[(int) (position - index.trimmed)];
+            Segment segment = segments.get((int) (location >>> 32) - firstOrdinal);
+            ByteBuffer buffer = segment.map.duplicate();
+            int at = (int) location + HEADER;
+            int length = buffer.getInt((int) location);
+            int roomLength = buffer.getShort(at + 16) & 0xFFFF;
+            int senderLength = buffer.getShort(at + 18) & 0xFFFF;
+            int textAt = at + FIXED_PAYLOAD + roomLength + senderLength;
+            records.sequence = buffer.getLong(at);
+            records.timeMillis = buffer.getLong(at + 8);
+            records.sender = string(buffer, at + FIXED_PAYLOAD + roomLength, senderLength);
+            records.text = string(buffer, textAt, at + length - textAt);
+            records.position = position + 1;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A range of one room's records, read one at a time with advance(), for callers that send them in a form of
+    // their own
+    class Records {
+        final String room;
+        private long position;
+        // Fixed when the range is taken; messages appended later are not part of it
+        private final long end;
+        private long sequence;
+        private long timeMillis;
+        private String sender;
+        private String text;
+
+        private Records(String room, long position, long end) {
+            this.room = room;
+            this.position = position;
+            this.end = end;
+        }
+
+        // Moves to the next record; false once there are none left
+        boolean advance() {
+            return read(this);
+        }
+
+        long sequence() {
+            return sequence;
+        }
+
+        long timeMillis() {
+            return timeMillis;
+        }
+
+        String sender() {
+            return sender;
+        }
+
+        String text() {
+            return text;
+        }
+    }
+
+    /**
+     * A replay of one room's history, read lazily by the session's outbound drain so it moves
+     * only as fast as the client takes it. Each message is sent as "HISTORY <sequence> <line>",
+     * where line is the form the message had when it was sent live, followed by
+     * "HISTORY_END <count>".
+     */
+    final class Cursor extends Records implements OutboundQueue.Replay {
+        private int replayed;
+        private boolean finished;
+
+        private Cursor(String room, long position, long end) {
+            super(room, position, end);
+        }
+
+        @Override
+        public OutboundMessage next() {
+            if (finished) {
+                return null;
+            }
+            if (!advance()) {
+                finished = true;
+                return OutboundMessage.of("HISTORY_END " + replayed);
+            }
+            replayed++;
+            String line = RoomRegistry.LOBBY.equals(room) ? sender() + ": " + text() : "#" + room + " " + sender() + ": " + text();
+            return OutboundMessage.of("HISTORY " + sequence() + " " + line);
+        }
+
+        @Override
+        public boolean finished() {
+            return finished;
+        }
+    }
+
+    // Flushes the active segment; later appends are refused
+    void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            segments.get(segments.size() - 1).map.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import metrics.Histogram;
+
+/**
+ * Asynchronous audit log. Handlers only enqueue entries; a single writer thread formats them,
+ * batches them into one long-lived file channel and forces the file to disk at most once per
+ * fsync interval. When the queue is full the configured backpressure policy decides whether
+ * the caller drops the entry, waits for space, or keeps only a sample of the overflow.
+ */
+public final class MessageLog {
+
+    public enum BackpressurePolicy {
+        // Discard entries that do not fit
+        DROP,
+        // Wait for the writer to make room
+        BLOCK,
+        // Once the queue is half full, keep only one entry in every sampleRate
+        SAMPLE
+    }
+
+    private static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
+    private static final byte[] INCOMING = " [INCOMING] ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OUTGOING = " [OUTGOING] ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    // Entries written per pass before the writer checks whether an fsync is due
+    private static final int MAX_BATCH = 4096;
+
+    private static volatile MessageLog shared;
+
+    private final Path file;
+    private final MpscBoundedQueue<Entry> queue;
+    private final long fsyncIntervalNanos;
+    private final BackpressurePolicy policy;
+    private final int sampleRate;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final AtomicLong sampleCounter = new AtomicLong();
+    // Nanoseconds from log() to the entry's batch reaching the file channel
+    private final Histogram writeLatency = new Histogram();
+    private final Thread writerThread;
+    private volatile boolean running = true;
+    // Set while the writer is about to park or parked with nothing queued, so a producer knows to wake it
+    private volatile boolean writerIdle;
+
+    // The logged text is prefix, then subject and ": " if there is a subject, then message; the writer
+    // thread puts it together, so the thread that logs does not build a string per entry
+    private static final class Entry {
+        final long timeMillis;
+        final long enqueuedNanos;
+        final boolean incoming;
+        final String prefix;
+        final String subject;
+        final String message;
+
+        Entry(long timeMillis, boolean incoming, String prefix, String subject, String message) {
+            this.timeMillis = timeMillis;
+            this.enqueuedNanos = System.nanoTime();
+            this.incoming = incoming;
+            this.prefix = prefix;
+            this.subject = subject;
+            this.message = message;
+        }
+    }
+
+    public MessageLog(Path file, int capacity, long fsyncIntervalMillis, BackpressurePolicy policy, int sampleRate) {
+        this.file = file;
+        this.queue = new MpscBoundedQueue<>(capacity);
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.policy = policy;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.writerThread = new Thread(this::writeLoop, "message-log-writer");
+        this.writerThread.setDaemon(true);
+    }
+
+    // The server-wide log, configured from server.log.* system properties on first use
+    public static MessageLog shared() {
+        MessageLog log = shared;
+        if (log == null) {
+            synchronized (MessageLog.class) {
+                log = shared;
+                if (log == null) {
+                    log = new MessageLog(
+                            Paths.get(System.getProperty("server.log.file", "server_log.txt")),
+                            Integer.getInteger("server.log.capacity", 65536),
+                            Long.getLong("server.log.fsyncMillis", 1000L),
+                            BackpressurePolicy.valueOf(System.getProperty("server.log.policy", "DROP").toUpperCase()),
+                            Integer.getInteger("server.log.sampleRate", 10));
+                    log.start();
+                    MessageLog started = log;
+                    Runtime.getRuntime().addShutdownHook(new Thread(started::close, "message-log-shutdown"));
+                    shared = log;
+                }
+            }
+        }
+        return log;
+    }
+
+    public void start() {
+        writerThread.start();
+    }
+
+    public void log(String message, boolean isIncoming) {
+        log("", null, message, isIncoming);
+    }
+
+    // Logs prefix + subject + ": " + message, or prefix + message without a subject
+    public void log(String prefix, String subject, String message, boolean isIncoming) {
+        if (!admit()) {
+            dropped.increment();
+            return;
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), isIncoming, prefix, subject, message);
+        if (queue.offer(entry)) {
+            if (writerIdle) {
+                LockSupport.unpark(writerThread);
+            }
+            return;
+        }
+        switch (policy) {
+            case BLOCK:
+                while (!queue.offer(entry)) {
+                    if (!running) {
+                        dropped.increment();
+                        return;
+                    }
+                    LockSupport.parkNanos(50_000);
+                }
+                return;
+            case SAMPLE:
+            case DROP:
+            default:
+                dropped.increment();
+        }
+    }
+
+    // SAMPLE only: decide before enqueueing so the queue keeps headroom for the sampled entries
+    private boolean admit() {
+        if (policy != BackpressurePolicy.SAMPLE || queue.size() < queue.capacity() / 2) {
+            return true;
+        }
+        return sampleCounter.incrementAndGet() % sampleRate == 0;
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    public long writtenCount() {
+        return written.sum();
+    }
+
+    Histogram writeLatency() {
+        return writeLatency;
+    }
+
+    // Stops the writer after everything already queued has been written and synced
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Could not open log file " + file + ": " + e.getMessage());
+            discardUntilStopped();
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        Timestamp timestamp = new Timestamp();
+        long[] enqueuedAt = new long[MAX_BATCH];
+        boolean unsynced = false;
+        long lastSync = System.nanoTime();
+        try {
+            while (true) {
+                boolean stopping = !running;
+                int batch = 0;
+                Entry entry;
+                while (batch < MAX_BATCH && (entry = queue.poll()) != null) {
+                    enqueuedAt[batch] = entry.enqueuedNanos;
+                    write(channel, buffer, entry, timestamp);
+                    batch++;
+                }
+                if (batch > 0) {
+                    drain(channel, buffer);
+                    written.add(batch);
+                    long writtenAt = System.nanoTime();
+                    for (int i = 0; i < batch; i++) {
+                        writeLatency.record(writtenAt - enqueuedAt[i]);
+                    }
+                    unsynced = true;
+                }
+                long now = System.nanoTime();
+                if (unsynced && (stopping || now - lastSync >= fsyncIntervalNanos)) {
+                    channel.force(false);
+                    unsynced = false;
+                    lastSync = now;
+                }
+                if (stopping) {
+                    break;
+                }
+                if (batch < MAX_BATCH) {
+                    // An idle server leaves the writer parked until something is logged, or until the next fsync is due
+                    awaitEntries(unsynced ? lastSync + fsyncIntervalNanos - now : 0);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing log file " + file + ": " + e.getMessage());
+            discardUntilStopped();
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing log file " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // "yyyy/MM/dd HH:mm:ss [INCOMING] text" and a line separator, encoded straight into the buffer
+    private static void write(FileChannel channel, ByteBuffer buffer, Entry entry, Timestamp timestamp) throws IOException {
+        byte[] time = timestamp.bytes(entry.timeMillis);
+        // At most three bytes per char
+        int worst = time.length + INCOMING.length + LINE_SEPARATOR.length
+                + 3 * (entry.prefix.length() + entry.message.length() + (entry.subject == null ? 0 : entry.subject.length() + 2));
+        if (worst > buffer.remaining()) {
+            drain(channel, buffer);
+        }
+        if (worst > buffer.capacity()) {
+            // Too long for the buffer at all; rare enough to build as a string
+            String text = timestamp.format(entry.timeMillis) + (entry.incoming ? " [INCOMING] " : " [OUTGOING] ") + entry.prefix
+                    + (entry.subject == null ? "" : entry.subject + ": ") + entry.message + System.lineSeparator();
+            ByteBuffer bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            return;
+        }
+        buffer.put(time);
+        buffer.put(entry.incoming ? INCOMING : OUTGOING);
+        put(buffer, entry.prefix);
+        if (entry.subject != null) {
+            put(buffer, entry.subject);
+            buffer.put((byte) ':').put((byte) ' ');
+        }
+        put(buffer, entry.message);
+        buffer.put(LINE_SEPARATOR);
+    }
+
+    // UTF-8 without a temporary byte array; the caller made room for three bytes per char
+    private static void put(ByteBuffer buffer, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6))).put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18))).put((byte) (0x80 | ((codePoint >> 12) & 0x3F)))
+                        .put((byte) (0x80 | ((codePoint >> 6) & 0x3F))).put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3F))).put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /** The formatted time of the last second logged, so only the first entry of each second formats one. */
+    static final class Timestamp {
+        private long second = Long.MIN_VALUE;
+        private byte[] bytes;
+        private String text;
+
+        byte[] bytes(long timeMillis) {
+            long current = Math.floorDiv(timeMillis, 1000);
+            if (current != second) {
+                text = LocalDateTime.ofInstant(Instant.ofEpochMilli(timeMillis), ZoneId.systemDefault()).format(dtf);
+                bytes = text.getBytes(StandardCharsets.UTF_8);
+                second = current;
+            }
+            return bytes;
+        }
+
+        String format(long timeMillis) {
+            bytes(timeMillis);
+            return text;
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Keeps producers from blocking forever once the file is unusable
+    private void discardUntilStopped() {
+        while (running) {
+            while (queue.poll() != null) {
+                dropped.increment();
+            }
+            awaitEntries(0);
+        }
+    }
+
+    // Parks the writer until an entry is queued, close() is called or, if timeoutNanos is positive, that much time
+    // has passed. The flag is set before the queue is checked and read by producers after they queue, so an entry
+    // queued meanwhile is either seen here or wakes the writer.
+    private void awaitEntries(long timeoutNanos) {
+        writerIdle = true;
+        if (running && queue.size() == 0) {
+            if (timeoutNanos > 0) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        writerIdle = false;
+    }
+}
@@ -0,0 +1,265 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One selector thread serving many sessions. All channel reads and writes for a session happen on
+// the loop that owns it; other threads only hand work over via queues, and the commands read are
+// handled off the loop (see NioSession). A session or task that fails is dropped on its own, so
+// the loop carries on for everyone else.
+final class NioEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    // Size of the pooled buffers that hold a line spanning reads; longer ones get a buffer of their own
+    static final int LINE_BUFFER_SIZE = 512;
+    // Most spare in-flight deques and line buffers the loop keeps for its sessions
+    private static final int SPARES = Integer.getInteger("server.nio.spares", 64);
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Map<String, ServerHandler> clients;
+    private final RoomRegistry rooms;
+    private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<NioSession> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    // Sessions holding messages for a batched write, soonest first (loop thread only)
+    private final PriorityQueue<DelayedFlush> delayedFlushes = new PriorityQueue<>();
+    // Shared by every session on this loop; reads are processed to completion before the next one
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // Outbound messages are copied here and written with one call per flush
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    // Handed back by sessions that went idle, so an idle session holds neither (loop thread only)
+    private final ArrayDeque<ArrayDeque<OutboundMessage>> spareInFlight = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> spareLineBuffers = new ArrayDeque<>();
+    private volatile boolean running = true;
+
+    NioEventLoop(int index, Map<String, ServerHandler> clients, RoomRegistry rooms) throws IOException {
+        this.selector = Selector.open();
+        this.clients = clients;
+        this.rooms = rooms;
+        this.thread = new Thread(this, "nio-loop-" + index);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void register(SocketChannel channel) {
+        pendingRegistrations.add(channel);
+        selector.wakeup();
+    }
+
+    void requestFlush(NioSession session) {
+        pendingFlushes.add(session);
+        selector.wakeup();
+    }
+
+    private static final class DelayedFlush implements Comparable<DelayedFlush> {
+        final NioSession session;
+        final long dueNanos;
+
+        DelayedFlush(NioSession session, long dueNanos) {
+            this.session = session;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public int compareTo(DelayedFlush other) {
+            return Long.compare(dueNanos - other.dueNanos, 0);
+        }
+    }
+
+    // Loop thread only: flushes the session again after the delay
+    void flushAfter(NioSession session, long delayNanos) {
+        delayedFlushes.add(new DelayedFlush(session, System.nanoTime() + delayNanos));
+    }
+
+    // Loop thread only: a deque for the messages of one flush, back to the loop once everything is written
+    ArrayDeque<OutboundMessage> takeInFlight() {
+        ArrayDeque<OutboundMessage> deque = spareInFlight.poll();
+        return deque != null ? deque : new ArrayDeque<>();
+    }
+
+    void giveBack(ArrayDeque<OutboundMessage> inFlight) {
+        if (spareInFlight.size() < SPARES) {
+            spareInFlight.add(inFlight);
+        }
+    }
+
+    // Loop thread only: a LINE_BUFFER_SIZE buffer for an unfinished line, back to the loop once it is complete
+    byte[] takeLineBuffer() {
+        byte[] buffer = spareLineBuffers.poll();
+        return buffer != null ? buffer : new byte[LINE_BUFFER_SIZE];
+    }
+
+    void giveBack(byte[] lineBuffer) {
+        if (lineBuffer.length == LINE_BUFFER_SIZE && spareLineBuffers.size() < SPARES) {
+            spareLineBuffers.add(lineBuffer);
+        }
+    }
+
+    // Runs a task on the loop thread, for work that must not race with the loop's own I/O
+    void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                DelayedFlush soonest = delayedFlushes.peek();
+                if (soonest == null) {
+                    selector.select();
+                } else {
+                    long waitNanos = soonest.dueNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos + 999_999)));
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                registerPending();
+                runPendingTasks();
+                flushPending();
+                flushDue();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioSession session = (NioSession) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            read(session);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.flush(writeBuffer);
+                        }
+                    } catch (CancelledKeyException e) {
+                        session.disconnected();
+                    } catch (RuntimeException e) {
+                        failed(session, e);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Event loop error: " + e.getMessage());
+            }
+        }
+        closeAll();
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pendingRegistrations.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioSession(channel, key, this, clients, rooms));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Could not register client channel: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Nothing left to release
+                }
+            }
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Event loop task failed: " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void flushPending() {
+        NioSession session;
+        while ((session = pendingFlushes.poll()) != null) {
+            flush(session);
+        }
+    }
+
+    private void flushDue() {
+        long now = System.nanoTime();
+        DelayedFlush due;
+        while ((due = delayedFlushes.peek()) != null && due.dueNanos - now <= 0) {
+            delayedFlushes.poll();
+            flush(due.session);
+        }
+    }
+
+    private void flush(NioSession session) {
+        try {
+            session.flush(writeBuffer);
+        } catch (RuntimeException e) {
+            failed(session, e);
+        }
+    }
+
+    // A bug hit while serving one session closes that session only
+    private void failed(NioSession session, RuntimeException e) {
+        System.err.println("Event loop error for client " + session.getUserID() + ", disconnecting: " + e);
+        e.printStackTrace();
+        try {
+            session.disconnected();
+        } catch (RuntimeException again) {
+            System.err.println("Could not disconnect client " + session.getUserID() + ": " + again);
+        }
+    }
+
+    private void read(NioSession session) {
+        readBuffer.clear();
+        int read;
+        try {
+            read = session.channel().read(readBuffer);
+        } catch (IOException e) {
+            session.disconnected();
+            return;
+        }
+        if (read < 0) {
+            session.disconnected();
+            return;
+        }
+        readBuffer.flip();
+        session.onBytes(readBuffer.array(), readBuffer.position(), readBuffer.limit());
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            Object attachment = key.attachment();
+            if (attachment instanceof NioSession) {
+                ((NioSession) attachment).disconnected();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing selector: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking server engine. Connections are accepted on the calling thread and spread
+ * round-robin over a small, fixed set of selector event loops, so an idle client costs a
+ * registered channel and a session object instead of a parked platform thread.
+ */
+public class NioServer {
+    private final int port;
+    private final Map<String, ServerHandler> clients;
+    private final RoomRegistry rooms;
+    private final int loopCount;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile ServerSocketChannel serverChannel;
+    private NioEventLoop[] loops;
+
+    public NioServer(int port, Map<String, ServerHandler> clients, int loopCount) {
+        this(port, clients, new RoomRegistry(), loopCount);
+    }
+
+    NioServer(int port, Map<String, ServerHandler> clients, RoomRegistry rooms, int loopCount) {
+        this.port = port;
+        this.clients = clients;
+        this.rooms = rooms;
+        this.loopCount = Math.max(1, loopCount);
+    }
+
+    // Binds the port and runs the accept loop on the calling thread until stop() is called
+    public void start() throws IOException {
+        running.set(true);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+
+        loops = new NioEventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new NioEventLoop(i, clients, rooms);
+            loops[i].start();
+        }
+
+        int next = 0;
+        try {
+            while (running.get()) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
+                    if (!running.get()) {
+                        break;
+                    }
+                    System.err.println("Exception accepting client connection: " + e.getMessage());
+                    continue;
+                }
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    public void stop() {
+        running.set(false);
+        ServerSocketChannel channel = serverChannel;
+        if (channel != null && channel.isOpen()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing server channel: " + e.getMessage());
+            }
+        }
+        if (loops != null) {
+            for (NioEventLoop loop : loops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    // The bound port, useful when the server was started on port 0
+    public int getLocalPort() {
+        ServerSocketChannel channel = serverChannel;
+        return channel == null ? -1 : channel.socket().getLocalPort();
+    }
+}
@@ -0,0 +1,394 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import protocol.BinaryProtocol;
+
+// A ServerHandler driven by an NioEventLoop instead of its own thread. Incoming bytes are split
+// into lines on the loop and fed, one session's lines in order, through the same login/command
+// code the blocking handler uses on a worker thread, since that code can wait on the disk or the
+// cluster. Between bursts a session holds no buffers: it takes them from its loop when bytes
+// arrive or messages are queued and hands them back once they are empty.
+final class NioSession extends ServerHandler {
+    // Guards against a client that never finishes a line or frame
+    private static final int MAX_PENDING_BYTES = BinaryProtocol.MAX_FRAME_LENGTH + 8;
+    // Logins, commands and the end of a session for every NIO session: on virtual threads where the JVM has
+    // them, otherwise on -Dserver.nio.workers platform threads, four per core by default since a cluster ID
+    // claim can keep one waiting for seconds
+    private static final ExecutorService workers = createWorkers();
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final NioEventLoop loop;
+    // Messages taken off the outbound queue whose bytes are not fully written yet; borrowed from the loop
+    // for a flush and null once everything is written (loop thread only)
+    private ArrayDeque<OutboundMessage> inFlight;
+    // Bytes of the first in-flight message already written to the channel
+    private int headOffset;
+    // Bytes of an unfinished line or frame, only held while one spans several reads
+    private byte[] partial;
+    private int partialLength;
+    private volatile boolean closed;
+    // Loop thread only: set once a login line took, and while a line sent before that is with a worker. The
+    // bytes after such a line wait, since whether they are lines or frames depends on how the login went.
+    private boolean loggedIn;
+    private boolean awaitingLogin;
+    // This session's work not yet taken by a worker, and whether a worker is on it; guarded by the deque
+    private final ArrayDeque<Runnable> work = new ArrayDeque<>();
+    private boolean working;
+
+    NioSession(SocketChannel channel, SelectionKey key, NioEventLoop loop,
+               Map<String, ServerHandler> clients, RoomRegistry rooms) {
+        super(channel.socket(), clients, rooms);
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    private static ExecutorService createWorkers() {
+        ExecutorService virtual = Server.newVirtualThreadExecutor();
+        if (virtual != null) {
+            return virtual;
+        }
+        AtomicInteger workerCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(Integer.getInteger("server.nio.workers", 4 * Runtime.getRuntime().availableProcessors()), task -> {
+            Thread thread = new Thread(task, "nio-worker-" + workerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Called on the loop thread with the bytes of one read
+    void onBytes(byte[] data, int offset, int limit) {
+        try {
+            if (partialLength == 0) {
+                int consumed = consume(data, offset, limit);
+                if (!closed && offset + consumed < limit) {
+                    appendPartial(data, offset + consumed, limit);
+                }
+            } else {
+                appendPartial(data, offset, limit);
+                consumePartial();
+            }
+        } catch (IOException e) {
+            System.err.println("Protocol error from client " + getUserID() + ": " + e.getMessage());
+            disconnected();
+            return;
+        }
+        if (!closed && partialLength > MAX_PENDING_BYTES) {
+            System.err.println("Message too long from client " + getUserID() + ", disconnecting");
+            disconnected();
+        }
+    }
+
+    // Loop thread: the worker is done with a line sent before login, so the bytes after it can be read now
+    private void loginLineHandled() {
+        awaitingLogin = false;
+        loggedIn = getUserID() != null;
+        if (closed || partialLength == 0) {
+            return;
+        }
+        try {
+            consumePartial();
+        } catch (IOException e) {
+            System.err.println("Protocol error from client " + getUserID() + ": " + e.getMessage());
+            disconnected();
+        }
+    }
+
+    private void consumePartial() throws IOException {
+        int consumed = consume(partial, 0, partialLength);
+        if (closed) {
+            return;
+        }
+        if (consumed == partialLength) {
+            releasePartial();
+        } else if (consumed > 0) {
+            System.arraycopy(partial, consumed, partial, 0, partialLength - consumed);
+            partialLength -= consumed;
+        }
+    }
+
+    // Hands every complete line or frame in the range to the session's worker and returns how many bytes that
+    // used. The session may switch to frames part way through, right after its ID line.
+    private int consume(byte[] data, int offset, int limit) throws IOException {
+        int position = offset;
+        while (position < limit && !closed && !awaitingLogin) {
+            if (binary) {
+                int size = BinaryProtocol.frameSize(data, position, limit);
+                if (size < 0) {
+                    break;
+                }
+                int opcodeAt = position + BinaryProtocol.headerSize(data, position);
+                if (data[opcodeAt] == BinaryProtocol.OP_LINE) {
+                    // Line breaks inside a frame separate commands, just as on the text protocol
+                    String text = new String(data, opcodeAt + 1, position + size - opcodeAt - 1, StandardCharsets.UTF_8);
+                    for (String line : BinaryProtocol.lines(text)) {
+                        onLine(line);
+                    }
+                }
+                position += size;
+            } else {
+                int newline = indexOf(data, position, limit, (byte) '\n');
+                if (newline < 0) {
+                    break;
+                }
+                onLine(decode(data, position, newline));
+                position = newline + 1;
+                awaitingLogin = !loggedIn;
+            }
+        }
+        return position - offset;
+    }
+
+    private static int indexOf(byte[] data, int from, int limit, byte value) {
+        for (int i = from; i < limit; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Loop thread: queues the line for the worker; a login line is also followed by the go-ahead to read on
+    private void onLine(String line) {
+        boolean login = !loggedIn;
+        runInOrder(() -> {
+            if (!closed) {
+                if (getUserID() == null) {
+                    handleLogin(line);
+                } else if (!handleCommand(line)) {
+                    loop.execute(this::disconnected);
+                }
+            }
+            if (login) {
+                loop.execute(this::loginLineHandled);
+            }
+        });
+    }
+
+    // Runs the session's tasks one at a time and in order on a worker. A task that fails ends only this session.
+    private void runInOrder(Runnable task) {
+        synchronized (work) {
+            work.add(task);
+            if (working) {
+                return;
+            }
+            working = true;
+        }
+        workers.execute(this::work);
+    }
+
+    private void work() {
+        while (true) {
+            Runnable task;
+            synchronized (work) {
+                task = work.poll();
+                if (task == null) {
+                    working = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error handling client " + getUserID() + ": " + e);
+                e.printStackTrace();
+                loop.execute(this::disconnected);
+            }
+        }
+    }
+
+    private static String decode(byte[] data, int start, int end) {
+        if (end > start && data[end - 1] == '\r') {
+            end--;
+        }
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private void appendPartial(byte[] data, int start, int end) {
+        int length = end - start;
+        if (partial == null) {
+            partial = length <= NioEventLoop.LINE_BUFFER_SIZE ? loop.takeLineBuffer() : new byte[length];
+        } else if (partialLength + length > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+        }
+        System.arraycopy(data, start, partial, partialLength, length);
+        partialLength += length;
+    }
+
+    private void releasePartial() {
+        if (partial != null) {
+            loop.giveBack(partial);
+        }
+        partial = null;
+        partialLength = 0;
+    }
+
+    @Override
+    void scheduleDrain() {
+        loop.requestFlush(this);
+    }
+
+    @Override
+    void disconnectSlowConsumer() {
+        System.err.println("Disconnecting slow consumer " + getUserID());
+        loop.execute(this::disconnected);
+    }
+
+    @Override
+    void reap() {
+        loop.execute(this::disconnected);
+    }
+
+    // Loop thread only: copies pending messages into the loop's shared buffer and writes as much as
+    // the socket accepts, then waits for OP_WRITE if anything is left
+    void flush(ByteBuffer scratch) {
+        if (closed) {
+            return;
+        }
+        if (inFlight == null) {
+            inFlight = loop.takeInFlight();
+        }
+        try {
+            while (true) {
+                if (batching != null && holdForBatch()) {
+                    return;
+                }
+                scratch.clear();
+                int offset = headOffset;
+                for (OutboundMessage message : inFlight) {
+                    offset += message.copyTo(scratch, offset, binary);
+                    if (offset < message.length(binary)) {
+                        break;
+                    }
+                    offset = 0;
+                }
+                OutboundMessage next;
+                while (scratch.hasRemaining() && (next = outbound.poll()) != null) {
+                    OutboundMessage binding = bindingFor(next);
+                    if (binding != null) {
+                        inFlight.add(binding);
+                        if (binding.copyTo(scratch, 0, true) < binding.length(true)) {
+                            inFlight.add(next);
+                            break;
+                        }
+                    }
+                    inFlight.add(next);
+                    next.copyTo(scratch, 0, binary);
+                }
+                if (scratch.position() == 0) {
+                    if (outbound.finishDrain()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        releaseInFlight();
+                        return;
+                    }
+                    continue;
+                }
+                scratch.flip();
+                metrics.wrote(advance(channel.write(scratch)));
+                if (batching != null) {
+                    batching.wrote(System.nanoTime());
+                }
+                if (scratch.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException | CancelledKeyException e) {
+            disconnected();
+        }
+    }
+
+    // Batching only: takes queued messages in flight up to the byte threshold and returns true if the policy
+    // wants to wait for more, in which case the loop flushes again once the window is over. A socket that is
+    // already backed up is never held.
+    private boolean holdForBatch() {
+        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            return false;
+        }
+        int heldBytes = -headOffset;
+        for (OutboundMessage message : inFlight) {
+            heldBytes += message.length(binary);
+        }
+        OutboundMessage next;
+        while (heldBytes < batching.maxBytes() && (next = outbound.poll()) != null) {
+            OutboundMessage binding = bindingFor(next);
+            if (binding != null) {
+                inFlight.add(binding);
+                heldBytes += binding.length(true);
+            }
+            inFlight.add(next);
+            heldBytes += next.length(binary);
+        }
+        if (inFlight.isEmpty()) {
+            return false;
+        }
+        long wait = batching.delayNanos(heldBytes, System.nanoTime());
+        if (wait == 0) {
+            return false;
+        }
+        loop.flushAfter(this, wait);
+        return true;
+    }
+
+    // Drops fully written messages from the queue and remembers how far into the next one we got; returns how
+    // many were finished
+    private int advance(int written) {
+        int finished = 0;
+        while (written > 0) {
+            OutboundMessage head = inFlight.peek();
+            int left = head.length(binary) - headOffset;
+            if (written >= left) {
+                inFlight.poll();
+                headOffset = 0;
+                written -= left;
+                finished++;
+            } else {
+                headOffset += written;
+                written = 0;
+            }
+        }
+        return finished;
+    }
+
+    // Loop thread: stops reading and writing at once; the session is ended on the worker, after the command it
+    // may be running, since leaving rooms and the cluster can wait on the disk or a peer
+    void disconnected() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        releasePartial();
+        if (!resumable()) {
+            outbound.clear();
+        }
+        releaseInFlight();
+        runInOrder(this::connectionLost);
+    }
+
+    private void releaseInFlight() {
+        if (inFlight != null) {
+            inFlight.clear();
+            loop.giveBack(inFlight);
+            inFlight = null;
+        }
+        headOffset = 0;
+    }
+}
@@ -0,0 +1,148 @@
+package server;
+
+/**
+ * What a line from a registered client asks for. {@link #of} finds it by looking at the line in
+ * place, by its first character and then one keyword comparison; only a line that starts with a
+ * keyword taking arguments is cut up, to check that they have the command's exact shape, so
+ * chat such as "HISTORY is fun" or "JOIN the club" stays chat. handleCommand then switches on
+ * the result. Each opcode also says how it is counted in the metrics and which rate budget it is
+ * charged to, if any.
+ */
+enum Opcode {
+    QUIT("QUIT", true, false, ServerMetrics.Command.QUIT, null),
+    REQUEST_DETAILS("REQUEST_DETAILS", true, false, ServerMetrics.Command.REQUEST_DETAILS, RateLimiter.Traffic.REQUEST_DETAILS),
+    APPROVE_DETAILS("APPROVE_DETAILS", false, true, ServerMetrics.Command.APPROVE_DETAILS, null),
+    DENY_DETAILS("DENY_DETAILS", false, true, ServerMetrics.Command.DENY_DETAILS, null),
+    PING_MEMBERS("PING_MEMBERS", true, false, ServerMetrics.Command.PING_MEMBERS, RateLimiter.Traffic.PING_MEMBERS),
+    PONG("PONG", true, false, ServerMetrics.Command.PONG, null),
+    JOIN("JOIN", false, true, ServerMetrics.Command.JOIN, null),
+    LEAVE("LEAVE", false, true, ServerMetrics.Command.LEAVE, null),
+    ROOMS("ROOMS", true, false, ServerMetrics.Command.LIST_ROOMS, null),
+    HISTORY("HISTORY", false, true, ServerMetrics.Command.HISTORY, null),
+    MEMBERS("MEMBERS", true, true, ServerMetrics.Command.MEMBERS, null),
+    // "@user text"
+    PRIVATE("@", false, true, ServerMetrics.Command.PRIVATE, RateLimiter.Traffic.PRIVATE),
+    // "#room text"
+    ROOM_CHAT("#", false, true, ServerMetrics.Command.CHAT, RateLimiter.Traffic.CHAT),
+    // Anything else is chat in the current room
+    CHAT("", false, true, ServerMetrics.Command.CHAT, RateLimiter.Traffic.CHAT);
+
+    final String keyword;
+    // Whether the keyword may stand alone, and whether a space and an argument may follow it
+    private final boolean bare;
+    private final boolean withArgument;
+    final ServerMetrics.Command counted;
+    // Null for lines that are never rate limited
+    final RateLimiter.Traffic traffic;
+
+    Opcode(String keyword, boolean bare, boolean withArgument, ServerMetrics.Command counted, RateLimiter.Traffic traffic) {
+        this.keyword = keyword;
+        this.bare = bare;
+        this.withArgument = withArgument;
+        this.counted = counted;
+        this.traffic = traffic;
+    }
+
+    static Opcode of(String line) {
+        if (line.isEmpty()) {
+            return CHAT;
+        }
+        switch (line.charAt(0)) {
+            case '@':
+                return PRIVATE;
+            case '#':
+                return ROOM_CHAT;
+            case 'A':
+                return APPROVE_DETAILS.orChat(line);
+            case 'D':
+                return DENY_DETAILS.orChat(line);
+            case 'H':
+                return HISTORY.orChat(line);
+            case 'J':
+                return JOIN.orChat(line);
+            case 'L':
+                return LEAVE.orChat(line);
+            case 'M':
+                return MEMBERS.orChat(line);
+            case 'P':
+                return PONG.matches(line) ? PONG : PING_MEMBERS.orChat(line);
+            case 'Q':
+                return QUIT.orChat(line);
+            case 'R':
+                return ROOMS.matches(line) ? ROOMS : REQUEST_DETAILS.orChat(line);
+            default:
+                return CHAT;
+        }
+    }
+
+    // Where the argument starts: after the keyword and its space, or after the sigil for @user and #room.
+    // Past the end of the line when there is none.
+    int argumentStart() {
+        return keyword.length() <= 1 ? keyword.length() : keyword.length() + 1;
+    }
+
+    private boolean matches(String line) {
+        int length = keyword.length();
+        if (!line.startsWith(keyword)) {
+            return false;
+        }
+        if (line.length() == length) {
+            return bare;
+        }
+        return withArgument && line.charAt(length) == ' ';
+    }
+
+    private Opcode orChat(String line) {
+        return matches(line) && argumentsFit(line) ? this : CHAT;
+    }
+
+    // Whether what follows the keyword has the shape the command takes. The words are only checked for their
+    // form; a room that does not exist, for instance, is still the command's to report.
+    private boolean argumentsFit(String line) {
+        String arguments = line.substring(Math.min(argumentStart(), line.length())).trim();
+        if (arguments.isEmpty()) {
+            return bare;
+        }
+        String[] words = arguments.split("\\s+");
+        switch (this) {
+            case JOIN:
+            case LEAVE:
+                // "JOIN dev" or "JOIN #dev"
+                return words.length == 1 && !words[0].isEmpty();
+            case HISTORY: {
+                // "[#room] <count>" or "[#room] SINCE <sequence>"
+                int next = words[0].startsWith("#") ? 1 : 0;
+                if (words.length == next + 1) {
+                    return isNumber(words[next]);
+                }
+                return words.length == next + 2 && "SINCE".equalsIgnoreCase(words[next]) && isNumber(words[next + 1]);
+            }
+            case MEMBERS: {
+                // "[#room] [PREFIX <text>] [AFTER <userID>] [<count>]"
+                int next = words[0].startsWith("#") ? 1 : 0;
+                while (next < words.length) {
+                    if (("PREFIX".equalsIgnoreCase(words[next]) || "AFTER".equalsIgnoreCase(words[next])) && next + 1 < words.length) {
+                        next += 2;
+                    } else {
+                        return next == words.length - 1 && isNumber(words[next]);
+                    }
+                }
+                return true;
+            }
+            default:
+                return true;
+        }
+    }
+
+    private static boolean isNumber(String word) {
+        if (word.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (!Character.isDigit(word.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
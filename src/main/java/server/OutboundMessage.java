@@ -0,0 +1,137 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import protocol.BinaryProtocol;
+
+/**
+ * A protocol message encoded at most once per wire format, so the same bytes can be handed to
+ * every recipient of a broadcast without re-encoding or copying per client. The text form is
+ * the line plus its newline; the binary form is a frame that carries the sender as an index.
+ */
+final class OutboundMessage {
+    // Handshake replies are always sent as text, even to a session that is switching to frames
+    private static final byte HANDSHAKE = 0;
+
+    private final byte opcode;
+    private final int senderIndex;
+    private final String senderID;
+    private final String body;
+    private final String text;
+    private volatile byte[] textBytes;
+    private volatile byte[] binaryBytes;
+    // Lines the text form takes up, counted on first use
+    private volatile int lineCount;
+
+    private OutboundMessage(byte opcode, int senderIndex, String senderID, String body, String text) {
+        this.opcode = opcode;
+        this.senderIndex = senderIndex;
+        this.senderID = senderID;
+        this.body = body;
+        this.text = text;
+    }
+
+    static OutboundMessage of(String line) {
+        return new OutboundMessage(BinaryProtocol.OP_LINE, -1, null, line, line);
+    }
+
+    static OutboundMessage handshake(String line) {
+        return new OutboundMessage(HANDSHAKE, -1, null, line, line);
+    }
+
+    static OutboundMessage system(String message) {
+        return new OutboundMessage(BinaryProtocol.OP_SYSTEM, -1, null, message, "SYSTEM: " + message);
+    }
+
+    static OutboundMessage chat(int senderIndex, String senderID, String message) {
+        return new OutboundMessage(BinaryProtocol.OP_CHAT, senderIndex, senderID, message, senderID + ": " + message);
+    }
+
+    static OutboundMessage privateMessage(int senderIndex, String senderID, String message) {
+        return new OutboundMessage(BinaryProtocol.OP_PRIVATE, senderIndex, senderID, message, senderID + "(private): " + message);
+    }
+
+    // Chat in a room other than the lobby; the binary payload is the room name, a space, then the text
+    static OutboundMessage roomChat(int senderIndex, String senderID, String room, String message) {
+        return new OutboundMessage(BinaryProtocol.OP_ROOM_CHAT, senderIndex, senderID, room + " " + message,
+                "#" + room + " " + senderID + ": " + message);
+    }
+
+    // Tells a binary session which user ID an index stands for; never sent to text sessions
+    static OutboundMessage userBinding(int index, String userID) {
+        return new OutboundMessage(BinaryProtocol.OP_USER, index, userID, userID, userID);
+    }
+
+    String text() {
+        return text;
+    }
+
+    // 0 for a handshake reply, otherwise the BinaryProtocol opcode
+    byte opcode() {
+        return opcode;
+    }
+
+    boolean isHandshake() {
+        return opcode == HANDSHAKE;
+    }
+
+    // How many lines a text client reads for this message; more than one only if it contains newlines
+    int lineCount() {
+        int count = lineCount;
+        if (count == 0) {
+            count = 1;
+            for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+                count++;
+            }
+            lineCount = count;
+        }
+        return count;
+    }
+
+    // Index of the user this message is attributed to, or -1
+    int senderIndex() {
+        return senderIndex;
+    }
+
+    String senderID() {
+        return senderID;
+    }
+
+    // Encoded size in bytes for the given wire format
+    int length(boolean binary) {
+        return bytes(binary).length;
+    }
+
+    void writeTo(OutputStream out, boolean binary) throws IOException {
+        out.write(bytes(binary));
+    }
+
+    // Copies up to dst.remaining() bytes starting at offset; returns how many were copied
+    int copyTo(ByteBuffer dst, int offset, boolean binary) {
+        byte[] bytes = bytes(binary);
+        int count = Math.min(bytes.length - offset, dst.remaining());
+        dst.put(bytes, offset, count);
+        return count;
+    }
+
+    // Encoded lazily; two threads racing here just build identical arrays
+    private byte[] bytes(boolean binary) {
+        if (binary && opcode != HANDSHAKE) {
+            byte[] encoded = binaryBytes;
+            if (encoded == null) {
+                encoded = BinaryProtocol.encode(opcode, senderIndex, body);
+                binaryBytes = encoded;
+            }
+            return encoded;
+        }
+        byte[] encoded = textBytes;
+        if (encoded == null) {
+            encoded = (text + "\n").getBytes(StandardCharsets.UTF_8);
+            textBytes = encoded;
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,493 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-session queue of messages waiting to be written to one client. Senders only
+ * enqueue; a single drainer (a writer task or the session's event loop) takes messages off,
+ * so a client with a full TCP send buffer only ever delays its own queue. The first offer
+ * into an idle queue reports that a drain must be scheduled. A replay, such as a history
+ * request, is attached rather than queued: the drainer pulls its messages one at a time after
+ * whatever was already queued, so a long replay neither fills the queue nor is read faster than
+ * it is sent. Each pull runs outside the queue's lock, so a replay reading from disk never holds
+ * up senders. For a resumable session the queue also numbers the messages it hands to the
+ * writer and keeps the newest ones, so a reconnecting client can be sent what it missed.
+ * An idle queue holds next to nothing: the message deque is only allocated for a burst and is
+ * let go once a drain empties it if the burst made it grow, and the resume ring grows with use.
+ */
+final class OutboundQueue {
+
+    enum OverflowPolicy {
+        // Discard the oldest queued message to make room
+        DROP_OLDEST,
+        // Refuse the message and report that the consumer should be disconnected
+        DISCONNECT,
+        // Collapse the backlog into one "messages skipped" notice followed by the newest message
+        COALESCE
+    }
+
+    enum OfferResult {
+        // Queued; a drain is already in progress
+        QUEUED,
+        // Queued into an idle queue; the caller must schedule a drain
+        SCHEDULE_DRAIN,
+        // Full under the DISCONNECT policy; nothing was queued
+        OVERFLOW,
+        // Another replay is still running; nothing was attached
+        BUSY,
+        // The session was handed over to a resumed connection; nothing was queued
+        CLOSED
+    }
+
+    // Messages produced on demand by the drainer; next() returns null once the replay is over
+    interface Replay {
+        OutboundMessage next();
+
+        // True once next() has produced the last message, so the queue can take the next replay without waiting
+        // for the closing null
+        default boolean finished() {
+            return false;
+        }
+    }
+
+    // Slots a new message deque starts with; one that grew past them is dropped when a drain empties it
+    private static final int INITIAL_SLOTS = 8;
+    // Slots the resume ring starts with before doubling up to its capacity
+    private static final int INITIAL_RESUME_SLOTS = 8;
+
+    // Null while the queue is empty and the last burst outgrew the initial slots
+    private ArrayDeque<OutboundMessage> messages;
+    // Most messages queued at once since the deque was allocated
+    private int burstPeak;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when the drainer is done pulling from the replay
+    private final Condition pulledReplay = lock.newCondition();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private boolean draining;
+    private int highWaterMark;
+    private long dropped;
+    // COALESCE: the queued summary notice and how many messages it stands for
+    private OutboundMessage skippedNotice;
+    private long skipped;
+    private Replay replay;
+    // True while the drainer is pulling the replay's next message with the lock released
+    private boolean pulling;
+    // Queued messages that were offered before the replay and go out ahead of it
+    private int replayAfter;
+    private boolean closed;
+    // Set while a new session is being registered: messages queue up but nothing is drained until the
+    // handshake reply is offered, which then goes out ahead of them
+    private boolean held;
+    // Session resume: the newest messages handed to the writer, oldest at sentNext once the ring is full; null
+    // unless keepForResume was called. The ring starts small and doubles until it holds resumeCapacity.
+    private OutboundMessage[] sent;
+    private int sentNext;
+    private int resumeCapacity;
+    // Messages delivered before the oldest kept one, counted the way the client counts them; adding up the kept
+    // messages from there gives the delivery count each brought the client to
+    private long evictedThrough;
+    // Binary sessions count frames; text sessions count lines, and one message can be several
+    private boolean framed;
+
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    OfferResult offer(OutboundMessage message) {
+        lock.lock();
+        try {
+            if (closed) {
+                return OfferResult.CLOSED;
+            }
+            if (messages == null) {
+                messages = new ArrayDeque<>(INITIAL_SLOTS);
+                burstPeak = 0;
+            }
+            if (held && message.isHandshake()) {
+                held = false;
+                messages.addFirst(message);
+                if (replay != null) {
+                    replayAfter++;
+                }
+                return startDrain();
+            }
+            if (messages.size() >= capacity) {
+                switch (policy) {
+                    case DISCONNECT:
+                        dropped++;
+                        return OfferResult.OVERFLOW;
+                    case COALESCE:
+                        coalesce();
+                        break;
+                    case DROP_OLDEST:
+                    default:
+                        messages.poll();
+                        dropped++;
+                        if (replayAfter > 0) {
+                            replayAfter--;
+                        }
+                }
+            }
+            messages.add(message);
+            if (messages.size() > burstPeak) {
+                burstPeak = messages.size();
+                if (burstPeak > highWaterMark) {
+                    highWaterMark = burstPeak;
+                }
+            }
+            return startDrain();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    OfferResult replay(Replay source) {
+        lock.lock();
+        try {
+            if (closed) {
+                return OfferResult.CLOSED;
+            }
+            if (replay != null) {
+                return OfferResult.BUSY;
+            }
+            replay = source;
+            replayAfter = queued();
+            return startDrain();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private OfferResult startDrain() {
+        if (draining || held) {
+            return OfferResult.QUEUED;
+        }
+        draining = true;
+        return OfferResult.SCHEDULE_DRAIN;
+    }
+
+    // Keeps everything offered from now on queued until a handshake reply is offered, so a session other
+    // threads can already find is still told it was accepted before anything else
+    void hold() {
+        lock.lock();
+        try {
+            held = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void coalesce() {
+        for (OutboundMessage queued : messages) {
+            if (queued != skippedNotice) {
+                skipped++;
+            }
+        }
+        dropped += messages.size();
+        messages.clear();
+        replayAfter = 0;
+        skippedNotice = OutboundMessage.system(skipped + " messages were skipped because you were falling behind.");
+        messages.add(skippedNotice);
+    }
+
+    // Next message to write, or null when empty (the drain then stays scheduled)
+    OutboundMessage poll() {
+        return next(false);
+    }
+
+    // Next message to write; when the queue is empty this also ends the drain
+    OutboundMessage pollOrFinish() {
+        return next(true);
+    }
+
+    // A running replay follows the messages queued before it. Its next() may read a record from disk, so it is
+    // called with the lock released; only the drainer pulls, so no two calls overlap.
+    private OutboundMessage next(boolean finish) {
+        while (true) {
+            Replay source;
+            lock.lock();
+            try {
+                source = closed || replayAfter > 0 ? null : replay;
+                if (source == null) {
+                    return taken(take(), finish);
+                }
+                pulling = true;
+            } finally {
+                lock.unlock();
+            }
+            OutboundMessage message;
+            boolean over;
+            try {
+                message = source.next();
+                over = message == null || source.finished();
+            } catch (RuntimeException e) {
+                // A replay that failed is dropped rather than pulled again on the next drain
+                lock.lock();
+                try {
+                    endPull(source, true);
+                } finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+            lock.lock();
+            try {
+                boolean current = endPull(source, over);
+                if (closed) {
+                    // Handed over meanwhile: keeping the message as sent puts it among the ones the resumed
+                    // connection is given
+                    if (message != null && sent != null) {
+                        keepSent(message);
+                    }
+                    return taken(null, finish);
+                }
+                if (message != null && current) {
+                    return taken(message, finish);
+                }
+                // The replay ended, or was cleared while it was being read: go on with the queued messages
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Called with the lock held once a pull is over; returns whether the replay pulled from is still attached
+    private boolean endPull(Replay source, boolean over) {
+        pulling = false;
+        pulledReplay.signalAll();
+        boolean current = replay == source;
+        if (current && over) {
+            replay = null;
+        }
+        return current;
+    }
+
+    // Called with the lock held: keeps a message handed to the writer for resume, or ends the drain on an empty
+    // queue when asked to
+    private OutboundMessage taken(OutboundMessage message, boolean finish) {
+        if (message == null) {
+            if (finish) {
+                draining = false;
+                trim();
+            }
+            return null;
+        }
+        if (sent != null && !message.isHandshake()) {
+            keepSent(message);
+        }
+        return message;
+    }
+
+    // Ends the drain if nothing was queued in the meantime; returns false if the caller must keep going
+    boolean finishDrain() {
+        lock.lock();
+        try {
+            if (queued() > 0 || replay != null) {
+                return false;
+            }
+            draining = false;
+            trim();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Next queued message, when no replay is due
+    private OutboundMessage take() {
+        if (closed || messages == null) {
+            return null;
+        }
+        OutboundMessage message = messages.poll();
+        if (message != null && replayAfter > 0) {
+            replayAfter--;
+        }
+        if (message != null && message == skippedNotice) {
+            skippedNotice = null;
+            skipped = 0;
+        }
+        return message;
+    }
+
+    private int queued() {
+        return messages == null ? 0 : messages.size();
+    }
+
+    // Drain finished with nothing queued: lets go of a deque a burst made grow
+    private void trim() {
+        if (burstPeak > INITIAL_SLOTS) {
+            messages = null;
+        }
+    }
+
+    private void keepSent(OutboundMessage message) {
+        if (sent[sentNext] != null) {
+            if (sent.length < resumeCapacity) {
+                // Full for the first time at this size, so the ring is still in order: grow it instead of evicting
+                sentNext = sent.length;
+                sent = Arrays.copyOf(sent, Math.min(sent.length * 2, resumeCapacity));
+            } else {
+                evictedThrough += counted(sent[sentNext]);
+            }
+        }
+        sent[sentNext] = message;
+        sentNext = (sentNext + 1) % sent.length;
+    }
+
+    // How far a message brings the client's delivery count
+    private int counted(OutboundMessage message) {
+        return framed ? 1 : message.lineCount();
+    }
+
+    // Starts numbering delivered messages and keeping the newest capacity of them
+    void keepForResume(int capacity, long deliveredSoFar) {
+        lock.lock();
+        try {
+            resumeCapacity = Math.max(1, capacity);
+            sent = new OutboundMessage[Math.min(INITIAL_RESUME_SLOTS, resumeCapacity)];
+            sentNext = 0;
+            evictedThrough = deliveredSoFar;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setFramed(boolean framed) {
+        lock.lock();
+        try {
+            this.framed = framed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue of a session taken over by a resumed connection and attaches what that
+     * client still needs to the successor's queue as a replay, oldest first: the kept messages
+     * past the received count it reported, then everything still queued, with a running history
+     * replay or member listing carried on in its place among the queued messages. A notice goes
+     * first if some of the missed messages are no longer kept. Offers made afterwards report CLOSED, and
+     * since the replay is attached before this queue's lock is released, anything forwarded to
+     * the successor from then on follows it.
+     */
+    OfferResult handOver(long received, OutboundQueue successor) {
+        lock.lock();
+        try {
+            closed = true;
+            // A message being pulled from the replay is kept as sent once the pull is done
+            while (pulling) {
+                pulledReplay.awaitUninterruptibly();
+            }
+            List<OutboundMessage> missed = new ArrayList<>();
+            if (received < evictedThrough) {
+                missed.add(OutboundMessage.system("Some messages were lost while you were away."));
+            }
+            if (sent != null) {
+                long through = evictedThrough;
+                for (int i = 0; i < sent.length; i++) {
+                    OutboundMessage kept = sent[(sentNext + i) % sent.length];
+                    if (kept != null) {
+                        through += counted(kept);
+                        if (through > received) {
+                            missed.add(kept);
+                        }
+                    }
+                }
+            }
+            // Messages queued after the running replay started go out after the rest of it
+            List<OutboundMessage> later = new ArrayList<>();
+            if (messages != null) {
+                int before = replay == null ? messages.size() : replayAfter;
+                for (OutboundMessage queued : messages) {
+                    (before-- > 0 ? missed : later).add(queued);
+                }
+                messages = null;
+            }
+            Replay running = replay;
+            replay = null;
+            replayAfter = 0;
+            return successor.replay(new HandedOver(missed, running, later));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // What a resumed connection is sent first: the missed messages, the rest of the dropped connection's replay, then
+    // the messages queued behind that replay
+    private static final class HandedOver implements Replay {
+        private final Iterator<OutboundMessage> missed;
+        private Replay running;
+        private final Iterator<OutboundMessage> later;
+
+        HandedOver(List<OutboundMessage> missed, Replay running, List<OutboundMessage> later) {
+            this.missed = missed.iterator();
+            this.running = running;
+            this.later = later.iterator();
+        }
+
+        @Override
+        public OutboundMessage next() {
+            if (missed.hasNext()) {
+                return missed.next();
+            }
+            if (running != null) {
+                OutboundMessage message = running.next();
+                if (message == null || running.finished()) {
+                    running = null;
+                }
+                if (message != null) {
+                    return message;
+                }
+            }
+            return later.hasNext() ? later.next() : null;
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            messages = null;
+            skippedNotice = null;
+            skipped = 0;
+            replay = null;
+            replayAfter = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return queued();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int highWaterMark() {
+        lock.lock();
+        try {
+            return highWaterMark;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long droppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Admission control in front of command dispatch. Each kind of traffic that costs the server a
+ * fan-out or a coordinator's attention has its own budget, kept twice: per user, travelling with
+ * the session, and per source address, shared by every session from it. A line over either
+ * budget is shed before it is logged or dispatched. Budgets are "rate/burst" system properties,
+ * e.g. -Dserver.limit.chat=20/40 per user and -Dserver.limit.ip.chat=200/400 per address; a rate
+ * of 0 turns that budget off.
+ */
+final class RateLimiter {
+
+    enum Traffic {
+        // Plain and #room chat, which is fanned out to a whole room
+        CHAT("chat", "20/40", "200/400"),
+        PRIVATE("private", "20/40", "200/400"),
+        // Fanned out to a whole room as well
+        PING_MEMBERS("ping_members", "0.2/2", "1/5"),
+        // Each one interrupts the coordinator with a dialog
+        REQUEST_DETAILS("request_details", "0.2/2", "1/5");
+
+        final String key;
+        final double[] perUser;
+        final double[] perAddress;
+
+        Traffic(String key, String perUser, String perAddress) {
+            this.key = key;
+            this.perUser = parse(System.getProperty("server.limit." + key, perUser));
+            this.perAddress = parse(System.getProperty("server.limit.ip." + key, perAddress));
+        }
+    }
+
+    // Full address budgets are dropped this often, so the map only holds addresses that sent recently
+    private static final long SWEEP_MILLIS = 30_000;
+
+    private static volatile RateLimiter shared;
+
+    private final ConcurrentHashMap<String, Budget> byAddress = new ConcurrentHashMap<>();
+
+    /**
+     * One bucket per kind of traffic, or none where that budget is off. A user's buckets are only
+     * made when that kind of traffic is first sent, as a new bucket is a full one; an address's
+     * budget is shared between sessions and so has all of them from the start.
+     */
+    static final class Budget {
+        private final TokenBucket[] buckets = new TokenBucket[Traffic.values().length];
+        private final boolean perAddress;
+
+        private Budget(boolean perAddress, long now) {
+            this.perAddress = perAddress;
+            if (perAddress) {
+                for (Traffic traffic : Traffic.values()) {
+                    buckets[traffic.ordinal()] = bucket(traffic, now);
+                }
+            }
+        }
+
+        boolean tryTake(Traffic traffic, long now) {
+            TokenBucket bucket = buckets[traffic.ordinal()];
+            if (bucket == null && !perAddress) {
+                bucket = bucket(traffic, now);
+                buckets[traffic.ordinal()] = bucket;
+            }
+            return bucket == null || bucket.tryTake(now);
+        }
+
+        private TokenBucket bucket(Traffic traffic, long now) {
+            double[] limit = perAddress ? traffic.perAddress : traffic.perUser;
+            return limit[0] > 0 ? new TokenBucket(limit[0], (int) limit[1], now) : null;
+        }
+
+        boolean isFull(long now) {
+            for (TokenBucket bucket : buckets) {
+                if (bucket != null && !bucket.isFull(now)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static RateLimiter shared() {
+        RateLimiter limiter = shared;
+        if (limiter == null) {
+            synchronized (RateLimiter.class) {
+                limiter = shared;
+                if (limiter == null) {
+                    limiter = new RateLimiter();
+                    limiter.scheduleSweep();
+                    shared = limiter;
+                }
+            }
+        }
+        return limiter;
+    }
+
+    // The budget a new session starts with
+    static Budget userBudget() {
+        return new Budget(false, System.nanoTime());
+    }
+
+    // The kind of traffic a line from a registered client is, or null for lines that are never limited
+    static Traffic classify(String line) {
+        return Opcode.of(line).traffic;
+    }
+
+    // True if both the user's and the address's budget had a token; address may be null if unknown
+    boolean admit(Budget user, String address, Traffic traffic) {
+        long now = System.nanoTime();
+        if (!user.tryTake(traffic, now)) {
+            return false;
+        }
+        if (address == null || traffic.perAddress[0] <= 0) {
+            return true;
+        }
+        Budget shared = byAddress.get(address);
+        if (shared == null) {
+            shared = byAddress.computeIfAbsent(address, key -> new Budget(true, now));
+        }
+        return shared.tryTake(traffic, now);
+    }
+
+    int trackedAddresses() {
+        return byAddress.size();
+    }
+
+    // Runs on the timer wheel; a budget that refilled completely is the same as a new one
+    void sweep() {
+        long now = System.nanoTime();
+        byAddress.values().removeIf(budget -> budget.isFull(now));
+    }
+
+    private void scheduleSweep() {
+        ServerHandler.timers.schedule(() -> {
+            sweep();
+            scheduleSweep();
+        }, SWEEP_MILLIS);
+    }
+
+    // "rate/burst", or just a rate with a burst of twice that
+    private static double[] parse(String limit) {
+        int slash = limit.indexOf('/');
+        double rate = Double.parseDouble(slash < 0 ? limit : limit.substring(0, slash));
+        double burst = slash < 0 ? Math.max(1, rate * 2) : Double.parseDouble(limit.substring(slash + 1));
+        return new double[] {rate, Math.max(1, burst)};
+    }
+}
@@ -0,0 +1,216 @@
+package server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A named channel with its own subscriber set and coordinator. Nothing here takes a lock: the
+ * member map is concurrent, a member count doubles as the closed flag, and the coordinator is a
+ * state machine on one atomic reference. A joiner takes the role with a CAS from vacant, and
+ * only the holder's leave can move it on, with a CAS from its own ID. Members are also kept in
+ * a skip list by join sequence, so the successor the policy asks for is found in O(log n).
+ * Callers announce the outcome afterwards, so a fan-out never runs while a join or leave is
+ * waiting.
+ */
+final class Room {
+    final String name;
+    private final Succession succession;
+    private final Map<String, Member> members = new ConcurrentHashMap<>();
+    // The same members by join sequence, oldest first
+    private final ConcurrentSkipListMap<Long, Member> joinOrder = new ConcurrentSkipListMap<>();
+    private final AtomicLong nextSequence = new AtomicLong();
+    // Bumped after every join, leave or resume, so the cached directory knows when it is stale
+    private final AtomicLong membershipVersion = new AtomicLong();
+    private volatile MemberDirectory directory;
+    // The coordinator's user ID, or null while the role is vacant
+    private final AtomicReference<String> coordinator = new AtomicReference<>();
+    // Joins minus leaves; CLOSED once an empty room is dropped from the registry
+    private final AtomicInteger population = new AtomicInteger();
+    private static final int CLOSED = -1;
+
+    /** Who takes over when the coordinator leaves. */
+    enum Succession {
+        // The member who has been in the room longest
+        OLDEST,
+        // The member who joined last
+        NEWEST
+    }
+
+    private static final class Member {
+        final long sequence;
+        // Swapped for the new handler when the session is resumed on another connection
+        volatile ServerHandler handler;
+
+        Member(long sequence, ServerHandler handler) {
+            this.sequence = sequence;
+            this.handler = handler;
+        }
+    }
+
+    Room(String name, Succession succession) {
+        this.name = name;
+        this.succession = succession;
+    }
+
+    enum JoinResult {
+        // The room was dropped from the registry meanwhile; look the name up again
+        CLOSED,
+        MEMBER,
+        // The joiner took the vacant coordinator role, or was already chosen for it
+        COORDINATOR
+    }
+
+    JoinResult join(ServerHandler handler) {
+        int count;
+        do {
+            count = population.get();
+            if (count == CLOSED) {
+                return JoinResult.CLOSED;
+            }
+        } while (!population.compareAndSet(count, count + 1));
+        String userID = handler.getUserID();
+        Member member = new Member(nextSequence.incrementAndGet(), handler);
+        members.put(userID, member);
+        joinOrder.put(member.sequence, member);
+        membershipVersion.incrementAndGet();
+        if (coordinator.compareAndSet(null, userID) || userID.equals(coordinator.get())) {
+            return JoinResult.COORDINATOR;
+        }
+        return JoinResult.MEMBER;
+    }
+
+    /**
+     * Removes the member and, if it was the coordinator, hands the role to the member the
+     * succession policy picks. Returns that new coordinator, or null if the role did not move.
+     */
+    ServerHandler leave(ServerHandler handler) {
+        String userID = handler.getUserID();
+        Member member = members.get(userID);
+        if (member == null || member.handler != handler || !members.remove(userID, member)) {
+            return null;
+        }
+        joinOrder.remove(member.sequence);
+        membershipVersion.incrementAndGet();
+        population.decrementAndGet();
+        return handOff(userID);
+    }
+
+    // Moves the role away from a holder who is no longer a member. Fails at once if the role is not
+    // theirs. A successor that leaves before its CAS lands cannot hand the role on itself, so the
+    // loop does it for them.
+    private ServerHandler handOff(String holder) {
+        while (true) {
+            Member successor = nextCoordinator();
+            String next = successor == null ? null : successor.handler.getUserID();
+            if (!coordinator.compareAndSet(holder, next)) {
+                return null;
+            }
+            if (successor == null) {
+                // Someone who joined while the role was still held did not take it; offer it again
+                successor = nextCoordinator();
+                if (successor == null || !coordinator.compareAndSet(null, successor.handler.getUserID())) {
+                    return null;
+                }
+                next = successor.handler.getUserID();
+            }
+            if (members.get(next) == successor) {
+                return successor.handler;
+            }
+            holder = next;
+        }
+    }
+
+    private Member nextCoordinator() {
+        Map.Entry<Long, Member> entry = succession == Succession.NEWEST ? joinOrder.lastEntry() : joinOrder.firstEntry();
+        return entry == null ? null : entry.getValue();
+    }
+
+    // Cluster only: takes the coordinator chosen by the cluster's leader, who may be connected to another
+    // node, or no coordinator at all so that the next joiner takes the role
+    void assignCoordinator(String userID) {
+        coordinator.set(userID);
+    }
+
+    // The one announcement of a new coordinator, sent to every member including the new coordinator
+    String coordinatorAnnouncement(String userID) {
+        return RoomRegistry.LOBBY.equals(name)
+                ? userID + " is now the coordinator."
+                : userID + " is now the coordinator of #" + name + ".";
+    }
+
+    // Puts a resumed session in place of the one it took over; the coordinator is kept by ID, so it stays
+    void replace(ServerHandler previous, ServerHandler successor) {
+        Member member = members.get(previous.getUserID());
+        if (member != null && member.handler == previous) {
+            member.handler = successor;
+            membershipVersion.incrementAndGet();
+        }
+    }
+
+    // The member directory as of now, rebuilt only if the membership changed since it was last asked for
+    MemberDirectory directory() {
+        long version = membershipVersion.get();
+        MemberDirectory cached = directory;
+        if (cached == null || cached.version != version) {
+            cached = MemberDirectory.of(version, members());
+            directory = cached;
+        }
+        return cached;
+    }
+
+    // Closes the room if nobody is in it, so the registry can drop it
+    boolean closeIfEmpty() {
+        return population.compareAndSet(0, CLOSED);
+    }
+
+    // Queues the message for every member except excludeUserID; returns how many got it
+    int broadcast(OutboundMessage message, String excludeUserID) {
+        int recipients = 0;
+        for (Member member : members.values()) {
+            ServerHandler handler = member.handler;
+            if (!handler.getUserID().equals(excludeUserID)) {
+                handler.send(message);
+                recipients++;
+            }
+        }
+        return recipients;
+    }
+
+    boolean contains(String userID) {
+        return members.containsKey(userID);
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    // Members in join order, oldest first
+    Iterable<ServerHandler> members() {
+        return () -> new Iterator<ServerHandler>() {
+            private final Iterator<Member> inOrder = joinOrder.values().iterator();
+
+            @Override
+            public boolean hasNext() {
+                return inOrder.hasNext();
+            }
+
+            @Override
+            public ServerHandler next() {
+                return inOrder.next().handler;
+            }
+        };
+    }
+
+    String coordinatorID() {
+        return coordinator.get();
+    }
+
+    boolean isCoordinator(String userID) {
+        return userID.equals(coordinator.get());
+    }
+}
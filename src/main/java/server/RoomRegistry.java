@@ -0,0 +1,107 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * All rooms on one server, by name. Every session starts in the lobby, whose coordinator is the
+ * server-wide coordinator of the original protocol; other rooms are created by their first
+ * JOIN and dropped again when their last member leaves. Chat in any room is recorded in the
+ * registry's journal, when it has one, so members can ask for its history. Private messages
+ * to known users who are offline go to the registry's mailbox, when it has one. On a cluster
+ * node the registry also holds the node, through which room traffic reaches the other nodes.
+ */
+final class RoomRegistry {
+    static final String LOBBY = "lobby";
+    private static final int MAX_NAME_LENGTH = 32;
+    // Who takes over a room, the lobby included, when its coordinator leaves
+    private static final Room.Succession SUCCESSION =
+            Room.Succession.valueOf(System.getProperty("server.coordinator.succession", "OLDEST").toUpperCase());
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Room lobby;
+    private volatile MessageJournal journal;
+    private volatile Mailbox mailbox;
+    private volatile ClusterNode cluster;
+
+    RoomRegistry() {
+        this(null);
+    }
+
+    RoomRegistry(MessageJournal journal) {
+        this(journal, null);
+    }
+
+    RoomRegistry(MessageJournal journal, Mailbox mailbox) {
+        this.journal = journal;
+        this.mailbox = mailbox;
+        lobby = new Room(LOBBY, SUCCESSION);
+        rooms.put(LOBBY, lobby);
+    }
+
+    Room lobby() {
+        return lobby;
+    }
+
+    // Null when history is not kept
+    MessageJournal journal() {
+        return journal;
+    }
+
+    // Null when messages for offline users are not kept
+    Mailbox mailbox() {
+        return mailbox;
+    }
+
+    // Null when the server runs on its own
+    ClusterNode cluster() {
+        return cluster;
+    }
+
+    void attach(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    // Storage opened by the server when it starts; null leaves history or the mailbox off
+    void attach(MessageJournal journal, Mailbox mailbox) {
+        this.journal = journal;
+        this.mailbox = mailbox;
+    }
+
+    Room get(String name) {
+        return rooms.get(name);
+    }
+
+    // The room with this name, created empty if it does not exist yet
+    Room open(String name) {
+        return rooms.computeIfAbsent(name, key -> new Room(key, SUCCESSION));
+    }
+
+    void dropIfEmpty(Room room) {
+        if (room != lobby && room.closeIfEmpty()) {
+            rooms.remove(room.name, room);
+        }
+    }
+
+    List<Room> list() {
+        List<Room> list = new ArrayList<>(rooms.values());
+        list.sort(Comparator.comparing(room -> room.name));
+        return list;
+    }
+
+    // Letters, digits, '-' and '_' only, so a name never runs into the message that follows it
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
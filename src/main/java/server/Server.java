@@ -1,28 +1,82 @@
 package server;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.net.UnknownHostException;
 
+import com.sun.net.httpserver.HttpServer;
+
 
 public class Server {
+    // How client connections are served; picked once at startup
+    public enum Mode {
+        THREAD_PER_CONNECTION,
+        VIRTUAL_THREADS,
+        NIO;
+
+        static Mode fromName(String name) {
+            if (name == null || name.isEmpty() || "threads".equalsIgnoreCase(name)) {
+                return THREAD_PER_CONNECTION;
+            }
+            if ("virtual".equalsIgnoreCase(name)) {
+                return VIRTUAL_THREADS;
+            }
+            if ("nio".equalsIgnoreCase(name)) {
+                return NIO;
+            }
+            return Mode.valueOf(name.toUpperCase());
+        }
+    }
+
     private final int port;
+    private final Mode mode;
     private final AtomicBoolean running = new AtomicBoolean(false);
     private ServerSocket serverSocket;
+    private volatile NioServer nioServer;
+    // Runs one blocking ServerHandler session per task; owned and shut down by the server
+    private ExecutorService sessionExecutor;
+    // Prometheus endpoint, only started when server.metrics.port is set
+    private volatile HttpServer metricsEndpoint;
+    // Link to the other servers, only started when server.cluster.nodeId is set
+    private volatile ClusterNode cluster;
+    // Whether this server counts among those using the shared session timers, which stop with the last of them
+    private final AtomicBoolean usingTimers = new AtomicBoolean();
+    private static final AtomicInteger serversUsingTimers = new AtomicInteger();
     private static final Map<String, ServerHandler> clients = new ConcurrentHashMap<>();
-    private static final AtomicBoolean hasCoordinator = new AtomicBoolean(false);
+    // The journal and mailbox are only opened by start(), so loading the class touches no files
+    private static final RoomRegistry rooms = new RoomRegistry();
 
     public Server(int port) {
+        this(port, Mode.THREAD_PER_CONNECTION);
+    }
+
+    public Server(int port, Mode mode) {
         this.port = port;
+        this.mode = mode;
     }
 
     public void start() {
         running.set(true);
+        if (usingTimers.compareAndSet(false, true) && serversUsingTimers.getAndIncrement() == 0) {
+            ServerHandler.timers.start();
+        }
+        rooms.attach(MessageJournal.shared(), Mailbox.shared());
+        startMetrics();
+        startCluster();
+        if (mode == Mode.NIO) {
+            startNio();
+            return;
+        }
     try {
         serverSocket = new ServerSocket(port);
         try {
@@ -33,13 +87,13 @@ public class Server {
             // Fallback if the local host name could not be resolved into an address
             System.out.println("Server is running on Port: " + port + " (local IP address could not be determined)");
         }
-            startPingRequests();
+            sessionExecutor = createSessionExecutor();
 
             while (running.get()) {
                 try {
                     Socket socket = serverSocket.accept();
-                    ServerHandler handler = new ServerHandler(socket, clients, hasCoordinator);
-                    handler.start();
+                    ServerHandler handler = new ServerHandler(socket, clients, rooms);
+                    sessionExecutor.execute(handler);
                 } catch (IOException e) {
                     if (!running.get()) {
                         // Server was asked to stop
@@ -58,8 +112,95 @@ public class Server {
         }
     }
 
+    private void startNio() {
+        int loops = Integer.getInteger("server.nio.loops", Runtime.getRuntime().availableProcessors());
+        nioServer = new NioServer(port, clients, rooms, loops);
+        System.out.println("Server is running in NIO mode on Port: " + port + " with " + loops + " event loops");
+        try {
+            nioServer.start();
+        } catch (IOException e) {
+            System.err.println("Could not listen on port " + port + ": " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            stop();
+        }
+    }
+
+    private ExecutorService createSessionExecutor() {
+        if (mode == Mode.VIRTUAL_THREADS) {
+            ExecutorService executor = newVirtualThreadExecutor();
+            if (executor != null) {
+                System.out.println("Client sessions run on virtual threads");
+                return executor;
+            }
+            System.err.println("Virtual threads are not available on this JVM, using platform threads");
+        }
+        AtomicInteger sessionCount = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> new Thread(task, "client-session-" + sessionCount.incrementAndGet()));
+    }
+
+    // Virtual threads need JDK 21+; look the factory up reflectively so the build still targets 17. Null without them.
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private void startMetrics() {
+        ServerMetrics.shared().bind(clients);
+        Integer metricsPort = Integer.getInteger("server.metrics.port");
+        if (metricsPort != null && metricsEndpoint == null) {
+            try {
+                metricsEndpoint = ServerMetrics.shared().startHttpEndpoint(metricsPort);
+                System.out.println("Metrics available at http://127.0.0.1:" + metricsEndpoint.getAddress().getPort() + "/metrics");
+            } catch (IOException e) {
+                System.err.println("Could not start metrics endpoint on port " + metricsPort + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Joins the servers listed in server.cluster.peers, e.g. -Dserver.cluster.nodeId=1
+    // -Dserver.cluster.port=7001 -Dserver.cluster.peers=2@10.0.0.2:7002,3@10.0.0.3:7003
+    private void startCluster() {
+        Integer nodeId = Integer.getInteger("server.cluster.nodeId");
+        if (nodeId == null || cluster != null) {
+            return;
+        }
+        ClusterNode node = new ClusterNode(nodeId, clients, rooms);
+        try {
+            int clusterPort = node.start(Integer.getInteger("server.cluster.port", 7000 + nodeId));
+            ClusterNode.parsePeers(System.getProperty("server.cluster.peers", "")).forEach(node::addPeer);
+            cluster = node;
+            System.out.println("Cluster node " + nodeId + " listening for peers on port " + clusterPort);
+        } catch (IOException e) {
+            System.err.println("Could not start cluster node " + nodeId + ": " + e.getMessage());
+            node.stop();
+        }
+    }
+
     public void stop() {
         running.set(false);
+        if (cluster != null) {
+            cluster.stop();
+            cluster = null;
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop(0);
+            metricsEndpoint = null;
+        }
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+        if (sessionExecutor != null) {
+            sessionExecutor.shutdown();
+        }
+        if (usingTimers.compareAndSet(true, false) && serversUsingTimers.decrementAndGet() == 0) {
+            // Sessions that outlive the server start the wheel again if they schedule anything
+            ServerHandler.timers.stop();
+        }
         if (serverSocket != null && !serverSocket.isClosed()) {
             try {
                 serverSocket.close();
@@ -70,16 +211,22 @@ public class Server {
         }
     }
 
-    private void startPingRequests() {
+    // Per-user outbound queue high-water marks, to spot clients that cannot keep up
+    public static Map<String, Integer> outboundHighWaterMarks() {
+        Map<String, Integer> marks = new TreeMap<>();
+        clients.forEach((id, handler) -> marks.put(id, handler.getOutboundHighWaterMark()));
+        return marks;
     }
-        
+
     public boolean isRunning() {
         return running.get();
     }
 
     public static void main(String[] args) {
-        int port = 1234;
-        Server server = new Server(port);
+        // Several servers on one host need a port each, e.g. for a local cluster
+        int port = Integer.getInteger("server.port", 1234);
+        // Pick the connection engine with -Dserver.mode=threads|virtual|nio
+        Server server = new Server(port, Mode.fromName(System.getProperty("server.mode")));
         server.start();
     }
 }
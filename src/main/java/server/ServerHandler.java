@@ -1,125 +1,776 @@
 package server;
 
-import java.io.BufferedReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.net.Socket;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
-public class ServerHandler extends Thread {
+import protocol.BinaryProtocol;
+import protocol.MailboxKey;
+import protocol.SessionResume;
+import protocol.WireReader;
+
+public class ServerHandler implements Runnable {
     private Socket socket;
     private final Map<String, ServerHandler> clients;
-    static volatile String coordinatorUserID;
-    private final AtomicBoolean hasCoordinator;
+    private final RoomRegistry rooms;
+    // Rooms this session is in; cleanUp can run on a writer thread, hence the concurrent set. Copy-on-write, as
+    // joins and leaves are rare and most sessions only ever hold the lobby.
+    private final Set<Room> joinedRooms = new CopyOnWriteArraySet<>();
+    // Where plain chat lines go: the room joined most recently, the lobby after login
+    private volatile Room currentRoom;
     private String userID;
-    private PrintWriter writer;
-    private long lastActiveTime;
-    private static final String LOG_FILE_NAME = "server_log.txt";
-    private static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
+    // Small number standing in for userID in binary frames
+    private int userIndex = -1;
+    private boolean binaryOffered;
+    private boolean resumeOffered;
+    // Handed out at ID_ACCEPTED to clients that offered to resume; null for sessions that end with their connection
+    private volatile String resumeToken;
+    // The mailbox key from a HELLO MAILBOX line, and whether this session proved it may read the user's mailbox
+    private String offeredMailboxKey;
+    private volatile boolean mailboxOpened;
+    // Set once a queue overflow has handed this session to a writer task to be ended
+    private volatile boolean slowConsumerDisconnected;
+    // Set by QUIT, so the end of the connection is not mistaken for a drop
+    private boolean quit;
+    // The handler of the connection that resumed this session, which this one only forwards to from then on,
+    // or this handler itself once the session ended. Set once: a resume and the end of the session race for it.
+    private volatile ServerHandler successor;
+    // Ends a dropped resumable session once the grace window is over
+    private volatile TimerWheel.Timeout expiry;
+    // True once the handshake switched this session to length-prefixed frames
+    volatile boolean binary;
+    // Binary sessions only: the user ID this client was last told each index stands for (drain task only).
+    // Indexes are reused after a user leaves, so a binding only holds while the ID still matches.
+    private String[] knownUsers;
+    // Messages waiting to be written to this client, drained by one writer task at a time
+    final OutboundQueue outbound = new OutboundQueue(OUTBOUND_CAPACITY, OUTBOUND_POLICY);
+    // Long-lived stream for this session, opened on first write and only used by the drain task
+    private OutputStream out;
+    // When to write held messages, or null to write each one as it is taken (drain task only)
+    WriteBatching batching = WriteBatching.create();
+    // Time of the last line from the client, read by the liveness check on the timer wheel
+    private volatile long lastActiveTime;
+    // When the last heartbeat PING went out (timer wheel only)
+    private long lastPingTime;
+    // When the first login line arrived, for the handshake-time histogram
+    private long loginStartedNanos;
+    // Routing handle for the last @user this session wrote to; only touched by the session's reader
+    private ServerHandler lastPrivateTarget;
+    // Set once this session is unregistered, so cached routing handles to it stop being used
+    private volatile boolean departed;
+    // The room whose coordinator last let this session see member details; it may page through them with MEMBERS
+    private volatile Room approvedDirectory;
+    // This user's rate budgets; a resuming handler takes them over, so reconnecting does not refill them
+    private RateLimiter.Budget limits = RateLimiter.userBudget();
+    // Client's IP address for the shared per-address budgets, looked up on the first limited line (reader only)
+    private String sourceAddress;
+    // Set when a line is shed, so the client is told once per burst rather than once per line (reader only)
+    private boolean throttleNoticed;
+    private static final AtomicReferenceFieldUpdater<ServerHandler, ServerHandler> SUCCESSOR =
+            AtomicReferenceFieldUpdater.newUpdater(ServerHandler.class, ServerHandler.class, "successor");
+    private static final int OUTBOUND_CAPACITY = Integer.getInteger("server.outbound.capacity", 1024);
+    private static final OutboundQueue.OverflowPolicy OUTBOUND_POLICY =
+            OutboundQueue.OverflowPolicy.valueOf(System.getProperty("server.outbound.policy", "DROP_OLDEST").toUpperCase());
+    private static final boolean BINARY_ENABLED = Boolean.parseBoolean(System.getProperty("server.protocol.binary", "true"));
+    // Server notices go out as "SYSTEM: ...", so no user may go by this ID
+    private static final String SYSTEM_ID = "SYSTEM";
+    // Most messages one HISTORY request replays
+    private static final int HISTORY_LIMIT = Integer.getInteger("server.history.limit", 1000);
+    // Members one MEMBERS page lists unless the request asks for fewer, and the most it may ask for
+    private static final int MEMBERS_PAGE_SIZE = Integer.getInteger("server.members.pageSize", 100);
+    private static final int MEMBERS_PAGE_LIMIT = Integer.getInteger("server.members.pageLimit", 1000);
+    // How long a dropped resumable session waits for its client; 0 turns resuming off
+    private static final long RESUME_GRACE_MILLIS = Long.getLong("server.resume.graceMillis", 30000L);
+    // Delivered messages kept per resumable session for replay after a reconnect
+    private static final int RESUME_BUFFER = Integer.getInteger("server.resume.buffer", 128);
+    // Pause between the chunks of a mailbox delivery, so a long backlog never holds a writer or an event loop
+    private static final long MAIL_PACE_MILLIS = Long.getLong("server.mailbox.paceMillis", 100L);
+    private static final AtomicInteger nextUserIndex = new AtomicInteger();
+    // Indexes given back by users who left, the latest handed out first and before any new one
+    private static final ConcurrentLinkedDeque<Integer> freeUserIndexes = new ConcurrentLinkedDeque<>();
+    static final ServerMetrics metrics = ServerMetrics.shared();
+    // A session silent for the idle time is sent PING, and is treated as dropped if it stays silent for the
+    // timeout after that; an idle time of 0 turns heartbeats off
+    private static final long HEARTBEAT_IDLE_MILLIS = Long.getLong("server.heartbeat.idleMillis", 30000L);
+    private static final long HEARTBEAT_TIMEOUT_MILLIS = Long.getLong("server.heartbeat.timeoutMillis", 15000L);
+    // Idle checks and resume grace windows for every session: 100 ms ticks, about 51 s per turn
+    static final TimerWheel timers = new TimerWheel("session-timers", 100, 512);
+    // Declared after the timer wheel, which it sweeps its address budgets on
+    private static final RateLimiter limiter = RateLimiter.shared();
+    // Where a blocking session's drain task gathers messages for one write when batching is on
+    private static final ThreadLocal<ByteBuffer> batchBuffers = new ThreadLocal<>();
+    // Drains the outbound queues of blocking sessions, on virtual threads where the JVM has them and otherwise on
+    // -Dserver.outbound.writers platform threads (one per core by default). A broadcast to thousands of idle
+    // sessions then queues a task each instead of starting a thread each. A platform writer blocked on a client
+    // that stopped reading is held until that socket closes, so the pool size is also how many such clients it
+    // takes to hold up everyone else's writes; virtual threads have no such limit.
+    private static final ExecutorService outboundWriters = createOutboundWriters();
+
+    // A handler with rooms of its own; sessions of one server share a registry through the constructor below
+    public ServerHandler(Socket socket, Map<String, ServerHandler> clients) {
+        this(socket, clients, new RoomRegistry());
+    }
 
-    public ServerHandler(Socket socket, Map<String, ServerHandler> clients, AtomicBoolean hasCoordinator) {
+    ServerHandler(Socket socket, Map<String, ServerHandler> clients, RoomRegistry rooms) {
         this.socket = socket;
         this.clients = clients;
-        this.hasCoordinator = hasCoordinator;
+        this.rooms = rooms;
         this.lastActiveTime = System.currentTimeMillis();
     }
 
     @Override
     public void run() {
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = getWriter(socket.getOutputStream());
-    
-            boolean uniqueID = false;
-            while (!uniqueID) {
-                userID = reader.readLine();
-                synchronized (clients) {
-                    if (clients.containsKey(userID)) {
-                        writer.println("ID_TAKEN");
-                    } else {
-                        clients.put(userID, this);
-                        writer.println("ID_ACCEPTED");
-                        uniqueID = true;
-    
-                        
-                        uniqueID = true; // Break the loop as the ID is now verified
-                        if (hasCoordinator.compareAndSet(false, true)) {
-                            coordinatorUserID = userID;
-                            writer.println("you are the coordinator.");
-                            writer.println("You are the coordinator.");
-                        } else {
-                            writer.println("welcome " + userID + " the current coordiantor is "+ coordinatorUserID); 
-                            writer.println("Welcome " + userID + " the current coordiantor is "+ coordinatorUserID);
-                        }
-                        broadcastSystemMessage(userID + " has joined the chat.", null);
+            // Reads lines and frames from one buffer so nothing is lost when the protocol switches
+            WireReader reader = new WireReader(socket.getInputStream());
+
+            // Keep asking for an ID until the client picks one that is not taken
+            while (userID == null) {
+                String candidateID = reader.readLine();
+                if (candidateID == null) {
+                    return;
+                }
+                handleLogin(candidateID);
+            }
+
+            while (true) {
+                if (binary) {
+                    if (!reader.readFrame()) {
+                        break;
                     }
+                    if (reader.opcode() == BinaryProtocol.OP_LINE && !handleFramedLines(reader.text())) {
+                        break;
+                    }
+                    continue;
+                }
+                String message = reader.readLine();
+                if (message == null || !handleCommand(message)) {
+                    break;
                 }
             }
-    
-            // Notify the client about their role (coordinator or regular user)
-            
-    
-            String message;
-        while ((message = reader.readLine()) != null) {
-            logMessage("Received from " + userID + ": " + message, true); // Log incoming message
-            if ("QUIT".equals(message)) {
-                break;
+        } catch (IOException e) {
+            System.err.println("Error handling client " + userID + ": " + e.getMessage());
+        } finally {
+            if (!socket.isClosed()) {
+                connectionLost();
+            }
+        }
+    }
 
+    // A framed line may hold several commands; each runs as if it had arrived on its own line
+    private boolean handleFramedLines(String text) {
+        for (String line : BinaryProtocol.lines(text)) {
+            if (!handleCommand(line)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-            } else if ("REQUEST_DETAILS".equals(message)) {
-                handleRequestDetails(userID);
+    // Registers the session under the requested ID. Returns false (after telling the client) if the ID is taken.
+    // HELLO lines before the ID offer the binary protocol or session resume, or present the user's mailbox key;
+    // the ID_ACCEPTED reply says which offers were taken up. A RESUME line instead of an ID takes back a session whose connection dropped.
+    // No lock is held: the clients map decides between logins racing for one ID, and the lobby's coordinator
+    // role is a CAS in the room.
+    boolean handleLogin(String candidateID) {
+        if (loginStartedNanos == 0) {
+            loginStartedNanos = System.nanoTime();
+        }
+        if (SessionResume.OFFER.equals(candidateID)) {
+            resumeOffered = RESUME_GRACE_MILLIS > 0;
+            return false;
+        }
+        if (candidateID.startsWith(MailboxKey.OFFER_PREFIX)) {
+            offeredMailboxKey = MailboxKey.offeredKey(candidateID);
+            return false;
+        }
+        if (candidateID.startsWith(BinaryProtocol.HELLO_PREFIX)) {
+            binaryOffered = BINARY_ENABLED && BinaryProtocol.offeredVersion(candidateID) >= BinaryProtocol.VERSION;
+            return false;
+        }
+        if (candidateID.startsWith(SessionResume.REQUEST_PREFIX)) {
+            return resume(SessionResume.parse(candidateID));
+        }
+        // The cheap check first, so a taken ID costs the cluster no claim. A claim cannot succeed while another
+        // session on this node holds the ID, so only a login on this node can still win the race below.
+        ClusterNode cluster = rooms.cluster();
+        Room.JoinResult result = null;
+        if (validUserID(candidateID) && !clients.containsKey(candidateID) && (cluster == null || cluster.claim(candidateID))) {
+            result = register(candidateID);
+        }
+        if (result == null) {
+            send(OutboundMessage.handshake("ID_TAKEN"));
+            metrics.idTaken();
+            return false;
+        }
+        metrics.handshakeNanos.record(System.nanoTime() - loginStartedNanos);
 
+        Room lobby = rooms.lobby();
+        if (departed) {
+            // cleanUp ran meanwhile and may have missed the lobby
+            if (joinedRooms.remove(lobby)) {
+                leave(lobby);
+            }
+            return true;
+        }
+        // Notify the client about their role (coordinator or regular user)
+        if (result == Room.JoinResult.COORDINATOR) {
+            writeLine("you are the coordinator.");
+            writeLine("You are the coordinator.");
+        } else {
+            writeLine("welcome " + userID + " the current coordiantor is "+ lobby.coordinatorID());
+            writeLine("Welcome " + userID + " the current coordiantor is "+ lobby.coordinatorID());
+        }
+        broadcastSystemMessage(lobby, userID + " has joined the chat.", null);
+        openMailbox();
+        return true;
+    }
 
-            } else if (message.startsWith("APPROVE_DETAILS ")) {
-                handleApproveDetails(message);
+    // IDs end up in lines to other clients and in tab-separated cluster and mailbox records, so an ID with a
+    // tab, line break or other control character is refused like a taken one. SYSTEM is reserved, since chat
+    // from it would read like a server notice, such as the announcement of a new coordinator.
+    static boolean validUserID(String candidateID) {
+        if (SYSTEM_ID.equals(candidateID)) {
+            return false;
+        }
+        for (int i = 0; i < candidateID.length(); i++) {
+            if (Character.isISOControl(candidateID.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A user new to the mailbox is handed its key; anyone else gets their mail only by presenting it, since
+    // whoever logs in under a free ID would otherwise read what was kept for its owner
+    private void openMailbox() {
+        Mailbox mailbox = rooms.mailbox();
+        if (mailbox == null) {
+            return;
+        }
+        String issued = mailbox.enroll(userID);
+        if (issued != null) {
+            send(OutboundMessage.of(MailboxKey.issued(issued)));
+            mailboxOpened = true;
+        } else if (mailbox.opens(userID, offeredMailboxKey)) {
+            mailboxOpened = true;
+            deliverMail();
+        } else if (mailbox.pending(userID) > 0) {
+            send(OutboundMessage.system("Private messages kept for you can only be read from a client holding your mailbox key."));
+        }
+        offeredMailboxKey = null;
+    }
+
+    // Puts this session in the clients map and the lobby if the ID is free, and returns how it joined the lobby, or
+    // null if the ID is taken. The queue is held from before the insert, so a message sent to the new session as
+    // soon as other threads can find it still goes out after ID_ACCEPTED, and the session is in the lobby by the
+    // time its client reads that, so it misses no lobby chat sent after it.
+    private Room.JoinResult register(String candidateID) {
+        userID = candidateID;
+        userIndex = allocateUserIndex();
+        outbound.hold();
+        if (clients.putIfAbsent(candidateID, this) != null) {
+            releaseUserIndex(userIndex);
+            userID = null;
+            userIndex = -1;
+            return null;
+        }
+        // Every session starts in the lobby, whose coordinator is the server-wide (or cluster-wide) one
+        currentRoom = rooms.lobby();
+        Room.JoinResult joined = enter(currentRoom);
+        accept(0);
+        return joined;
+    }
+
+    // Queues ID_ACCEPTED, with a resume token if the client asked for one, and switches to frames if agreed.
+    // delivered is how many messages the client has already had in this session.
+    private void accept(long delivered) {
+        String accepted = binaryOffered ? BinaryProtocol.ACCEPTED : "ID_ACCEPTED";
+        if (resumeOffered) {
+            resumeToken = SessionResume.newToken();
+            accepted = SessionResume.accepted(accepted, resumeToken);
+            outbound.keepForResume(RESUME_BUFFER, delivered);
+        }
+        send(OutboundMessage.handshake(accepted));
+        if (binaryOffered) {
+            knownUsers = new String[16];
+            binary = true;
+            outbound.setFramed(true);
+        }
+        scheduleLivenessCheck(HEARTBEAT_IDLE_MILLIS);
+    }
+
+    // Takes over a session kept after its connection dropped, or whose drop the server has not noticed yet.
+    // Nothing is announced and the coordinators stay as they are: the clients map and the rooms just point
+    // at this handler instead, and the client is sent what it missed before anything new.
+    private boolean resume(SessionResume.Request request) {
+        ServerHandler previous = request == null ? null : clients.get(request.userID);
+        String token = previous == null ? null : previous.resumeToken;
+        // Winning the successor field shuts out both another resume and the end of the grace window
+        if (token == null
+                || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), request.token.getBytes(StandardCharsets.UTF_8))
+                || !SUCCESSOR.compareAndSet(previous, null, this)) {
+            send(OutboundMessage.handshake(SessionResume.FAILED));
+            metrics.resumeFailed();
+            return false;
+        }
+        TimerWheel.Timeout pending = previous.expiry;
+        if (pending != null) {
+            pending.cancel();
+        }
+        userID = previous.userID;
+        userIndex = previous.userIndex;
+        resumeOffered = true;
+        accept(request.received);
+        // From here the previous handler forwards whatever is still sent to it, after the missed messages
+        if (previous.outbound.handOver(request.received, outbound) == OutboundQueue.OfferResult.SCHEDULE_DRAIN) {
+            scheduleDrain();
+        }
+        currentRoom = previous.currentRoom;
+        limits = previous.limits;
+        mailboxOpened = previous.mailboxOpened;
+        for (Room room : previous.joinedRooms) {
+            joinedRooms.add(room);
+            room.replace(previous, this);
+        }
+        previous.joinedRooms.clear();
+        clients.replace(userID, previous, this);
+        previous.departed = true;
+        previous.closeResources();
+        metrics.resumed();
+        logMessage("Session resumed for user " + userID, false);
+        // Carries on with a mailbox delivery the dropped connection was in the middle of
+        deliverMail();
+        return true;
+    }
 
+    // Starts sending the private messages kept while this user was offline, if there are any and no delivery to
+    // this session is running yet and the session opened the mailbox. They follow whatever is queued already,
+    // ID_ACCEPTED and the welcome included.
+    void deliverMail() {
+        if (!mailboxOpened) {
+            return;
+        }
+        Mailbox mailbox = rooms.mailbox();
+        Mailbox.Delivery delivery = mailbox == null ? null : mailbox.start(userID, this, this::scheduleNextChunk);
+        if (delivery != null) {
+            attachMail(delivery);
+        }
+    }
 
-            } else if (message.startsWith("DENY_DETAILS ")) {
-                handleDenyDetails(message);
-                
-            } else if ("PING_MEMBERS".equals(message) && userID.equals(coordinatorUserID)) {
-                // The coordinator sends a ping to all members
-                for (ServerHandler handler : clients.values()) {
-                    if (!handler.userID.equals(coordinatorUserID)) {
-                        handler.sendMessage("PING_REQUEST");
+    // Called by the drain once a chunk was taken; the next one is attached after a pause, behind anything queued
+    // meanwhile
+    private void scheduleNextChunk(Mailbox.Delivery delivery) {
+        timers.schedule(() -> {
+            if (!departed && delivery.nextChunk()) {
+                attachMail(delivery);
+            }
+        }, MAIL_PACE_MILLIS);
+    }
+
+    private void attachMail(Mailbox.Delivery delivery) {
+        switch (outbound.replay(delivery)) {
+            case SCHEDULE_DRAIN:
+                scheduleDrain();
+                break;
+            case BUSY:
+                // A history replay or member listing goes first
+                timers.schedule(() -> {
+                    if (!departed) {
+                        attachMail(delivery);
                     }
-                }
-            } else if (message.startsWith("@")) {
+                }, MAIL_PACE_MILLIS);
+                break;
+            default:
+                // Queued behind a running drain, or the session was resumed, and the new connection carries on
+                break;
+        }
+    }
+
+    // Dispatches one line from a registered client. Returns false when the client asked to quit.
+    boolean handleCommand(String message) {
+        // Any line counts as a sign of life
+        lastActiveTime = System.currentTimeMillis();
+        if (message.isBlank()) {
+            // Nothing to say; never broadcast as an empty chat line
+            return true;
+        }
+        Opcode opcode = Opcode.of(message);
+        if (opcode.traffic != null && !admit(opcode.traffic)) {
+            return true;
+        }
+        logMessage("Received from ", userID, message, true); // Log incoming message
+        if (opcode == Opcode.PING_MEMBERS && (currentRoom == null || !currentRoom.isCoordinator(userID))) {
+            // Only a coordinator can ping; from anyone else it is just a chat line
+            opcode = Opcode.CHAT;
+        }
+        metrics.received(opcode.counted);
+        switch (opcode) {
+            case QUIT:
+                quit = true;
+                return false;
+            case REQUEST_DETAILS:
+                handleRequestDetails(userID);
+                break;
+            case APPROVE_DETAILS:
+                handleApproveDetails(argument(message, opcode));
+                break;
+            case DENY_DETAILS:
+                handleDenyDetails(argument(message, opcode));
+                break;
+            case PING_MEMBERS:
+                // The coordinator sends a ping to all members of its room
+                currentRoom.broadcast(OutboundMessage.of("PING_REQUEST"), userID);
+                logMessage("Ping request sent by " + userID, false);
+                break;
+            case PONG:
+                // Reply to a heartbeat or a coordinator's ping; never chat
+                handlePongResponse();
+                break;
+            case JOIN:
+                joinRoom(roomName(argument(message, opcode)));
+                break;
+            case LEAVE:
+                leaveRoom(roomName(argument(message, opcode)));
+                break;
+            case ROOMS:
+                listRooms();
+                break;
+            case HISTORY:
+                handleHistory(argument(message, opcode).trim());
+                break;
+            case MEMBERS:
+                handleMembers(argument(message, opcode).trim());
+                break;
+            case PRIVATE:
                 handlePrivateMessage(message);
-            } else {
-                broadcastMessage(userID + ": " + message, userID);
+                break;
+            case ROOM_CHAT:
+                if (!handleRoomMessage(message)) {
+                    // Not a room this session is in, so a chat line that happens to start with '#', like "#1 fan"
+                    chatInCurrentRoom(message);
+                }
+                break;
+            case CHAT:
+            default:
+                chatInCurrentRoom(message);
+                break;
+        }
+        return true;
+    }
+
+    // The rest of the line after the opcode's keyword, or "" if there is nothing after it
+    private static String argument(String message, Opcode opcode) {
+        int start = opcode.argumentStart();
+        return start >= message.length() ? "" : message.substring(start);
+    }
+
+    // Takes a token for the line from this user's and this address's budgets; an over-limit line is shed unread
+    private boolean admit(RateLimiter.Traffic traffic) {
+        if (sourceAddress == null) {
+            InetAddress address = socket == null ? null : socket.getInetAddress();
+            sourceAddress = address == null ? "" : address.getHostAddress();
+        }
+        if (limiter.admit(limits, sourceAddress.isEmpty() ? null : sourceAddress, traffic)) {
+            throttleNoticed = false;
+            return true;
+        }
+        metrics.throttled(traffic);
+        if (!throttleNoticed) {
+            throttleNoticed = true;
+            send(OutboundMessage.system("You are sending too fast; messages are being dropped."));
+        }
+        return false;
+    }
+
+    // Accepts "dev" or "#dev"
+    private static String roomName(String argument) {
+        String name = argument.trim();
+        return name.startsWith("#") ? name.substring(1) : name;
+    }
+
+    // Joins the room, creating it if needed, and makes it where plain chat lines go
+    private void joinRoom(String name) {
+        if (!RoomRegistry.isValidName(name)) {
+            send(OutboundMessage.system("Room names are 1 to 32 letters, digits, '-' or '_'."));
+            return;
+        }
+        Room room;
+        Room.JoinResult result;
+        do {
+            room = rooms.open(name);
+            if (joinedRooms.contains(room)) {
+                currentRoom = room;
+                writeLine("Now chatting in #" + name + ".");
+                return;
+            }
+            result = enter(room);
+        } while (result == Room.JoinResult.CLOSED);
+        if (departed) {
+            // cleanUp ran meanwhile and may have missed this room
+            if (joinedRooms.remove(room)) {
+                leave(room);
             }
+            return;
         }
-    } catch (IOException e) {
-        System.err.println("Error handling client " + userID + ": " + e.getMessage());
-    } finally {
-        if (!socket.isClosed()) {
-            cleanUp();
+        currentRoom = room;
+        if (result == Room.JoinResult.COORDINATOR) {
+            writeLine("You are the coordinator of #" + name + ".");
+        } else {
+            writeLine("Joined #" + name + ", the current coordinator is " + room.coordinatorID() + ".");
+        }
+        broadcastSystemMessage(room, userID + " has joined #" + name + ".", userID);
+    }
+
+    // Records the room before joining it, so a concurrent cleanUp either finds it or has set departed first
+    Room.JoinResult enter(Room room) {
+        joinedRooms.add(room);
+        Room.JoinResult result = room.join(this);
+        if (result == Room.JoinResult.CLOSED) {
+            joinedRooms.remove(room);
+        }
+        return result;
+    }
+
+    private void leaveRoom(String name) {
+        Room room = rooms.get(name);
+        if (room == null || !joinedRooms.remove(room)) {
+            send(OutboundMessage.system("You are not in #" + name + "."));
+            return;
+        }
+        leave(room);
+        writeLine("Left #" + name + ".");
+        if (currentRoom == room) {
+            // Fall back to the lobby, or any other room still joined
+            Room next = rooms.lobby();
+            if (!joinedRooms.contains(next)) {
+                Iterator<Room> others = joinedRooms.iterator();
+                next = others.hasNext() ? others.next() : null;
             }
+            currentRoom = next;
         }
     }
-     protected PrintWriter getWriter(OutputStream outputStream) {
-        return new PrintWriter(outputStream, true);
+
+    // Removes this session from the room and announces the leave and any new coordinator to it. The room has
+    // already moved the role by then; the announcements go out afterwards, so no other join or leave waits on them.
+    private void leave(Room room) {
+        boolean lobby = room == rooms.lobby();
+        boolean wasCoordinator = room.isCoordinator(userID);
+        ServerHandler successor = room.leave(this);
+        broadcastSystemMessage(room, lobby ? userID + " has left the chat." : userID + " has left #" + room.name + ".", null);
+        if (successor != null) {
+            // One event for the whole room, the new coordinator included
+            metrics.coordinatorReassigned();
+            broadcastSystemMessage(room, room.coordinatorAnnouncement(successor.userID), null);
+        }
+        ClusterNode cluster = rooms.cluster();
+        if (cluster != null && lobby && wasCoordinator) {
+            // The leader keeps the successor or, if nobody else is in this node's lobby, picks one elsewhere
+            cluster.coordinatorLeft(userID, successor == null ? null : successor.userID);
+        }
+        rooms.dropIfEmpty(room);
     }
-    private void logMessage(String message, boolean isIncoming) {
-        String timestamp = LocalDateTime.now().format(dtf);
-        String logEntry = String.format("%s [%s] %s", timestamp, isIncoming ? "INCOMING" : "OUTGOING", message);
 
-        synchronized (ServerHandler.class) {
-            try (FileWriter fw = new FileWriter(LOG_FILE_NAME, true);
-                 PrintWriter logWriter = new PrintWriter(fw, true)) {
-                logWriter.println(logEntry);
-            } catch (IOException e) {
-                e.printStackTrace();
+    private void listRooms() {
+        StringJoiner list = new StringJoiner(", ", "ROOMS: ", "");
+        for (Room room : rooms.list()) {
+            list.add("#" + room.name + " (" + room.size() + ")");
+        }
+        writeLine(list.toString());
+    }
+
+    // "#room message" posts to a room this session is in, without changing the current room. False if the session
+    // is in no such room.
+    private boolean handleRoomMessage(String message) {
+        int space = message.indexOf(' ');
+        String name = space < 0 ? message.substring(1) : message.substring(1, space);
+        Room room = rooms.get(name);
+        if (room == null || !joinedRooms.contains(room)) {
+            return false;
+        }
+        String text = space < 0 ? "" : message.substring(space + 1).trim();
+        if (!text.isEmpty()) {
+            chat(room, text);
+        }
+        return true;
+    }
+
+    private void chatInCurrentRoom(String message) {
+        Room room = currentRoom;
+        if (room == null) {
+            send(OutboundMessage.system("You are not in any room. Use JOIN <room> to chat."));
+        } else {
+            chat(room, message);
+        }
+    }
+
+    // "HISTORY [#room] <count>" replays the newest messages, "HISTORY [#room] SINCE <sequence>" the ones after
+    // a sequence number; without a room it is the current one. Records are read as the client takes them.
+    private void handleHistory(String arguments) {
+        MessageJournal journal = rooms.journal();
+        if (journal == null) {
+            send(OutboundMessage.system("History is not available on this server."));
+            return;
+        }
+        String[] parts = arguments.split("\\s+");
+        int next = 0;
+        Room room = currentRoom;
+        if (parts[0].startsWith("#")) {
+            String name = parts[0].substring(1);
+            room = rooms.get(name);
+            if (room == null || !joinedRooms.contains(room)) {
+                send(OutboundMessage.system("You are not in #" + name + "."));
+                return;
+            }
+            next++;
+        }
+        if (room == null) {
+            send(OutboundMessage.system("You are not in any room. Use JOIN <room> to chat."));
+            return;
+        }
+        MessageJournal.Cursor replay;
+        try {
+            if (parts.length == next + 2 && "SINCE".equalsIgnoreCase(parts[next])) {
+                replay = journal.since(room.name, Long.parseLong(parts[next + 1]), HISTORY_LIMIT);
+            } else if (parts.length == next + 1) {
+                replay = journal.last(room.name, Math.max(0, Math.min(Integer.parseInt(parts[next]), HISTORY_LIMIT)));
+            } else {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            send(OutboundMessage.system("Usage: HISTORY [#room] <count> or HISTORY [#room] SINCE <sequence>."));
+            return;
+        }
+        stream(replay);
+    }
+
+    // "MEMBERS [#room] [PREFIX <text>] [AFTER <userID>] [<count>]" lists one page of a room's member directory, to
+    // its coordinator or to a member the coordinator approved with APPROVE_DETAILS. The last page's AFTER is the
+    // NEXT of the one before.
+    private void handleMembers(String arguments) {
+        String[] parts = arguments.isEmpty() ? new String[0] : arguments.split("\\s+");
+        int next = 0;
+        Room room = currentRoom;
+        if (parts.length > 0 && parts[0].startsWith("#")) {
+            room = rooms.get(parts[0].substring(1));
+            next++;
+        }
+        if (room == null || !joinedRooms.contains(room)) {
+            send(OutboundMessage.system("You are not in that room."));
+            return;
+        }
+        if (!room.isCoordinator(userID) && approvedDirectory != room) {
+            send(OutboundMessage.system("Ask the coordinator of #" + room.name + " for member details first."));
+            return;
+        }
+        String prefix = null;
+        String after = null;
+        int count = MEMBERS_PAGE_SIZE;
+        try {
+            while (next < parts.length) {
+                if ("PREFIX".equalsIgnoreCase(parts[next]) && next + 1 < parts.length) {
+                    prefix = parts[next + 1];
+                    next += 2;
+                } else if ("AFTER".equalsIgnoreCase(parts[next]) && next + 1 < parts.length) {
+                    after = parts[next + 1];
+                    next += 2;
+                } else if (next == parts.length - 1) {
+                    count = Integer.parseInt(parts[next++]);
+                } else {
+                    throw new NumberFormatException();
+                }
             }
+        } catch (NumberFormatException e) {
+            send(OutboundMessage.system("Usage: MEMBERS [#room] [PREFIX <text>] [AFTER <userID>] [<count>]."));
+            return;
+        }
+        count = Math.max(0, Math.min(count, MEMBERS_PAGE_LIMIT));
+        stream(room.directory().page(prefix, after, count, room.coordinatorID()));
+    }
+
+    // Hands a replay to the outbound queue, which pulls it line by line between live messages
+    private void stream(OutboundQueue.Replay source) {
+        switch (outbound.replay(source)) {
+            case SCHEDULE_DRAIN:
+                scheduleDrain();
+                break;
+            case BUSY:
+                send(OutboundMessage.system("A history replay or member listing is already running."));
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Lobby chat keeps the original "user: message" form so older clients see no change
+    private void chat(Room room, String message) {
+        MessageJournal journal = rooms.journal();
+        if (journal != null) {
+            // Journaled first, so anyone who has seen the message finds it in the history
+            journal.append(room.name, userID, message);
+        }
+        OutboundMessage encoded = room == rooms.lobby()
+                ? OutboundMessage.chat(userIndex, userID, message)
+                : OutboundMessage.roomChat(userIndex, userID, room.name, message);
+        broadcast(room, encoded, userID);
+        ClusterNode cluster = rooms.cluster();
+        if (cluster != null) {
+            cluster.relayChat(room.name, userID, message);
         }
     }
+
+    // Binary user indexes are unique per JVM among users present; cluster nodes take them for users connected
+    // elsewhere too. Reusing freed ones keeps them, and the tables indexed by them, as small as the most users
+    // ever online at once rather than growing with every login.
+    static int allocateUserIndex() {
+        Integer free = freeUserIndexes.pollFirst();
+        return free != null ? free : nextUserIndex.getAndIncrement();
+    }
+
+    // Once the user is gone; a session still holding a message from them rebinds the index when it differs
+    static void releaseUserIndex(int index) {
+        if (index >= 0) {
+            freeUserIndexes.offerFirst(index);
+        }
+    }
+
+    private static ExecutorService createOutboundWriters() {
+        ExecutorService virtual = Server.newVirtualThreadExecutor();
+        if (virtual != null) {
+            return virtual;
+        }
+        AtomicInteger writerCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(Integer.getInteger("server.outbound.writers", Runtime.getRuntime().availableProcessors()), task -> {
+            Thread thread = new Thread(task, "outbound-writer-" + writerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void logMessage(String message, boolean isIncoming) {
+        MessageLog.shared().log(message, isIncoming);
+    }
+
+    // For the per-message entries: the log's writer puts prefix, subject and message together, not this thread
+    void logMessage(String prefix, String subject, String message, boolean isIncoming) {
+        MessageLog.shared().log(prefix, subject, message, isIncoming);
+    }
     // Add a setter method for userID
     public void setUserID(String userID) {
         this.userID = userID;
@@ -130,47 +781,47 @@ public class ServerHandler extends Thread {
     
 
     private void handleRequestDetails(String senderID) {
-        if (!senderID.equals(coordinatorUserID)) {
-            // Send request directly to the coordinator
-            sendMessageToUser("DETAILS_REQUEST_FROM " + senderID, coordinatorUserID);
+        Room room = currentRoom;
+        if (room != null && !room.isCoordinator(senderID)) {
+            // Send request directly to the coordinator of the sender's room
+            sendMessageToUser("DETAILS_REQUEST_FROM " + senderID, room.coordinatorID());
         }
         
     }
     
-    // Method to handle "APPROVE_DETAILS" response from the coordinator
-    private void handleApproveDetails(String message) {
-        String[] parts = message.split(" ");
-        if (parts.length > 1) {
-            String approvedUserID = parts[1];
+    // Method to handle "APPROVE_DETAILS <id>" response from the coordinator
+    private void handleApproveDetails(String approvedUserID) {
+        if (!approvedUserID.isEmpty()) {
             // Directly send the member details to the requester
-            sendMemberDetails(approvedUserID);
+            sendMemberDetails(firstWord(approvedUserID));
         }
     }
     
-    // Method to handle "DENY_DETAILS" response from the coordinator
-    private void handleDenyDetails(String message) {
-        String[] parts = message.split(" ");
-        if (parts.length > 1) {
-            String deniedUserID = parts[1];
+    // Method to handle "DENY_DETAILS <id>" response from the coordinator
+    private void handleDenyDetails(String deniedUserID) {
+        if (!deniedUserID.isEmpty()) {
             // Directly notify the requester about the denial
-            sendMessageToUser("DETAILS_DENIED", deniedUserID);
+            sendMessageToUser("DETAILS_DENIED", firstWord(deniedUserID));
         }
     }
+
+    // The argument up to the first space; the whole string, uncopied, when there is none
+    private static String firstWord(String argument) {
+        int space = argument.indexOf(' ');
+        return space < 0 ? argument : argument.substring(0, space);
+    }
     
     // Utility method to send a message to a specific user
     void sendMessageToUser(String message, String targetUserID) {
         ServerHandler targetUser = clients.get(targetUserID);
         if (targetUser != null) {
             targetUser.sendMessage(message);
+        } else if (targetUserID != null && rooms.cluster() != null) {
+            rooms.cluster().relayLine(targetUserID, message);
         }
     }
 
 
-    public void sendPingRequest() {
-        sendMessage("PING_REQUEST");
-    }
-
-
     public void handlePongResponse() {
         updateLastActiveTime();
     }
@@ -181,52 +832,129 @@ public class ServerHandler extends Thread {
     }
 
 
-    public void cleanUpInactiveClients() {
-        long currentTime = System.currentTimeMillis();
-        if (currentTime - lastActiveTime > 30000) { // 30 seconds
-            cleanUp();
+    // Sends the first page of the approving coordinator's current room to the requester, who may then page on
+    // with MEMBERS. Only the coordinator's approval counts.
+    private void sendMemberDetails(String targetUserID) {
+        Room room = currentRoom != null ? currentRoom : rooms.lobby();
+        if (!room.isCoordinator(userID)) {
+            return;
+        }
+        MemberDirectory.Page page = room.directory().page(null, null, MEMBERS_PAGE_SIZE, userID);
+        ServerHandler target = clients.get(targetUserID);
+        if (target != null) {
+            target.approvedDirectory = room;
+            target.stream(page);
+            return;
+        }
+        if (rooms.cluster() == null) {
+            return;
+        }
+        // Connected to another cluster node, which gets the page as plain lines
+        for (OutboundMessage line = page.next(); line != null; line = page.next()) {
+            sendMessageToUser(line.text(), targetUserID);
         }
     }
 
-
-    private void sendMemberDetails(String targetUserID) {
-        StringBuilder details = new StringBuilder("MEMBER DETAILS:\n");
-        synchronized (clients) {
-            clients.forEach((id, handler) -> {
-                Socket clientSocket = handler.socket;
-                details.append(String.format("ID: %s, IP: %s, Port: %d\n",
-                        id, clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort()));
-            });
-            details.append("COORDINATOR: ").append(coordinatorUserID);
-            // Use the sendMessageToUser method to send details to the specific user
-            sendMessageToUser(details.toString(), targetUserID);
-        }
+    // "ip port" of the client's connection, as listed in the member directory
+    String address() {
+        InetAddress address = socket == null ? null : socket.getInetAddress();
+        return (address == null ? "-" : address.getHostAddress()) + " " + (socket == null ? 0 : socket.getPort());
     }
     
     
-    void cleanUp() {
-        synchronized (clients) {
-            if (clients.remove(userID) != null) {
-                logMessage("Session ended for user " + userID, false); // Log session end
-                broadcastSystemMessage(userID + " has left the chat.", null);
+    // True while a dropped connection would leave this session waiting for its client to resume it
+    boolean resumable() {
+        return resumeToken != null && !quit && successor == null;
+    }
+
+    // The connection ended. A resumable session keeps its place for the grace window; any other leaves now.
+    void connectionLost() {
+        if (!resumable()) {
+            cleanUp();
+            return;
+        }
+        closeResources();
+        logMessage("Connection lost for " + userID + ", keeping the session for " + RESUME_GRACE_MILLIS + " ms", false);
+        expiry = timers.schedule(this::cleanUp, RESUME_GRACE_MILLIS);
+    }
+
+    /**
+     * Runs on the timer wheel. Pings a session that has been silent for the idle time and drops one
+     * that stayed silent for the timeout after that. Each check schedules the next one for when
+     * either could next be due, so incoming traffic only updates lastActiveTime and never touches
+     * the wheel.
+     */
+    void checkLiveness(long now) {
+        if (departed || successor != null || expiry != null || socket.isClosed()) {
+            // Gone, resumed on another connection, or already waiting out the resume grace window
+            return;
+        }
+        long idle = now - lastActiveTime;
+        if (idle >= HEARTBEAT_IDLE_MILLIS + HEARTBEAT_TIMEOUT_MILLIS) {
+            metrics.reaped();
+            logMessage("No traffic from " + userID + " for " + idle + " ms, dropping the connection", false);
+            reap();
+            return;
+        }
+        if (idle >= HEARTBEAT_IDLE_MILLIS) {
+            if (lastPingTime <= lastActiveTime) {
+                lastPingTime = now;
+                metrics.heartbeatSent();
+                send(OutboundMessage.of("PING"));
             }
+            scheduleLivenessCheck(HEARTBEAT_IDLE_MILLIS + HEARTBEAT_TIMEOUT_MILLIS - idle);
+        } else {
+            scheduleLivenessCheck(HEARTBEAT_IDLE_MILLIS - idle);
+        }
+    }
+
+    private void scheduleLivenessCheck(long delayMillis) {
+        if (HEARTBEAT_IDLE_MILLIS > 0) {
+            timers.schedule(() -> checkLiveness(System.currentTimeMillis()), delayMillis);
+        }
+    }
 
+    // Handles a connection that stopped answering like one that dropped; the NIO engine does it on the event loop
+    void reap() {
+        connectionLost();
+    }
 
-            
-            if (userID.equals(coordinatorUserID)) {
-                if (!clients.isEmpty()) {
-                    assignNewCoordinator();
-                } else {
-                    coordinatorUserID = null; // Reset coordinator if no clients are left
-                    hasCoordinator.set(false);
+    void cleanUp() {
+        if (userID == null) {
+            // The client never finished the handshake, so there is nothing to unregister
+            closeResources();
+            return;
+        }
+        // Once resumed, the session belongs to the successor and nothing is left to unregister here; marking the
+        // session as ended also makes a second cleanUp, or a resume arriving now, a no-op
+        if (SUCCESSOR.compareAndSet(this, null, this)) {
+            departed = true;
+            Mailbox mailbox = rooms.mailbox();
+            if (mailbox != null) {
+                mailbox.release(userID, this);
+            }
+            // Each room announces the leave and hands on its coordinator role if this user held it. The ID is
+            // freed afterwards, so a new login under it never meets this session in a room.
+            for (Room room : joinedRooms) {
+                if (joinedRooms.remove(room)) {
+                    leave(room);
                 }
             }
+            currentRoom = null;
+            if (clients.remove(userID, this)) {
+                releaseUserIndex(userIndex);
+                ClusterNode cluster = rooms.cluster();
+                if (cluster != null) {
+                    cluster.left(userID);
+                }
+                logMessage("Session ended for user " + userID, false); // Log session end
+            }
         }
         closeResources();
     }
 
 
-    private void closeResources() {
+    void closeResources() {
         try {
             if (socket != null && !socket.isClosed()) {
                 socket.close();
@@ -237,34 +965,43 @@ public class ServerHandler extends Thread {
     }
 
 
-    private void assignNewCoordinator() {
-        String newCoordinatorID = clients.keySet().iterator().next();
-        coordinatorUserID = newCoordinatorID;
-        ServerHandler newCoordinator = clients.get(newCoordinatorID);
-        newCoordinator.sendMessage("You are now the coordinator.");
-        broadcastSystemMessage(newCoordinator.userID + " is now the coordinator.", null);
+    void broadcastMessage(String message, String senderID) {
+        broadcast(OutboundMessage.of(message), senderID);
     }
 
-
-    void broadcastMessage(String message, String senderID) {
-        clients.values().forEach(client -> {
+    // Server-wide: encodes once and hands the same bytes to every recipient; logged once rather than per recipient
+    void broadcast(OutboundMessage message, String senderID) {
+        long started = System.nanoTime();
+        int recipients = 0;
+        for (ServerHandler client : clients.values()) {
             if (!client.userID.equals(senderID)) { // Check if the client is not the sender
-                client.sendMessage(message);
+                client.send(message);
+                recipients++;
             }
-        });
-        logMessage("Broadcasted: " + message, false); // Log broadcasted message
+        }
+        metrics.broadcast(recipients, System.nanoTime() - started);
+        logMessage("Broadcasted: ", null, message.text(), false); // Log broadcasted message
     }
     
     
 
 
-    private void broadcastSystemMessage(String message, String excludeUserID) {
-        clients.forEach((id, clientHandler) -> {
-            if (!id.equals(excludeUserID)) {
-                clientHandler.sendMessage("SYSTEM: " + message);
-            }
-        });
-        System.out.println("SYSTEM: " + message);
+    // Costs one send per room member, however many sessions the server has
+    void broadcast(Room room, OutboundMessage message, String senderID) {
+        long started = System.nanoTime();
+        int recipients = room.broadcast(message, senderID);
+        metrics.broadcast(recipients, System.nanoTime() - started);
+        logMessage("Broadcasted: ", null, message.text(), false);
+    }
+
+    private void broadcastSystemMessage(Room room, String message, String excludeUserID) {
+        long started = System.nanoTime();
+        int recipients = room.broadcast(OutboundMessage.system(message), excludeUserID);
+        metrics.broadcast(recipients, System.nanoTime() - started);
+        ClusterNode cluster = rooms.cluster();
+        if (cluster != null) {
+            cluster.relaySystem(room.name, message);
+        }
         logMessage("System broadcast: " + message, false);
     }
 
@@ -275,37 +1012,242 @@ public class ServerHandler extends Thread {
         while (endOfUsernameIndex < message.length() && Character.isLetterOrDigit(message.charAt(endOfUsernameIndex))) {
             endOfUsernameIndex++;
         }
-    
-        // Extract the username and the actual message
-        String targetUsername = message.substring(1, endOfUsernameIndex); // Extract username directly after @
         String privateMessage = message.substring(endOfUsernameIndex).trim(); // The rest is the message
-    
-        // Find the target user and send the private message
-        clients.values().stream()
-            .filter(clientHandler -> clientHandler.userID.equals(targetUsername))
-            .findFirst()
-            .ifPresent(clientHandler -> {
-                
-                String formattedMessage = String.format("%s(private): %s", this.userID, privateMessage);
-                clientHandler.sendMessage(formattedMessage);
-            });
-        logMessage("Private message handled for " + userID + ": " + message, false);
-          
+
+        ServerHandler target = routeTo(message, endOfUsernameIndex);
+        if (target == null) {
+            String targetUsername = message.substring(1, endOfUsernameIndex);
+            ClusterNode cluster = rooms.cluster();
+            if (cluster != null && cluster.relayPrivate(userID, targetUsername, privateMessage)) {
+                logMessage("Private message from " + userID + " relayed to node " + cluster.nodeOf(targetUsername), false);
+                return;
+            }
+            Mailbox mailbox = rooms.mailbox();
+            Mailbox.StoreResult stored = mailbox == null ? Mailbox.StoreResult.UNKNOWN
+                    : mailbox.store(targetUsername, userID, privateMessage);
+            if (stored == Mailbox.StoreResult.STORED) {
+                metrics.mailStored();
+                send(OutboundMessage.system(targetUsername + " is offline; the message will be delivered when they log in."));
+                logMessage("Private message from " + userID + " kept for offline user " + targetUsername, false);
+                // The recipient may have logged in since it was looked up, after its delivery had found nothing
+                ServerHandler arrived = clients.get(targetUsername);
+                if (arrived != null) {
+                    arrived.deliverMail();
+                }
+                return;
+            }
+            if (stored == Mailbox.StoreResult.FULL) {
+                metrics.mailRefused();
+                send(OutboundMessage.system("Message not delivered: the mailbox of " + targetUsername + " is full."));
+                logMessage("Private message from " + userID + " not kept, mailbox of " + targetUsername + " is full", false);
+                return;
+            }
+            // Tell the sender instead of dropping the message silently
+            send(OutboundMessage.system("Message not delivered: " + targetUsername + " is not online."));
+            logMessage("Private message from " + userID + " not delivered, no user " + targetUsername, false);
+            return;
+        }
+        OutboundMessage formattedMessage = OutboundMessage.privateMessage(userIndex, userID, privateMessage);
+        target.send(formattedMessage);
+        logMessage("Sent to ", target.userID, formattedMessage.text(), false);
+        logMessage("Private message handled for ", userID, message, false);
+    }
+
+    // Keyed lookup, skipped entirely while the sender keeps writing to the same live recipient
+    private ServerHandler routeTo(String message, int endOfUsernameIndex) {
+        int length = endOfUsernameIndex - 1;
+        ServerHandler cached = lastPrivateTarget;
+        if (cached != null && !cached.departed && cached.userID.length() == length
+                && message.regionMatches(1, cached.userID, 0, length)) {
+            return cached;
+        }
+        ServerHandler target = length == 0 ? null : clients.get(message.substring(1, endOfUsernameIndex));
+        lastPrivateTarget = target;
+        return target;
     }
 
 
     void sendMessage(String message) {
-        try {
-            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-            writer.println(message);
-            logMessage("Sent to " + userID + ": " + message, false); // Log outgoing message
-        } catch (IOException e) {
-            System.err.println("Error sending message: " + e.getMessage());
+        writeLine(message);
+        logMessage("Sent to ", userID, message, false); // Log outgoing message
+    }
+
+    void writeLine(String line) {
+        send(OutboundMessage.of(line));
+    }
+
+    // Queues an already encoded line for this client without waiting for the socket
+    void send(OutboundMessage message) {
+        OutboundQueue.OfferResult result = outbound.offer(message);
+        if (result == OutboundQueue.OfferResult.CLOSED) {
+            // Handed over to a resumed connection while this send was on its way
+            ServerHandler next = successor;
+            if (next != null && next != this) {
+                next.send(message);
+            }
+            return;
+        }
+        metrics.sent(message.opcode());
+        switch (result) {
+            case SCHEDULE_DRAIN:
+                scheduleDrain();
+                break;
+            case OVERFLOW:
+                disconnectSlowConsumer();
+                break;
+            default:
+                break;
+        }
+    }
+
+    // The NIO engine overrides this to drain on the session's event loop instead
+    void scheduleDrain() {
+        outboundWriters.execute(this::drainOutbound);
+    }
+
+    private void drainOutbound() {
+        if (batching != null) {
+            drainBatched();
+            return;
+        }
+        OutboundMessage message;
+        while ((message = outbound.pollOrFinish()) != null) {
+            try {
+                if (out == null) {
+                    out = socket.getOutputStream();
+                }
+                OutboundMessage binding = bindingFor(message);
+                if (binding != null) {
+                    binding.writeTo(out, true);
+                    metrics.wrote(1);
+                }
+                message.writeTo(out, binary);
+                metrics.wrote(1);
+            } catch (IOException e) {
+                if (resumable()) {
+                    // Leave the rest queued for a resumed connection; the drain stays marked as running
+                    // so nothing more is written to this one
+                    return;
+                }
+                System.err.println("Error sending message: " + e.getMessage());
+                outbound.clear();
+            }
+        }
+    }
+
+    // Gathers whatever is queued into one buffer and writes it in one call, waiting up to the flush window for more
+    // while the session is busy
+    private void drainBatched() {
+        ByteBuffer batch = batchBuffers.get();
+        if (batch == null || batch.capacity() < batching.maxBytes()) {
+            batch = ByteBuffer.allocate(batching.maxBytes());
+            batchBuffers.set(batch);
+        }
+        batch.clear();
+        int held = 0;
+        while (true) {
+            try {
+                if (out == null) {
+                    out = socket.getOutputStream();
+                }
+                OutboundMessage message = outbound.poll();
+                if (message != null) {
+                    OutboundMessage binding = bindingFor(message);
+                    if (binding != null) {
+                        held = gather(batch, held, binding, true);
+                    }
+                    held = gather(batch, held, message, binary);
+                    continue;
+                }
+                if (held == 0) {
+                    if (outbound.finishDrain()) {
+                        return;
+                    }
+                    continue;
+                }
+                long wait = batching.delayNanos(batch.position(), System.nanoTime());
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+                held = writeBatch(batch, held);
+            } catch (IOException e) {
+                if (resumable()) {
+                    // As above: the rest stays queued for a resumed connection
+                    return;
+                }
+                System.err.println("Error sending message: " + e.getMessage());
+                outbound.clear();
+                batch.clear();
+                held = 0;
+            }
+        }
+    }
+
+    // Adds one message to the batch, writing the batch first if it would not fit; returns how many messages it holds
+    private int gather(ByteBuffer batch, int held, OutboundMessage message, boolean binaryForm) throws IOException {
+        int length = message.length(binaryForm);
+        if (length > batch.remaining()) {
+            held = writeBatch(batch, held);
+            if (length > batch.capacity()) {
+                message.writeTo(out, binaryForm);
+                metrics.wrote(1);
+                batching.wrote(System.nanoTime());
+                return 0;
+            }
+        }
+        message.copyTo(batch, 0, binaryForm);
+        return held + 1;
+    }
+
+    private int writeBatch(ByteBuffer batch, int held) throws IOException {
+        if (held > 0) {
+            out.write(batch.array(), 0, batch.position());
+            metrics.wrote(held);
+            batching.wrote(System.nanoTime());
+            batch.clear();
+        }
+        return 0;
+    }
+
+    // Drain task only: the user-binding frame a binary client needs before this message, if any
+    OutboundMessage bindingFor(OutboundMessage message) {
+        int index = message.senderIndex();
+        if (!binary || index < 0) {
+            return null;
+        }
+        if (index >= knownUsers.length) {
+            knownUsers = Arrays.copyOf(knownUsers, Math.max(index + 1, knownUsers.length * 2));
         }
+        if (message.senderID().equals(knownUsers[index])) {
+            return null;
+        }
+        knownUsers[index] = message.senderID();
+        return OutboundMessage.userBinding(index, message.senderID());
+    }
+
+    // Called when this client's queue overflows under the DISCONNECT policy. That happens on whichever thread was
+    // sending, possibly halfway through another user's broadcast, so the session is ended on a writer task instead,
+    // as the NIO engine ends it on its event loop. A second overflow before then adds nothing (cleanUp runs once).
+    void disconnectSlowConsumer() {
+        if (slowConsumerDisconnected) {
+            return;
+        }
+        slowConsumerDisconnected = true;
+        System.err.println("Disconnecting slow consumer " + userID);
+        outboundWriters.execute(() -> {
+            logMessage("Disconnected slow consumer " + userID, false);
+            cleanUp();
+        });
+    }
+
+    public int getOutboundQueueDepth() {
+        return outbound.size();
     }
 
-    public void getBufferedReader(Object any) {
-        throw new UnsupportedOperationException("Unimplemented method 'getBufferedReader'");
+    // Deepest the outbound queue has been since the session started
+    public int getOutboundHighWaterMark() {
+        return outbound.highWaterMark();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,398 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+import metrics.Histogram;
+
+/**
+ * Server-wide counters and histograms. Everything recorded on the message path is a LongAdder
+ * increment, so sessions never contend on a shared counter; gauges such as connected clients
+ * and queue depths are computed only when someone reads them. Published over JMX as
+ * server:type=ServerMetrics and, when server.metrics.port is set, as Prometheus text at
+ * http://127.0.0.1:port/metrics.
+ */
+public final class ServerMetrics implements ServerMetricsMBean {
+
+    // Commands a registered client can send, counted by handleCommand
+    public enum Command {
+        CHAT,
+        PRIVATE,
+        QUIT,
+        REQUEST_DETAILS,
+        APPROVE_DETAILS,
+        DENY_DETAILS,
+        PING_MEMBERS,
+        JOIN,
+        LEAVE,
+        LIST_ROOMS,
+        HISTORY,
+        PONG,
+        MEMBERS
+    }
+
+    // Indexed by OutboundMessage opcode: 0 is a handshake reply, the rest are BinaryProtocol opcodes
+    private static final String[] SENT_KINDS = {"handshake", "line", "chat", "private", "system", "user_binding", "room_chat"};
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+    private static volatile ServerMetrics shared;
+
+    private volatile Map<String, ? extends ServerHandler> clients = Collections.emptyMap();
+    private final LongAdder[] received = adders(Command.values().length);
+    private final LongAdder[] sent = adders(SENT_KINDS.length);
+    private final LongAdder idTaken = new LongAdder();
+    private final LongAdder coordinatorReassignments = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder resumeFailed = new LongAdder();
+    private final LongAdder heartbeatsSent = new LongAdder();
+    private final LongAdder reaped = new LongAdder();
+    // Write calls on client sockets, and the messages they carried
+    private final LongAdder socketWrites = new LongAdder();
+    private final LongAdder messagesWritten = new LongAdder();
+    // Lines shed by the rate limiter, by kind of traffic
+    private final LongAdder[] throttled = adders(RateLimiter.Traffic.values().length);
+    // Private messages kept for offline users, refused because the mailbox was full, and sent on later
+    private final LongAdder mailStored = new LongAdder();
+    private final LongAdder mailRefused = new LongAdder();
+    private final LongAdder mailDelivered = new LongAdder();
+    // Nanoseconds from the first login line to ID_ACCEPTED
+    final Histogram handshakeNanos = new Histogram();
+    // Recipients per broadcast
+    final Histogram broadcastFanOut = new Histogram();
+    // Nanoseconds to queue one broadcast for every recipient
+    final Histogram broadcastNanos = new Histogram();
+
+    // The server-wide instance, registered with the platform MBean server on first use
+    public static ServerMetrics shared() {
+        ServerMetrics metrics = shared;
+        if (metrics == null) {
+            synchronized (ServerMetrics.class) {
+                metrics = shared;
+                if (metrics == null) {
+                    metrics = new ServerMetrics();
+                    try {
+                        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("server:type=ServerMetrics"));
+                    } catch (JMException e) {
+                        System.err.println("Could not register server metrics with JMX: " + e.getMessage());
+                    }
+                    shared = metrics;
+                }
+            }
+        }
+        return metrics;
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    // The map whose sessions the connected-client and queue-depth gauges are read from
+    void bind(Map<String, ? extends ServerHandler> clients) {
+        this.clients = clients;
+    }
+
+    void received(Command command) {
+        received[command.ordinal()].increment();
+    }
+
+    void sent(int kind) {
+        sent[kind].increment();
+    }
+
+    void idTaken() {
+        idTaken.increment();
+    }
+
+    void coordinatorReassigned() {
+        coordinatorReassignments.increment();
+    }
+
+    void resumed() {
+        resumed.increment();
+    }
+
+    void resumeFailed() {
+        resumeFailed.increment();
+    }
+
+    void heartbeatSent() {
+        heartbeatsSent.increment();
+    }
+
+    void reaped() {
+        reaped.increment();
+    }
+
+    void mailStored() {
+        mailStored.increment();
+    }
+
+    void mailRefused() {
+        mailRefused.increment();
+    }
+
+    void mailDelivered() {
+        mailDelivered.increment();
+    }
+
+    void wrote(int messages) {
+        socketWrites.increment();
+        messagesWritten.add(messages);
+    }
+
+    void throttled(RateLimiter.Traffic traffic) {
+        throttled[traffic.ordinal()].increment();
+    }
+
+    void broadcast(int recipients, long nanos) {
+        broadcastFanOut.record(recipients);
+        broadcastNanos.record(nanos);
+    }
+
+    long receivedCount(Command command) {
+        return received[command.ordinal()].sum();
+    }
+
+    long throttledCount(RateLimiter.Traffic traffic) {
+        return throttled[traffic.ordinal()].sum();
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return clients.size();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return sum(received);
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return sum(sent);
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcastFanOut.count();
+    }
+
+    @Override
+    public double getBroadcastMeanFanOut() {
+        return broadcastFanOut.mean();
+    }
+
+    @Override
+    public double getBroadcastMeanMicros() {
+        return broadcastNanos.mean() / 1000.0;
+    }
+
+    @Override
+    public double getHandshakeMeanMillis() {
+        return handshakeNanos.mean() / 1_000_000.0;
+    }
+
+    @Override
+    public long getIdTakenRetries() {
+        return idTaken.sum();
+    }
+
+    @Override
+    public long getCoordinatorReassignments() {
+        return coordinatorReassignments.sum();
+    }
+
+    @Override
+    public long getSessionsResumed() {
+        return resumed.sum();
+    }
+
+    @Override
+    public long getResumeFailures() {
+        return resumeFailed.sum();
+    }
+
+    @Override
+    public long getSessionsReaped() {
+        return reaped.sum();
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    // Writes avoided by sending several messages in one; 0 without batching, apart from NIO's natural coalescing
+    @Override
+    public long getWriteCallsSaved() {
+        return Math.max(0, messagesWritten.sum() - socketWrites.sum());
+    }
+
+    @Override
+    public long getMessagesThrottled() {
+        return sum(throttled);
+    }
+
+    @Override
+    public long getMailboxStored() {
+        return mailStored.sum();
+    }
+
+    @Override
+    public long getMailboxDelivered() {
+        return mailDelivered.sum();
+    }
+
+    @Override
+    public long getOutboundQueueDepth() {
+        long depth = 0;
+        for (ServerHandler handler : clients.values()) {
+            depth += handler.getOutboundQueueDepth();
+        }
+        return depth;
+    }
+
+    @Override
+    public int getLogQueueDepth() {
+        return MessageLog.shared().queueDepth();
+    }
+
+    @Override
+    public long getLogDropped() {
+        return MessageLog.shared().droppedCount();
+    }
+
+    @Override
+    public String getPrometheusText() {
+        StringBuilder text = new StringBuilder(4096);
+        gauge(text, "chat_connected_clients", "Registered client sessions", getConnectedClients());
+
+        header(text, "chat_messages_received_total", "Commands received from clients", "counter");
+        for (Command command : Command.values()) {
+            sample(text, "chat_messages_received_total", "command", command.name().toLowerCase(), received[command.ordinal()].sum());
+        }
+        header(text, "chat_messages_sent_total", "Messages queued for delivery to clients", "counter");
+        for (int kind = 0; kind < SENT_KINDS.length; kind++) {
+            sample(text, "chat_messages_sent_total", "type", SENT_KINDS[kind], sent[kind].sum());
+        }
+
+        header(text, "chat_throttled_total", "Lines shed for exceeding a per-user or per-address rate limit", "counter");
+        for (RateLimiter.Traffic traffic : RateLimiter.Traffic.values()) {
+            sample(text, "chat_throttled_total", "type", traffic.key, throttled[traffic.ordinal()].sum());
+        }
+
+        counter(text, "chat_id_taken_total", "Login attempts rejected with ID_TAKEN", idTaken.sum());
+        // Buckets from 65us to about a minute, 1 to 128k recipients and 1us to about 17s
+        histogram(text, "chat_handshake_seconds", "Time from the first login line to ID_ACCEPTED", handshakeNanos, 16, 20, 1 / NANOS_PER_SECOND);
+        histogram(text, "chat_broadcast_fanout", "Recipients per broadcast", broadcastFanOut, 0, 17, 1);
+        histogram(text, "chat_broadcast_seconds", "Time to queue a broadcast for every recipient", broadcastNanos, 10, 24, 1 / NANOS_PER_SECOND);
+        counter(text, "chat_coordinator_reassignments_total", "Times a new coordinator was picked", coordinatorReassignments.sum());
+        counter(text, "chat_sessions_resumed_total", "Sessions taken back by a reconnecting client", resumed.sum());
+        counter(text, "chat_resume_failed_total", "Resume attempts for a session that was gone or with a wrong token", resumeFailed.sum());
+        counter(text, "chat_heartbeats_sent_total", "PING heartbeats sent to idle sessions", heartbeatsSent.sum());
+        counter(text, "chat_sessions_reaped_total", "Sessions dropped for not answering a heartbeat", reaped.sum());
+        counter(text, "chat_mailbox_stored_total", "Private messages kept for offline users", mailStored.sum());
+        counter(text, "chat_mailbox_full_total", "Private messages refused because the recipient's mailbox was full", mailRefused.sum());
+        counter(text, "chat_mailbox_delivered_total", "Kept private messages sent on after the recipient logged in", mailDelivered.sum());
+        counter(text, "chat_socket_writes_total", "Write calls on client sockets", socketWrites.sum());
+        counter(text, "chat_messages_written_total", "Messages written to client sockets", messagesWritten.sum());
+        counter(text, "chat_write_calls_saved_total", "Write calls avoided by writing several messages at once", getWriteCallsSaved());
+
+        long depth = 0;
+        long maxDepth = 0;
+        long maxHighWater = 0;
+        for (ServerHandler handler : clients.values()) {
+            int sessionDepth = handler.getOutboundQueueDepth();
+            depth += sessionDepth;
+            maxDepth = Math.max(maxDepth, sessionDepth);
+            maxHighWater = Math.max(maxHighWater, handler.getOutboundHighWaterMark());
+        }
+        gauge(text, "chat_outbound_queue_depth", "Messages waiting in all per-client outbound queues", depth);
+        gauge(text, "chat_outbound_queue_depth_max", "Deepest single per-client outbound queue", maxDepth);
+        gauge(text, "chat_outbound_queue_high_water_max", "Highest per-client queue depth seen so far", maxHighWater);
+
+        MessageLog log = MessageLog.shared();
+        gauge(text, "chat_log_queue_depth", "Entries waiting for the log writer", log.queueDepth());
+        counter(text, "chat_log_written_total", "Log entries written", log.writtenCount());
+        counter(text, "chat_log_dropped_total", "Log entries dropped by backpressure", log.droppedCount());
+        histogram(text, "chat_log_write_seconds", "Time from logging an entry to writing it to the file", log.writeLatency(), 10, 24, 1 / NANOS_PER_SECOND);
+        return text.toString();
+    }
+
+    /**
+     * Serves getPrometheusText() at /metrics on the loopback interface. Port 0 picks a free
+     * port; the caller owns the returned server and stops it.
+     */
+    public HttpServer startHttpEndpoint(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = getPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+        return http;
+    }
+
+    private static long sum(LongAdder[] adders) {
+        long total = 0;
+        for (LongAdder adder : adders) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String label, String labelValue, long value) {
+        text.append(name).append('{').append(label).append("=\"").append(labelValue).append("\"} ").append(value).append('\n');
+    }
+
+    // Prometheus buckets are cumulative, with bounds 2^minShift to 2^(minShift + bounds - 1);
+    // scale converts recorded units, e.g. nanoseconds to seconds
+    private static void histogram(StringBuilder text, String name, String help, Histogram histogram,
+                                  int minShift, int bounds, double scale) {
+        header(text, name, help, "histogram");
+        for (int bucket = 0; bucket < bounds; bucket++) {
+            long upperBound = 1L << (minShift + bucket);
+            text.append(name).append("_bucket{le=\"").append(upperBound * scale).append("\"} ")
+                    .append(histogram.countAtOrBelow(upperBound)).append('\n');
+        }
+        long count = histogram.count();
+        text.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+        text.append(name).append("_sum ").append(histogram.sum() * scale).append('\n');
+        text.append(name).append("_count ").append(count).append('\n');
+    }
+}
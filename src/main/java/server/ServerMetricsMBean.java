@@ -0,0 +1,46 @@
+package server;
+
+// JMX view of ServerMetrics; the full set is in getPrometheusText()
+public interface ServerMetricsMBean {
+    int getConnectedClients();
+
+    long getMessagesReceived();
+
+    long getMessagesSent();
+
+    long getBroadcasts();
+
+    double getBroadcastMeanFanOut();
+
+    double getBroadcastMeanMicros();
+
+    double getHandshakeMeanMillis();
+
+    long getIdTakenRetries();
+
+    long getCoordinatorReassignments();
+
+    long getSessionsResumed();
+
+    long getResumeFailures();
+
+    long getSessionsReaped();
+
+    long getSocketWrites();
+
+    long getWriteCallsSaved();
+
+    long getMessagesThrottled();
+
+    long getMailboxStored();
+
+    long getMailboxDelivered();
+
+    long getOutboundQueueDepth();
+
+    int getLogQueueDepth();
+
+    long getLogDropped();
+
+    String getPrometheusText();
+}
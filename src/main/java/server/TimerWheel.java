@@ -0,0 +1,206 @@
+package server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel for large numbers of coarse timeouts, such as one idle check per session.
+ * Scheduling and cancelling are O(1) and never take a lock: new timeouts go through a
+ * concurrent queue that the wheel's thread moves into buckets once per tick, and a cancelled
+ * timeout is only flagged and is unlinked when its bucket comes round. Each tick the thread runs
+ * the due timeouts of one bucket, so tasks must be short; a timeout further away than one turn
+ * of the wheel waits out the extra rounds in its bucket. stop() ends the thread but keeps what is
+ * scheduled; the wheel starts again when start() is called or something new is scheduled, and
+ * then runs whatever fell due meanwhile.
+ */
+final class TimerWheel {
+
+    /** A scheduled task; cancel() returns false if it already ran or was cancelled. */
+    interface Timeout {
+        boolean cancel();
+    }
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;
+    private final int mask;
+    // Heads of the buckets' doubly linked lists, touched only by the wheel thread
+    private final Entry[] buckets;
+    private final ConcurrentLinkedQueue<Entry> scheduled = new ConcurrentLinkedQueue<>();
+    private final long startNanos;
+    private final String name;
+    // The current wheel thread; one replaced by a restart leaves its loop (changed under the lock)
+    private volatile Thread worker;
+    private volatile boolean running;
+    // The next tick to run; only the wheel thread touches it, and a restarted thread goes on from where the last stopped
+    private long tick;
+
+    private static final class Entry implements Timeout {
+        private static final AtomicIntegerFieldUpdater<Entry> STATE = AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+        final Runnable task;
+        final long deadlineTick;
+        private volatile int state = PENDING;
+        long rounds;
+        Entry next;
+        Entry prev;
+
+        Entry(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        @Override
+        public boolean cancel() {
+            return STATE.compareAndSet(this, PENDING, CANCELLED);
+        }
+
+        boolean expire() {
+            return STATE.compareAndSet(this, PENDING, EXPIRED);
+        }
+    }
+
+    // wheelSize is rounded up to a power of two
+    TimerWheel(String name, long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.mask = size - 1;
+        this.buckets = new Entry[size];
+        this.startNanos = System.nanoTime();
+        this.name = name;
+        start();
+    }
+
+    // Starts the wheel thread unless it is running
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        Thread previous = worker;
+        worker = new Thread(() -> {
+            if (previous != null) {
+                // The stopped thread may still be finishing its last tick, and owns the buckets until it is done
+                try {
+                    previous.join();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            run();
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // Runs task on the wheel thread after about delayMillis, rounded up to the next tick
+    Timeout schedule(Runnable task, long delayMillis) {
+        long delayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        long deadlineTick = (System.nanoTime() - startNanos + delayNanos + tickNanos - 1) / tickNanos;
+        Entry entry = new Entry(task, deadlineTick);
+        scheduled.add(entry);
+        if (!running) {
+            start();
+        }
+        return entry;
+    }
+
+    // Ends the wheel thread and waits briefly for it; scheduled timeouts stay for a later start
+    void stop() {
+        Thread stopping;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            stopping = worker;
+        }
+        LockSupport.unpark(stopping);
+        if (stopping != Thread.currentThread()) {
+            try {
+                stopping.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    private void run() {
+        Thread self = Thread.currentThread();
+        while (running && worker == self) {
+            long wakeAt = startNanos + (tick + 1) * tickNanos;
+            long sleep;
+            while (running && (sleep = wakeAt - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            if (!running || worker != self) {
+                // Stopped before this tick was due; it runs after the next start
+                break;
+            }
+            transferScheduled(tick);
+            expire(buckets[(int) (tick & mask)], tick);
+            tick++;
+        }
+    }
+
+    private void transferScheduled(long tick) {
+        Entry entry;
+        while ((entry = scheduled.poll()) != null) {
+            if (entry.state != PENDING) {
+                continue;
+            }
+            // Already late ones go into the current bucket
+            long due = Math.max(entry.deadlineTick, tick);
+            entry.rounds = (due - tick) / buckets.length;
+            int index = (int) (due & mask);
+            entry.next = buckets[index];
+            if (entry.next != null) {
+                entry.next.prev = entry;
+            }
+            buckets[index] = entry;
+        }
+    }
+
+    private void expire(Entry head, long tick) {
+        Entry entry = head;
+        while (entry != null) {
+            Entry next = entry.next;
+            if (entry.state == CANCELLED) {
+                unlink(entry, tick);
+            } else if (entry.rounds <= 0) {
+                unlink(entry, tick);
+                if (entry.expire()) {
+                    try {
+                        entry.task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Timer task failed: " + e);
+                    }
+                }
+            } else {
+                entry.rounds--;
+            }
+            entry = next;
+        }
+    }
+
+    private void unlink(Entry entry, long tick) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            buckets[(int) (tick & mask)] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.next = null;
+        entry.prev = null;
+    }
+}
@@ -0,0 +1,43 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A token bucket kept as one timestamp, in the manner of the generic cell rate algorithm: the
+ * time at which the bucket would be full again. Taking a token pushes that time one interval
+ * further; a token is refused when it would lie more than the burst ahead of now. Taking is a
+ * single CAS, so one bucket can be shared by every session from an address.
+ */
+final class TokenBucket {
+    private static final AtomicLongFieldUpdater<TokenBucket> FULL_AT =
+            AtomicLongFieldUpdater.newUpdater(TokenBucket.class, "fullAt");
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private volatile long fullAt;
+
+    // perSecond tokens are added each second, up to burst held at once
+    TokenBucket(double perSecond, int burst, long now) {
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / perSecond));
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        this.fullAt = now;
+    }
+
+    boolean tryTake(long now) {
+        while (true) {
+            long current = fullAt;
+            long next = Math.max(current, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (FULL_AT.compareAndSet(this, current, next)) {
+                return true;
+            }
+        }
+    }
+
+    // True if the bucket has refilled completely, so dropping it loses nothing
+    boolean isFull(long now) {
+        return fullAt - now <= 0;
+    }
+}
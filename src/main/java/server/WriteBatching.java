@@ -0,0 +1,50 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nagle-like write policy for one session, used when -Dserver.batch.enabled is set. A write that
+ * follows a quiet spell goes out at once, so sparse traffic keeps its latency. While the session
+ * is busy, its messages are held until the flush window has passed since the last write or the
+ * held bytes reach the threshold, and then go out together in one write. Only the session's
+ * drainer touches it.
+ */
+final class WriteBatching {
+    private static final boolean ENABLED = Boolean.getBoolean("server.batch.enabled");
+    private static final long FLUSH_MICROS = Long.getLong("server.batch.flushMicros", 2000L);
+    // Also the size of the buffer a blocking session's messages are gathered in
+    static final int MAX_BYTES = Integer.getInteger("server.batch.maxBytes", 16 * 1024);
+
+    private final long windowNanos;
+    private final int maxBytes;
+    private long lastWriteNanos;
+
+    WriteBatching(long windowMicros, int maxBytes) {
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBytes = maxBytes;
+        // The first write never waits
+        this.lastWriteNanos = System.nanoTime() - windowNanos;
+    }
+
+    // A policy for a new session, or null when batching is off
+    static WriteBatching create() {
+        return ENABLED ? new WriteBatching(FLUSH_MICROS, MAX_BYTES) : null;
+    }
+
+    // Nanoseconds to go on holding heldBytes, or 0 to write them now
+    long delayNanos(int heldBytes, long now) {
+        if (heldBytes >= maxBytes) {
+            return 0;
+        }
+        long sinceLastWrite = now - lastWriteNanos;
+        return sinceLastWrite >= windowNanos ? 0 : windowNanos - sinceLastWrite;
+    }
+
+    void wrote(long now) {
+        lastWriteNanos = now;
+    }
+
+    int maxBytes() {
+        return maxBytes;
+    }
+}
@@ -5,6 +5,8 @@ import org.junit.Test;
 
 import client.Client.UserIDProvider;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
@@ -12,7 +14,19 @@ import static org.mockito.Mockito.*;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.HashMap;
+import java.util.Map;
+
+import protocol.BinaryProtocol;
+import protocol.SessionResume;
+import protocol.WireReader;
 
 public class ClientTest {
 
@@ -43,8 +57,8 @@ public class ClientTest {
     public void testSendMessage() {
     String testMessage = "Hello World";
     client.sendMessage(testMessage);
-        // Verify the message was sent and GUI updated
-        verify(writerMock).println(testMessage);
+        // Verify the message was sent and GUI updated; lines go out on the client's writer thread
+        verify(writerMock, timeout(1000)).println(testMessage);
         verify(guiMock).appendMessage("You: " + testMessage + "\n");
     }
     @Test
@@ -55,23 +69,51 @@ public class ClientTest {
     @Test
     public void testSendPingToMembers() {
         client.sendPingToMembers();
-        verify(writerMock).println("PING_MEMBERS");
+        verify(writerMock, timeout(1000)).println("PING_MEMBERS");
     }
     
     @Test
     public void testRequestDetails() {
         client.requestDetails();
-        verify(writerMock).println("REQUEST_DETAILS");
-        verify(writerMock).flush();
+        verify(writerMock, timeout(1000)).println("REQUEST_DETAILS");
+        verify(writerMock, timeout(1000)).flush();
     }
     
     @Test
     public void testQuitApplication() throws IOException {
         client.quitApplication();
+        verify(writerMock).println("QUIT");
         verify(socketMock).close();
         // Verifying System.exit is tricky and generally not recommended in unit tests.
     }
     
+    @Test
+    public void testDecodeFrameResolvesSenderIndex() throws IOException {
+        java.io.ByteArrayOutputStream stream = new java.io.ByteArrayOutputStream();
+        stream.write(BinaryProtocol.encode(BinaryProtocol.OP_USER, 7, "bob"));
+        stream.write(BinaryProtocol.encode(BinaryProtocol.OP_PRIVATE, 7, "psst"));
+        stream.write(BinaryProtocol.encode(BinaryProtocol.OP_SYSTEM, "bob has joined the chat."));
+        stream.write(BinaryProtocol.encode(BinaryProtocol.OP_ROOM_CHAT, 7, "dev standup in 5"));
+        WireReader wire = new WireReader(new java.io.ByteArrayInputStream(stream.toByteArray()));
+        Map<Integer, String> names = new HashMap<>();
+
+        assertTrue(wire.readFrame());
+        assertNull(Client.decodeFrame(wire, names));
+        assertTrue(wire.readFrame());
+        assertEquals("bob(private): psst", Client.decodeFrame(wire, names));
+        assertTrue(wire.readFrame());
+        assertEquals("SYSTEM: bob has joined the chat.", Client.decodeFrame(wire, names));
+        assertTrue(wire.readFrame());
+        assertEquals("#dev bob: standup in 5", Client.decodeFrame(wire, names));
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeFrameRejectsRoomChatWithoutRoom() throws IOException {
+        WireReader wire = new WireReader(new java.io.ByteArrayInputStream(BinaryProtocol.encode(BinaryProtocol.OP_ROOM_CHAT, 7, "dev")));
+        assertTrue(wire.readFrame());
+        Client.decodeFrame(wire, new HashMap<>());
+    }
+
     @Test
     public void testAttemptIDVerification() throws IOException {
         // Configure the readerMock to simulate server response for ID verification
@@ -83,6 +125,39 @@ public class ClientTest {
         verify(writerMock).println("testUserID");
     
     }
-}
 
-    
+    @Test
+    public void testLineTypedWhileDisconnectedIsSentAfterResuming() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            server.setSoTimeout(5000);
+            CompletableFuture<Client> connecting = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return new Client(new Socket("localhost", server.getLocalPort()), false, () -> "alice", line -> { });
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            Socket first = server.accept();
+            BufferedReader firstIn = new BufferedReader(new InputStreamReader(first.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter firstOut = new PrintWriter(first.getOutputStream(), true);
+            assertEquals(SessionResume.OFFER, firstIn.readLine());
+            assertEquals("alice", firstIn.readLine());
+            firstOut.println(SessionResume.accepted("ID_ACCEPTED", "token1"));
+            Client headless = connecting.get(5, TimeUnit.SECONDS);
+            first.close();
+
+            // The client is reconnecting once the second connection arrives, so this line has to wait for it
+            try (Socket second = server.accept()) {
+                BufferedReader secondIn = new BufferedReader(new InputStreamReader(second.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter secondOut = new PrintWriter(second.getOutputStream(), true);
+                assertEquals(SessionResume.OFFER, secondIn.readLine());
+                assertEquals(SessionResume.request("token1", 0, "alice"), secondIn.readLine());
+                headless.sendCommand("typed while offline");
+                secondOut.println(SessionResume.accepted("ID_ACCEPTED", "token2"));
+                assertEquals("typed while offline", secondIn.readLine());
+                headless.quitApplication();
+                assertEquals("QUIT", secondIn.readLine());
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import server.Server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadGeneratorTest {
+
+    private static final int PORT = 12346;
+    private Server server;
+    private Thread serverThread;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(PORT);
+        serverThread = new Thread(server::start);
+        serverThread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!server.isRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        serverThread.join(2000);
+    }
+
+    @Test
+    public void testRunReportsThroughputAndLatency() throws Exception {
+        LoadGenerator generator = new LoadGenerator("localhost", PORT, 20, 200, 0.5, 1000, false);
+        LoadGenerator.Report report = generator.run();
+
+        assertEquals(20, report.connected);
+        assertEquals(0, report.connectFailures);
+        assertTrue(report.sent > 0);
+        // Every private message reaches one client and every broadcast reaches the other 19
+        assertTrue(report.received >= report.sent);
+        assertEquals(0, report.undelivered);
+        assertEquals(report.received, report.latency.count());
+        assertTrue(report.latency.valueAtPercentile(50) > 0);
+    }
+
+    @Test
+    public void testBinaryClientsReceiveTimestampedMessages() throws Exception {
+        LoadGenerator generator = new LoadGenerator("localhost", PORT, 5, 100, 0.0, 500, true);
+        LoadGenerator.Report report = generator.run();
+
+        assertEquals(5, report.connected);
+        assertEquals(report.sent * 4, report.received);
+    }
+}
@@ -0,0 +1,72 @@
+package client;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxTest {
+
+    @Test
+    public void testLinesWaitingTogetherGoOutInOneWrite() throws Exception {
+        Outbox outbox = new Outbox(10);
+        List<List<String>> writes = new ArrayList<>();
+        assertTrue(outbox.offer("one"));
+        assertTrue(outbox.offer("two"));
+        assertTrue(outbox.offer("three"));
+
+        outbox.connected(lines -> {
+            synchronized (writes) {
+                writes.add(new ArrayList<>(lines));
+            }
+        });
+        assertTrue(outbox.awaitFlushed(1000));
+        synchronized (writes) {
+            assertEquals(List.of(List.of("one", "two", "three")), writes);
+        }
+        outbox.close();
+    }
+
+    @Test
+    public void testFailedLinesAreWrittenAgainAfterReconnecting() throws Exception {
+        Outbox outbox = new Outbox(10);
+        CountDownLatch failed = new CountDownLatch(1);
+        outbox.connected(lines -> {
+            failed.countDown();
+            throw new IOException("connection reset");
+        });
+        outbox.offer("lost once");
+        assertTrue(failed.await(1, TimeUnit.SECONDS));
+        // Typed while disconnected
+        outbox.offer("typed later");
+        assertFalse(outbox.awaitFlushed(50));
+
+        List<String> written = new ArrayList<>();
+        outbox.connected(lines -> {
+            synchronized (written) {
+                written.addAll(lines);
+            }
+        });
+        assertTrue(outbox.awaitFlushed(1000));
+        synchronized (written) {
+            assertEquals(List.of("lost once", "typed later"), written);
+        }
+        outbox.close();
+    }
+
+    @Test
+    public void testQueueIsBounded() {
+        Outbox outbox = new Outbox(2);
+        assertTrue(outbox.offer("one"));
+        assertTrue(outbox.offer("two"));
+        assertFalse(outbox.offer("three"));
+        assertEquals(2, outbox.pending());
+    }
+}
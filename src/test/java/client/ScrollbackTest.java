@@ -0,0 +1,47 @@
+package client;
+
+import org.junit.Test;
+
+import javax.swing.JTextArea;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScrollbackTest {
+
+    @Test
+    public void testOnlyTheFirstLineOfAFrameAsksForAFlush() {
+        Scrollback scrollback = new Scrollback(10);
+        assertTrue(scrollback.add("one\n"));
+        assertFalse(scrollback.add("two\n"));
+        assertFalse(scrollback.add("three\n"));
+
+        JTextArea area = new JTextArea();
+        scrollback.flushTo(area);
+        assertEquals("one\ntwo\nthree\n", area.getText());
+        assertEquals(0, scrollback.pendingCount());
+        assertTrue(scrollback.add("four\n"));
+    }
+
+    @Test
+    public void testWindowKeepsOnlyTheNewestLines() {
+        Scrollback scrollback = new Scrollback(3);
+        JTextArea area = new JTextArea();
+        scrollback.add("line 0\n");
+        scrollback.add("line 1\n");
+        scrollback.flushTo(area);
+        scrollback.add("line 2\n");
+        scrollback.add("line 3\n");
+        scrollback.flushTo(area);
+        assertEquals("line 1\nline 2\nline 3\n", area.getText());
+
+        // A window that falls behind never holds more than it would show
+        for (int i = 4; i < 2000; i++) {
+            scrollback.add("line " + i + "\n");
+        }
+        assertEquals(3, scrollback.pendingCount());
+        scrollback.flushTo(area);
+        assertEquals("line 1997\nline 1998\nline 1999\n", area.getText());
+    }
+}
@@ -0,0 +1,51 @@
+package metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistogramTest {
+
+    @Test
+    public void testSmallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(5050, histogram.sum());
+        assertEquals(50, histogram.valueAtPercentile(50));
+        assertEquals(99, histogram.valueAtPercentile(99));
+        assertEquals(100, histogram.valueAtPercentile(100));
+        assertEquals(50.5, histogram.mean(), 0.001);
+    }
+
+    @Test
+    public void testLargeValuesStayWithinPrecision() {
+        Histogram histogram = new Histogram();
+        long[] values = {129, 1_000, 123_456, 9_876_543_210L, Long.MAX_VALUE / 2, Long.MAX_VALUE};
+        for (long value : values) {
+            histogram.record(value);
+            long reported = Histogram.highestEquivalentValue(Histogram.indexOf(value));
+            assertTrue(reported >= value);
+            assertTrue((reported - value) <= value / 64);
+        }
+        assertEquals(Long.MAX_VALUE, histogram.max());
+        assertEquals(Long.MAX_VALUE, histogram.valueAtPercentile(100));
+    }
+
+    @Test
+    public void testCountsAtPowersOfTwoAreExact() {
+        Histogram histogram = new Histogram();
+        for (long value : new long[] {1, 2, 3, 1024, 1025, 1L << 40, (1L << 40) + 1}) {
+            histogram.record(value);
+        }
+        assertEquals(0, histogram.countAtOrBelow(0));
+        assertEquals(2, histogram.countAtOrBelow(2));
+        assertEquals(3, histogram.countAtOrBelow(512));
+        assertEquals(4, histogram.countAtOrBelow(1024));
+        assertEquals(5, histogram.countAtOrBelow(2048));
+        assertEquals(6, histogram.countAtOrBelow(1L << 40));
+        assertEquals(7, histogram.countAtOrBelow(Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,81 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryProtocolTest {
+
+    @Test
+    void testVarintRoundTrip() throws IOException {
+        int[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE};
+        for (int value : values) {
+            byte[] buffer = new byte[5];
+            int end = BinaryProtocol.writeVarint(buffer, 0, value);
+            assertEquals(BinaryProtocol.varintSize(value), end);
+            assertEquals(value, BinaryProtocol.readVarint(buffer, 0));
+        }
+    }
+
+    @Test
+    void testFrameSizeWaitsForCompleteFrame() throws IOException {
+        byte[] frame = BinaryProtocol.encode(BinaryProtocol.OP_LINE, "hello");
+        assertEquals(frame.length, BinaryProtocol.frameSize(frame, 0, frame.length));
+        assertEquals(-1, BinaryProtocol.frameSize(frame, 0, frame.length - 1));
+        assertEquals(-1, BinaryProtocol.frameSize(frame, 0, 0));
+    }
+
+    @Test
+    void testRejectsOversizedFrame() {
+        byte[] header = new byte[5];
+        int end = BinaryProtocol.writeVarint(header, 0, BinaryProtocol.MAX_FRAME_LENGTH + 1);
+        assertThrows(IOException.class, () -> BinaryProtocol.frameSize(header, 0, end));
+    }
+
+    @Test
+    void testReaderSwitchesFromLinesToFrames() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write((BinaryProtocol.ACCEPTED + "\r\n").getBytes(StandardCharsets.UTF_8));
+        stream.write(BinaryProtocol.encode(BinaryProtocol.OP_USER, 300, "alice"));
+        stream.write(BinaryProtocol.encode(BinaryProtocol.OP_CHAT, 300, "hi there"));
+        stream.write(BinaryProtocol.encode(BinaryProtocol.OP_LINE, "MEMBER DETAILS:\nID: alice"));
+
+        // A tiny buffer forces frames to be split across reads
+        WireReader reader = new WireReader(new ByteArrayInputStream(stream.toByteArray()), 4);
+        assertEquals(BinaryProtocol.ACCEPTED, reader.readLine());
+
+        assertTrue(reader.readFrame());
+        assertEquals(BinaryProtocol.OP_USER, reader.opcode());
+        assertEquals(300, reader.index());
+        assertEquals("alice", reader.text());
+
+        assertTrue(reader.readFrame());
+        assertEquals(BinaryProtocol.OP_CHAT, reader.opcode());
+        assertEquals("hi there", reader.text());
+
+        assertTrue(reader.readFrame());
+        assertEquals("MEMBER DETAILS:\nID: alice", reader.text());
+        assertFalse(reader.readFrame());
+    }
+
+    @Test
+    void testFramedLinesSplitLikeTextLines() {
+        assertEquals(List.of("hello"), BinaryProtocol.lines("hello"));
+        assertEquals(List.of(""), BinaryProtocol.lines(""));
+        assertEquals(List.of("one", "two", "three"), BinaryProtocol.lines("one\r\ntwo\nthree\n"));
+        assertEquals(List.of("", "x"), BinaryProtocol.lines("\nx"));
+    }
+
+    @Test
+    void testOfferedVersion() {
+        assertEquals(1, BinaryProtocol.offeredVersion(BinaryProtocol.OFFER));
+        assertEquals(0, BinaryProtocol.offeredVersion("HELLO TEXT"));
+        assertEquals(0, BinaryProtocol.offeredVersion("alice"));
+    }
+}
@@ -0,0 +1,21 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MailboxKeyTest {
+
+    @Test
+    void testOnlyAWholeKeyIsTaken() {
+        String key = MailboxKey.newKey();
+        assertEquals(key, MailboxKey.issuedKey(MailboxKey.issued(key)));
+        assertEquals(key, MailboxKey.offeredKey(MailboxKey.offer(key)));
+
+        // Chat from a user whose ID starts like the key line
+        assertNull(MailboxKey.issuedKey("MAILBOX_KEY " + key + ": hello"));
+        assertNull(MailboxKey.issuedKey("MAILBOX_KEY not a key at all, no not at all"));
+        assertNull(MailboxKey.offeredKey(MailboxKey.offer("short")));
+        assertNull(MailboxKey.issuedKey(key));
+    }
+}
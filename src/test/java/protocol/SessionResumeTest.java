@@ -0,0 +1,33 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SessionResumeTest {
+
+    @Test
+    void testTokenRidesOnAcceptedLine() {
+        String token = SessionResume.newToken();
+        assertEquals(32, token.length());
+        assertNotEquals(token, SessionResume.newToken());
+
+        String accepted = SessionResume.accepted(BinaryProtocol.ACCEPTED, token);
+        assertEquals(BinaryProtocol.ACCEPTED, SessionResume.withoutToken(accepted));
+        assertEquals(token, SessionResume.tokenOf(accepted));
+        assertEquals("ID_ACCEPTED", SessionResume.withoutToken("ID_ACCEPTED"));
+        assertNull(SessionResume.tokenOf("ID_ACCEPTED"));
+    }
+
+    @Test
+    void testRequestRoundTripKeepsSpacesInUserID() {
+        SessionResume.Request request = SessionResume.parse(SessionResume.request("abc", 42, "mary ann"));
+        assertEquals("abc", request.token);
+        assertEquals(42, request.received);
+        assertEquals("mary ann", request.userID);
+
+        assertNull(SessionResume.parse("RESUME abc"));
+        assertNull(SessionResume.parse("RESUME abc many bob"));
+        assertNull(SessionResume.parse("alice"));
+    }
+}
@@ -0,0 +1,194 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClusterNodeTest {
+
+    private static final int NODES = 3;
+    private final NioServer[] servers = new NioServer[NODES];
+    private final ClusterNode[] nodes = new ClusterNode[NODES];
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        int[] clusterPorts = new int[NODES];
+        for (int i = 0; i < NODES; i++) {
+            Map<String, ServerHandler> clients = new ConcurrentHashMap<>();
+            RoomRegistry rooms = new RoomRegistry();
+            nodes[i] = new ClusterNode(i + 1, clients, rooms);
+            clusterPorts[i] = nodes[i].start(0);
+            servers[i] = new NioServer(0, clients, rooms, 1);
+            NioServer server = servers[i];
+            new Thread(() -> {
+                try {
+                    server.start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }).start();
+        }
+        for (int i = 0; i < NODES; i++) {
+            for (int j = 0; j < NODES; j++) {
+                if (i != j) {
+                    nodes[i].addPeer(j + 1, new InetSocketAddress("localhost", clusterPorts[j]));
+                }
+            }
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        for (int i = 0; i < NODES; i++) {
+            while ((nodes[i].peerCount() < NODES - 1 || servers[i].getLocalPort() <= 0)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(NODES - 1, nodes[i].peerCount());
+            assertEquals(1, nodes[i].leader());
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        for (int i = 0; i < NODES; i++) {
+            nodes[i].stop();
+            servers[i].stop();
+        }
+    }
+
+    @Test
+    public void testIDsAreUniqueAcrossNodesAndChatIsRelayed() throws Exception {
+        try (Socket alice = connect(0); Socket bob = connect(1); Socket carol = connect(2)) {
+            BufferedReader aliceIn = reader(alice);
+            BufferedReader bobIn = reader(bob);
+            BufferedReader carolIn = reader(carol);
+
+            send(alice, "alice");
+            assertEquals("ID_ACCEPTED", aliceIn.readLine());
+            assertEquals("you are the coordinator.", aliceIn.readLine());
+
+            // Taken on node 1, so taken on node 2 as well
+            send(bob, "alice");
+            assertEquals("ID_TAKEN", bobIn.readLine());
+            send(bob, "bob");
+            assertEquals("ID_ACCEPTED", bobIn.readLine());
+            assertEquals("welcome bob the current coordiantor is alice", bobIn.readLine());
+            assertEquals("SYSTEM: bob has joined the chat.", readUntilPrefix(aliceIn, "SYSTEM: bob"));
+
+            send(carol, "carol");
+            assertEquals("ID_ACCEPTED", carolIn.readLine());
+            assertEquals("welcome carol the current coordiantor is alice", carolIn.readLine());
+            readUntilPrefix(bobIn, "SYSTEM: carol");
+
+            send(bob, "hello from node 2");
+            assertEquals("bob: hello from node 2", readUntilPrefix(aliceIn, "bob:"));
+            assertEquals("bob: hello from node 2", readUntilPrefix(carolIn, "bob:"));
+            // Tabs and backslashes in the text stay in their field on the peer link
+            send(bob, "tab\there, \\t and \\n");
+            assertEquals("bob: tab\there, \\t and \\n", readUntilPrefix(aliceIn, "bob:"));
+
+            send(carol, "@alice across the cluster");
+            assertEquals("carol(private): across the cluster", readUntilPrefix(aliceIn, "carol(private)"));
+            send(carol, "@dave nobody here");
+            assertEquals("SYSTEM: Message not delivered: dave is not online.", readUntilPrefix(carolIn, "SYSTEM: Message"));
+        }
+    }
+
+    @Test
+    public void testCoordinatorRoleMovesToAnotherNode() throws Exception {
+        try (Socket alice = connect(0); Socket bob = connect(1); Socket carol = connect(2)) {
+            BufferedReader bobIn = reader(bob);
+            BufferedReader carolIn = reader(carol);
+            send(alice, "alice");
+            reader(alice).readLine();
+            send(bob, "bob");
+            assertEquals("ID_ACCEPTED", bobIn.readLine());
+            send(carol, "carol");
+            assertEquals("ID_ACCEPTED", carolIn.readLine());
+            readUntilPrefix(bobIn, "SYSTEM: carol");
+
+            // Nobody else is on node 1, so the leader picks the new coordinator from the other nodes. The leave
+            // and the announcement come over different links, so either may arrive first.
+            send(alice, "QUIT");
+            String bobSaw = readUntilSuffix(bobIn, "is now the coordinator.");
+            String carolSaw = readUntilSuffix(carolIn, "is now the coordinator.");
+            String announced = bobSaw.substring(bobSaw.lastIndexOf("SYSTEM: "));
+            assertEquals(announced, carolSaw.substring(carolSaw.lastIndexOf("SYSTEM: ")));
+            String coordinator = announced.substring("SYSTEM: ".length(), announced.indexOf(" is now"));
+            assertTrue(coordinator.equals("bob") || coordinator.equals("carol"));
+            // The change is one announcement to everybody, with no separate line for the new coordinator
+            assertFalse(bobSaw.contains("You are now the coordinator."));
+            assertFalse(carolSaw.contains("You are now the coordinator."));
+
+            long deadline = System.currentTimeMillis() + 2000;
+            for (ClusterNode node : nodes) {
+                while (!coordinator.equals(node.coordinatorID()) && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(coordinator, node.coordinatorID());
+            }
+        }
+    }
+
+    @Test
+    public void testPeerFieldsRoundTripThroughEscaping() {
+        String field = "a\tb\nCOORDINATOR\t9\t1\tmallory\r\\n\\";
+        StringBuilder line = new StringBuilder();
+        ClusterNode.escape(line, field);
+        assertEquals(-1, line.indexOf("\t"));
+        assertEquals(-1, line.indexOf("\n"));
+        assertEquals(-1, line.indexOf("\r"));
+        assertEquals(field, ClusterNode.unescape(line.toString()));
+    }
+
+    private Socket connect(int node) throws IOException {
+        Socket socket = new Socket("localhost", servers[node].getLocalPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String line) throws IOException {
+        new PrintWriter(socket.getOutputStream(), true).println(line);
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    // Everything read up to and including the first line with the suffix
+    private static String readUntilSuffix(BufferedReader in, String suffix) throws IOException {
+        StringBuilder seen = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (seen.length() > 0) {
+                seen.append('\n');
+            }
+            seen.append(line);
+            if (line.endsWith(suffix)) {
+                break;
+            }
+        }
+        return seen.toString();
+    }
+
+    // Skips lines until one starts with the prefix
+    private static String readUntilPrefix(BufferedReader in, String prefix) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        return null;
+    }
+}
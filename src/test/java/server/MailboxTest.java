@@ -0,0 +1,214 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import protocol.MailboxKey;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MailboxTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testMessagesForKnownUsersWaitUntilDelivered() throws IOException {
+        Mailbox mailbox = new Mailbox(directory, 4096, 0, 0, 0, 10);
+        mailbox.enroll("bob");
+        assertEquals(Mailbox.StoreResult.UNKNOWN, mailbox.store("nobody", "alice", "hello?"));
+        assertEquals(Mailbox.StoreResult.STORED, mailbox.store("bob", "alice", "one"));
+        assertEquals(Mailbox.StoreResult.STORED, mailbox.store("bob", "carol", "two"));
+        assertEquals(2, mailbox.pending("bob"));
+
+        List<Mailbox.Delivery> chunksTaken = new ArrayList<>();
+        Mailbox.Delivery delivery = mailbox.start("bob", "session", chunksTaken::add);
+        assertEquals(List.of("SYSTEM: 2 private messages arrived while you were away.",
+                "alice(private): one", "carol(private): two"), drain(delivery));
+        assertEquals(List.of(delivery), chunksTaken);
+        assertFalse(delivery.nextChunk());
+        assertEquals(0, mailbox.pending("bob"));
+        assertNull(mailbox.start("bob", "later session", chunksTaken::add));
+        mailbox.close();
+    }
+
+    @Test
+    public void testChunksAndProgressSurviveARestart() throws IOException {
+        Mailbox mailbox = new Mailbox(directory, 4096, 0, 0, 0, 2);
+        mailbox.enroll("bob");
+        for (int i = 1; i <= 5; i++) {
+            mailbox.store("bob", "alice", "m" + i);
+        }
+        Mailbox.Delivery delivery = mailbox.start("bob", "session", taken -> { });
+        assertEquals(List.of("SYSTEM: 5 private messages arrived while you were away.",
+                "alice(private): m1", "alice(private): m2"), drain(delivery));
+        assertTrue(delivery.nextChunk());
+        assertEquals(List.of("alice(private): m3", "alice(private): m4"), drain(delivery));
+        mailbox.close();
+
+        Mailbox reopened = new Mailbox(directory, 4096, 0, 0, 0, 2);
+        assertEquals(1, reopened.pending("bob"));
+        assertEquals(List.of("SYSTEM: 1 private message arrived while you were away.", "alice(private): m5"),
+                drain(reopened.start("bob", "session", taken -> { })));
+        // Known users stay known, mail or not
+        reopened.enroll("carol");
+        reopened.close();
+        Mailbox again = new Mailbox(directory, 4096, 0, 0, 0, 2);
+        assertEquals(Mailbox.StoreResult.STORED, again.store("carol", "alice", "hi"));
+        again.close();
+    }
+
+    @Test
+    public void testOnlyTheKeyFromEnrollmentOpensTheMailbox() throws IOException {
+        Mailbox mailbox = new Mailbox(directory, 4096, 0, 0, 0, 10);
+        String key = mailbox.enroll("bob");
+        assertNotNull(key);
+        assertNull(mailbox.enroll("bob"));
+        assertTrue(mailbox.opens("bob", key));
+        assertFalse(mailbox.opens("bob", MailboxKey.newKey()));
+        assertFalse(mailbox.opens("bob", null));
+        assertFalse(mailbox.opens("carol", key));
+        mailbox.close();
+
+        Mailbox reopened = new Mailbox(directory, 4096, 0, 0, 0, 10);
+        assertTrue(reopened.opens("bob", key));
+        reopened.close();
+    }
+
+    @Test
+    public void testQuotaAndTimeToLiveBoundAMailbox() throws Exception {
+        Mailbox mailbox = new Mailbox(directory, 4096, 0, 200, 2, 10);
+        mailbox.enroll("bob");
+        assertEquals(Mailbox.StoreResult.STORED, mailbox.store("bob", "alice", "old one"));
+        assertEquals(Mailbox.StoreResult.STORED, mailbox.store("bob", "alice", "old two"));
+        assertEquals(Mailbox.StoreResult.FULL, mailbox.store("bob", "alice", "too many"));
+
+        // Once the old ones expire there is room again, and only the new one is delivered
+        Thread.sleep(300);
+        assertEquals(Mailbox.StoreResult.STORED, mailbox.store("bob", "alice", "new"));
+        assertEquals(List.of("SYSTEM: 1 private message arrived while you were away.", "alice(private): new"),
+                drain(mailbox.start("bob", "session", taken -> { })));
+        mailbox.close();
+    }
+
+    @Test
+    public void testResumedSessionTakesOverTheDelivery() throws IOException {
+        Mailbox mailbox = new Mailbox(directory, 4096, 0, 0, 0, 10);
+        mailbox.enroll("bob");
+        mailbox.store("bob", "alice", "one");
+        mailbox.store("bob", "alice", "two");
+        Mailbox.Delivery dropped = mailbox.start("bob", "first connection", taken -> { });
+        assertEquals("SYSTEM: 2 private messages arrived while you were away.", dropped.next().text());
+        assertEquals("alice(private): one", dropped.next().text());
+
+        // No second notice, and nothing the first connection was handed is sent again
+        Mailbox.Delivery resumed = mailbox.start("bob", "second connection", taken -> { });
+        assertEquals(List.of("alice(private): two"), drain(resumed));
+        assertNull(dropped.next());
+        mailbox.close();
+    }
+
+    @Test
+    public void testOfflineRecipientGetsPrivateMessagesAfterLoggingIn() throws Exception {
+        Mailbox mailbox = new Mailbox(directory, 4096, 0, 0, 0, 1);
+        Map<String, ServerHandler> clients = new ConcurrentHashMap<>();
+        RoomRegistry rooms = new RoomRegistry(null, mailbox);
+        ByteArrayOutputStream aliceOut = new ByteArrayOutputStream();
+        ServerHandler alice = login("alice", aliceOut, clients, rooms);
+        ByteArrayOutputStream firstBobOut = new ByteArrayOutputStream();
+        ServerHandler bob = login("bob", firstBobOut, clients, rooms);
+        String key = issuedKey(awaitOutput(firstBobOut, MailboxKey.ISSUED_PREFIX));
+        assertNotNull(key);
+        assertFalse(bob.handleCommand("QUIT"));
+        bob.cleanUp();
+
+        alice.handleCommand("@bob are you there?");
+        alice.handleCommand("@bob call me");
+        alice.handleCommand("@nobody hello");
+        String aliceSaw = awaitOutput(aliceOut, "nobody is not online");
+        assertTrue(aliceSaw.contains("SYSTEM: bob is offline; the message will be delivered when they log in."));
+        assertTrue(aliceSaw.contains("SYSTEM: Message not delivered: nobody is not online."));
+
+        // One message per chunk, so the second only follows after a pause
+        ByteArrayOutputStream bobOut = new ByteArrayOutputStream();
+        login("bob", bobOut, clients, rooms, MailboxKey.offer(key));
+        String bobSaw = awaitOutput(bobOut, "call me");
+        assertTrue(bobSaw.contains("SYSTEM: 2 private messages arrived while you were away.\n"
+                + "alice(private): are you there?\nalice(private): call me\n"), bobSaw);
+        assertTrue(bobSaw.indexOf("ID_ACCEPTED") < bobSaw.indexOf("arrived while you were away"));
+        mailbox.close();
+    }
+
+    @Test
+    public void testLoginWithoutTheKeyGetsNoMail() throws Exception {
+        Mailbox mailbox = new Mailbox(directory, 4096, 0, 0, 0, 10);
+        Map<String, ServerHandler> clients = new ConcurrentHashMap<>();
+        RoomRegistry rooms = new RoomRegistry(null, mailbox);
+        ServerHandler bob = login("bob", new ByteArrayOutputStream(), clients, rooms);
+        assertFalse(bob.handleCommand("QUIT"));
+        bob.cleanUp();
+        ServerHandler alice = login("alice", new ByteArrayOutputStream(), clients, rooms);
+        alice.handleCommand("@bob the secret");
+
+        // Anybody may log in as bob, but only a client holding bob's key reads bob's mail
+        ByteArrayOutputStream impostorOut = new ByteArrayOutputStream();
+        ServerHandler impostor = login("bob", impostorOut, clients, rooms, MailboxKey.offer(MailboxKey.newKey()));
+        String impostorSaw = awaitOutput(impostorOut, "mailbox key");
+        assertTrue(impostorSaw.contains("SYSTEM: Private messages kept for you can only be read from a client holding your mailbox key."));
+        assertFalse(impostorSaw.contains("the secret"));
+        assertFalse(impostorSaw.contains(MailboxKey.ISSUED_PREFIX));
+        impostor.handleCommand("QUIT");
+        impostor.cleanUp();
+        assertEquals(1, mailbox.pending("bob"));
+        mailbox.close();
+    }
+
+    private static String issuedKey(String output) {
+        for (String line : output.split("\n")) {
+            if (MailboxKey.issuedKey(line) != null) {
+                return MailboxKey.issuedKey(line);
+            }
+        }
+        return null;
+    }
+
+    private static List<String> drain(Mailbox.Delivery delivery) {
+        List<String> lines = new ArrayList<>();
+        OutboundMessage message;
+        while ((message = delivery.next()) != null) {
+            lines.add(message.text());
+        }
+        return lines;
+    }
+
+    private static ServerHandler login(String userID, ByteArrayOutputStream out,
+                                       Map<String, ServerHandler> clients, RoomRegistry rooms, String... hello) throws IOException {
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(out);
+        ServerHandler handler = new ServerHandler(socket, clients, rooms);
+        for (String line : hello) {
+            assertFalse(handler.handleLogin(line));
+        }
+        assertTrue(handler.handleLogin(userID));
+        return handler;
+    }
+
+    private static String awaitOutput(ByteArrayOutputStream out, String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!out.toString().contains(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,122 @@
+package server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MemberDirectoryTest {
+
+    private Map<String, ServerHandler> clients;
+    private RoomRegistry rooms;
+
+    @BeforeEach
+    public void setUp() {
+        clients = new ConcurrentHashMap<>();
+        rooms = new RoomRegistry();
+    }
+
+    @Test
+    public void testPagesFollowTheCursorAndPrefix() {
+        Room room = rooms.open("dev");
+        for (String userID : new String[] {"dan", "amy", "carl", "cass", "bob", "cat"}) {
+            ServerHandler handler = new ServerHandler(mock(Socket.class), clients, rooms);
+            handler.setUserID(userID);
+            room.join(handler);
+        }
+        MemberDirectory directory = room.directory();
+
+        assertEquals(List.of("MEMBER amy - 0", "MEMBER bob - 0", "MEMBERS_END 2 NEXT bob"),
+                lines(directory.page(null, null, 2, null)));
+        assertEquals(List.of("MEMBER carl - 0 COORDINATOR", "MEMBER cass - 0", "MEMBERS_END 2 NEXT cass"),
+                lines(directory.page(null, "bob", 2, "carl")));
+        // The last page has no cursor
+        assertEquals(List.of("MEMBER cat - 0", "MEMBER dan - 0", "MEMBERS_END 2"),
+                lines(directory.page(null, "cass", 5, null)));
+        assertEquals(List.of("MEMBER carl - 0", "MEMBER cass - 0", "MEMBER cat - 0", "MEMBERS_END 3"),
+                lines(directory.page("ca", null, 5, null)));
+        assertEquals(List.of("MEMBER cat - 0", "MEMBERS_END 1"), lines(directory.page("ca", "cass", 5, null)));
+        assertEquals(List.of("MEMBERS_END 0"), lines(directory.page("zz", null, 5, null)));
+    }
+
+    @Test
+    public void testDirectoryIsRebuiltOnlyAfterMembershipChanges() {
+        Room room = rooms.open("dev");
+        ServerHandler amy = new ServerHandler(mock(Socket.class), clients, rooms);
+        amy.setUserID("amy");
+        room.join(amy);
+
+        MemberDirectory first = room.directory();
+        assertSame(first, room.directory());
+
+        ServerHandler bob = new ServerHandler(mock(Socket.class), clients, rooms);
+        bob.setUserID("bob");
+        room.join(bob);
+        MemberDirectory second = room.directory();
+        assertNotSame(first, second);
+        assertEquals(2, second.size());
+        // Views already handed out stay as they were
+        assertEquals(1, first.size());
+
+        room.leave(amy);
+        assertEquals(1, room.directory().size());
+    }
+
+    @Test
+    public void testApprovedMemberPagesThroughTheRoom() throws Exception {
+        ByteArrayOutputStream aliceOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream bobOut = new ByteArrayOutputStream();
+        ServerHandler alice = login("alice", aliceOut);
+        ServerHandler bob = login("bob", bobOut);
+        login("carol", new ByteArrayOutputStream());
+
+        bob.handleCommand("MEMBERS");
+        assertTrue(awaitOutput(bobOut, "for member details first.").contains("SYSTEM: Ask the coordinator of #lobby for member details first."));
+
+        bob.handleCommand("REQUEST_DETAILS");
+        assertTrue(awaitOutput(aliceOut, "DETAILS_REQUEST_FROM bob").contains("DETAILS_REQUEST_FROM bob"));
+        alice.handleCommand("APPROVE_DETAILS bob");
+        String output = awaitOutput(bobOut, "MEMBERS_END");
+        // One line per member, nothing spanning lines
+        assertTrue(output.contains("MEMBER alice - 0 COORDINATOR\nMEMBER bob - 0\nMEMBER carol - 0\nMEMBERS_END 3\n"));
+
+        bob.handleCommand("MEMBERS AFTER alice 1");
+        assertTrue(awaitOutput(bobOut, "MEMBERS_END 1 NEXT bob").contains("MEMBER bob - 0\nMEMBERS_END 1 NEXT bob"));
+        bob.handleCommand("MEMBERS PREFIX c");
+        assertTrue(awaitOutput(bobOut, "MEMBER carol - 0\nMEMBERS_END 1\n").contains("MEMBER carol - 0\nMEMBERS_END 1\n"));
+    }
+
+    private static List<String> lines(OutboundQueue.Replay page) {
+        List<String> lines = new ArrayList<>();
+        for (OutboundMessage line = page.next(); line != null; line = page.next()) {
+            lines.add(line.text());
+        }
+        return lines;
+    }
+
+    private ServerHandler login(String userID, ByteArrayOutputStream out) throws IOException {
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(out);
+        ServerHandler handler = new ServerHandler(socket, clients, rooms);
+        assertTrue(handler.handleLogin(userID));
+        return handler;
+    }
+
+    private static String awaitOutput(ByteArrayOutputStream out, String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!out.toString().contains(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return out.toString();
+    }
+}
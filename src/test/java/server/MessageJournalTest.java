@@ -0,0 +1,148 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MessageJournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testLastAndSinceReplayOneRoom() throws IOException {
+        MessageJournal journal = new MessageJournal(directory, 4096, 0, 0);
+        journal.append("lobby", "alice", "one");
+        long second = journal.append("dev", "bob", "two");
+        journal.append("lobby", "alice", "three");
+        journal.append("dev", "carol", "four");
+
+        assertEquals(List.of("HISTORY 3 alice: three", "HISTORY_END 1"), drain(journal.last("lobby", 1)));
+        assertEquals(List.of("HISTORY 2 #dev bob: two", "HISTORY 4 #dev carol: four", "HISTORY_END 2"), drain(journal.last("dev", 10)));
+        assertEquals(List.of("HISTORY 4 #dev carol: four", "HISTORY_END 1"), drain(journal.since("dev", second, 10)));
+        assertEquals(List.of("HISTORY_END 0"), drain(journal.since("ops", 0, 10)));
+        journal.close();
+    }
+
+    @Test
+    public void testSegmentsRollAndOldOnesAreDeleted() throws IOException {
+        // About eight records per segment, and at most two segments' worth kept
+        MessageJournal journal = new MessageJournal(directory, 512, 1024, 0);
+        for (int i = 0; i < 100; i++) {
+            journal.append("lobby", "alice", "message number " + i + " padded out to some length");
+        }
+        assertTrue(journal.segmentCount() <= 3);
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(journal.segmentCount(), files.count());
+        }
+
+        List<String> history = drain(journal.last("lobby", 1000));
+        assertTrue(history.size() < 100);
+        assertEquals("HISTORY 100 alice: message number 99 padded out to some length", history.get(history.size() - 2));
+        journal.close();
+    }
+
+    @Test
+    public void testReopenRecoversRecordsAndIgnoresATornTail() throws IOException {
+        MessageJournal journal = new MessageJournal(directory, 4096, 0, 0);
+        journal.append("lobby", "alice", "kept");
+        journal.append("dev", "bob", "also kept");
+        journal.close();
+
+        // A record header whose payload never made it to disk
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.findFirst().get();
+        }
+        int end = "kept".length() + "also kept".length() + 2 * (8 + 20) + "lobbyalicedevbob".length();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(8).putInt(0, 100).putInt(4, 12345), end);
+        }
+
+        MessageJournal reopened = new MessageJournal(directory, 4096, 0, 0);
+        assertEquals(3, reopened.nextSequence());
+        assertEquals(3, reopened.append("lobby", "carol", "after restart"));
+        assertEquals(List.of("HISTORY 1 alice: kept", "HISTORY 3 carol: after restart", "HISTORY_END 2"), drain(reopened.last("lobby", 10)));
+        assertEquals(List.of("HISTORY 2 #dev bob: also kept", "HISTORY_END 1"), drain(reopened.last("dev", 10)));
+        reopened.close();
+    }
+
+    @Test
+    public void testNumberingGoesOnFromAnEmptySegment() throws IOException {
+        // All that is left after retention deleted every older segment and the server stopped before the next append
+        Files.write(directory.resolve("00000000000000000042.seg"), new byte[4096]);
+        MessageJournal journal = new MessageJournal(directory, 4096, 0, 0);
+        assertEquals(42, journal.nextSequence());
+        assertEquals(42, journal.append("lobby", "alice", "numbered on"));
+        journal.close();
+    }
+
+    @Test
+    public void testHistoryCommandStreamsRoomChat() throws Exception {
+        MessageJournal journal = new MessageJournal(directory, 4096, 0, 0);
+        Map<String, ServerHandler> clients = new ConcurrentHashMap<>();
+        RoomRegistry rooms = new RoomRegistry(journal);
+        ByteArrayOutputStream aliceOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream bobOut = new ByteArrayOutputStream();
+        ServerHandler alice = login("alice", aliceOut, clients, rooms);
+        alice.handleCommand("JOIN dev");
+        alice.handleCommand("first");
+        alice.handleCommand("second");
+        alice.handleCommand("#lobby hello");
+
+        ServerHandler bob = login("bob", bobOut, clients, rooms);
+        bob.handleCommand("HISTORY 5");
+        assertTrue(awaitOutput(bobOut, "HISTORY_END 1").contains("HISTORY 3 alice: hello\nHISTORY_END 1"));
+        bob.handleCommand("HISTORY #dev 5");
+        assertTrue(awaitOutput(bobOut, "You are not in #dev.").contains("SYSTEM: You are not in #dev."));
+        bob.handleCommand("JOIN dev");
+        bob.handleCommand("HISTORY SINCE 1");
+        assertTrue(awaitOutput(bobOut, "second\nHISTORY_END").contains("HISTORY 2 #dev alice: second\nHISTORY_END 1"));
+        bob.handleCommand("HISTORY 99999999999");
+        assertTrue(awaitOutput(bobOut, "Usage: HISTORY").contains("SYSTEM: Usage: HISTORY [#room] <count>"));
+        journal.close();
+    }
+
+    private static List<String> drain(MessageJournal.Cursor cursor) {
+        List<String> lines = new ArrayList<>();
+        OutboundMessage message;
+        while ((message = cursor.next()) != null) {
+            lines.add(message.text());
+        }
+        return lines;
+    }
+
+    private static ServerHandler login(String userID, ByteArrayOutputStream out,
+                                       Map<String, ServerHandler> clients, RoomRegistry rooms) throws IOException {
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(out);
+        ServerHandler handler = new ServerHandler(socket, clients, rooms);
+        assertTrue(handler.handleLogin(userID));
+        return handler;
+    }
+
+    private static String awaitOutput(ByteArrayOutputStream out, String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!out.toString().contains(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,121 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageLogTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testEntriesAreWrittenInOrder() throws Exception {
+        Path file = tempDir.resolve("log.txt");
+        MessageLog log = new MessageLog(file, 1024, 10, MessageLog.BackpressurePolicy.BLOCK, 1);
+        log.start();
+        for (int i = 0; i < 500; i++) {
+            log.log("message " + i, i % 2 == 0);
+        }
+        log.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(500, lines.size());
+        assertTrue(lines.get(0).endsWith("[INCOMING] message 0"));
+        assertTrue(lines.get(499).endsWith("[OUTGOING] message 499"));
+        assertEquals(500, log.writtenCount());
+        assertEquals(0, log.droppedCount());
+    }
+
+    @Test
+    void testEntriesInPartsAreJoinedByTheWriter() throws Exception {
+        Path file = tempDir.resolve("parts.txt");
+        MessageLog log = new MessageLog(file, 1024, 10, MessageLog.BackpressurePolicy.BLOCK, 1);
+        log.start();
+        log.log("Received from ", "bob", "caf\u00e9 \u2615 \ud83d\ude00", true);
+        log.log("Broadcasted: ", null, "bob: hi", false);
+        log.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertTrue(lines.get(0).matches("\\d{4}/\\d{2}/\\d{2} \\d{2}:\\d{2}:\\d{2} \\[INCOMING\\] Received from bob: caf\u00e9 \u2615 \ud83d\ude00"), lines.get(0));
+        assertTrue(lines.get(1).endsWith("[OUTGOING] Broadcasted: bob: hi"));
+    }
+
+    @Test
+    void testIdleWriterWakesForANewEntry() throws Exception {
+        Path file = tempDir.resolve("idle.txt");
+        MessageLog log = new MessageLog(file, 1024, 10, MessageLog.BackpressurePolicy.BLOCK, 1);
+        log.start();
+        log.log("first", true);
+        awaitWritten(log, 1);
+        // Long enough for the fsync, after which the writer parks with no timeout
+        Thread.sleep(100);
+        log.log("second", true);
+        awaitWritten(log, 2);
+        assertEquals(2, log.writtenCount());
+        log.close();
+        assertEquals(2, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+    }
+
+    private static void awaitWritten(MessageLog log, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (log.writtenCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void testTimestampIsFormattedOncePerSecond() {
+        MessageLog.Timestamp timestamp = new MessageLog.Timestamp();
+        byte[] first = timestamp.bytes(1_700_000_000_000L);
+        assertSame(first, timestamp.bytes(1_700_000_000_999L));
+        assertNotSame(first, timestamp.bytes(1_700_000_001_000L));
+    }
+
+    @Test
+    void testDropPolicyCountsOverflow() throws Exception {
+        Path file = tempDir.resolve("drop.txt");
+        MessageLog log = new MessageLog(file, 4, 10, MessageLog.BackpressurePolicy.DROP, 1);
+        // Writer not started yet, so the queue fills up
+        for (int i = 0; i < 10; i++) {
+            log.log("message " + i, false);
+        }
+        assertEquals(4, log.queueDepth());
+        assertEquals(6, log.droppedCount());
+
+        log.start();
+        log.close();
+        assertEquals(4, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+        assertEquals(0, log.queueDepth());
+    }
+
+    @Test
+    void testSamplePolicyKeepsPartOfOverflow() {
+        MessageLog log = new MessageLog(tempDir.resolve("sample.txt"), 8, 10, MessageLog.BackpressurePolicy.SAMPLE, 2);
+        for (int i = 0; i < 12; i++) {
+            log.log("message " + i, false);
+        }
+        // The first half fills freely, after that only every second entry is admitted
+        assertEquals(8, log.queueDepth());
+        assertEquals(4, log.droppedCount());
+    }
+
+    @Test
+    void testBoundedQueueRejectsWhenFull() {
+        MpscBoundedQueue<String> queue = new MpscBoundedQueue<>(3);
+        assertEquals(4, queue.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer("e" + i));
+        }
+        assertFalse(queue.offer("overflow"));
+        assertEquals("e0", queue.poll());
+        assertTrue(queue.offer("e4"));
+        assertEquals(4, queue.size());
+    }
+}
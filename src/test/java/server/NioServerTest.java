@@ -0,0 +1,271 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import protocol.BinaryProtocol;
+import protocol.SessionResume;
+import protocol.WireReader;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NioServerTest {
+
+    private NioServer server;
+    private Thread serverThread;
+    private Map<String, ServerHandler> clients;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        clients = new ConcurrentHashMap<>();
+        server = new NioServer(0, clients, 2);
+        serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serverThread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getLocalPort() <= 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        server.stop();
+        serverThread.join(2000);
+    }
+
+    @Test
+    public void testHandshakeAndBroadcast() throws Exception {
+        try (Socket first = new Socket("localhost", server.getLocalPort());
+             Socket second = new Socket("localhost", server.getLocalPort())) {
+            BufferedReader firstIn = reader(first);
+            BufferedReader secondIn = reader(second);
+            PrintWriter firstOut = new PrintWriter(first.getOutputStream(), true);
+            PrintWriter secondOut = new PrintWriter(second.getOutputStream(), true);
+
+            firstOut.println("alice");
+            assertEquals("ID_ACCEPTED", firstIn.readLine());
+            assertEquals("you are the coordinator.", firstIn.readLine());
+
+            secondOut.println("alice");
+            assertEquals("ID_TAKEN", secondIn.readLine());
+            secondOut.println("bob");
+            assertEquals("ID_ACCEPTED", secondIn.readLine());
+
+            secondOut.println("hello everyone");
+            assertEquals("bob: hello everyone", readUntilPrefix(firstIn, "bob:"));
+
+            secondOut.println("@alice just for you");
+            assertEquals("bob(private): just for you", readUntilPrefix(firstIn, "bob(private)"));
+            assertTrue(clients.containsKey("alice"));
+            assertTrue(clients.containsKey("bob"));
+        }
+    }
+
+    @Test
+    public void testQuitRemovesClient() throws Exception {
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            BufferedReader in = reader(socket);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("carol");
+            assertEquals("ID_ACCEPTED", in.readLine());
+            out.println("QUIT");
+            long deadline = System.currentTimeMillis() + 2000;
+            while (clients.containsKey("carol") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertFalse(clients.containsKey("carol"));
+        }
+    }
+
+    @Test
+    public void testLinesSplitAcrossReadsAreReassembled() throws Exception {
+        try (Socket first = new Socket("localhost", server.getLocalPort());
+             Socket second = new Socket("localhost", server.getLocalPort())) {
+            BufferedReader firstIn = reader(first);
+            PrintWriter firstOut = new PrintWriter(first.getOutputStream(), true);
+            firstOut.println("alice");
+            assertEquals("ID_ACCEPTED", firstIn.readLine());
+            OutputStream secondOut = second.getOutputStream();
+            secondOut.write("bob\n".getBytes(StandardCharsets.UTF_8));
+
+            // A short line fits a pooled buffer, a long one gets its own; the pooled buffer is used again after it
+            String longLine = "x".repeat(NioEventLoop.LINE_BUFFER_SIZE * 3);
+            for (String line : new String[] {"hello there", longLine, "and again"}) {
+                int half = line.length() / 2;
+                secondOut.write(line.substring(0, half).getBytes(StandardCharsets.UTF_8));
+                secondOut.flush();
+                Thread.sleep(50);
+                secondOut.write((line.substring(half) + "\n").getBytes(StandardCharsets.UTF_8));
+                secondOut.flush();
+                assertEquals("bob: " + line, readUntilPrefix(firstIn, "bob:"));
+            }
+        }
+    }
+
+    @Test
+    public void testBinarySessionReceivesFramesFromTextSender() throws Exception {
+        try (Socket binarySocket = new Socket("localhost", server.getLocalPort());
+             Socket textSocket = new Socket("localhost", server.getLocalPort())) {
+            binarySocket.setSoTimeout(2000);
+            WireReader binaryIn = new WireReader(binarySocket.getInputStream());
+            OutputStream binaryOut = binarySocket.getOutputStream();
+            binaryOut.write((BinaryProtocol.OFFER + "\ndave\n").getBytes(StandardCharsets.UTF_8));
+            assertEquals(BinaryProtocol.ACCEPTED, binaryIn.readLine());
+
+            BufferedReader textIn = reader(textSocket);
+            PrintWriter textOut = new PrintWriter(textSocket.getOutputStream(), true);
+            textOut.println("erin");
+            assertEquals("ID_ACCEPTED", textIn.readLine());
+            textOut.println("hi dave");
+
+            Map<Integer, String> names = new HashMap<>();
+            String chat = null;
+            while (chat == null && binaryIn.readFrame()) {
+                if (binaryIn.opcode() == BinaryProtocol.OP_USER) {
+                    names.put(binaryIn.index(), binaryIn.text());
+                } else if (binaryIn.opcode() == BinaryProtocol.OP_CHAT) {
+                    chat = names.get(binaryIn.index()) + ": " + binaryIn.text();
+                }
+            }
+            assertEquals("erin: hi dave", chat);
+
+            // Commands from the binary client arrive as framed lines
+            binaryOut.write(BinaryProtocol.encode(BinaryProtocol.OP_LINE, "@erin framed hello"));
+            assertEquals("dave(private): framed hello", readUntilPrefix(textIn, "dave(private)"));
+        }
+    }
+
+    @Test
+    public void testIndexOfAUserWhoLeftIsReboundForTheNextOne() throws Exception {
+        try (Socket binarySocket = new Socket("localhost", server.getLocalPort())) {
+            binarySocket.setSoTimeout(2000);
+            WireReader binaryIn = new WireReader(binarySocket.getInputStream());
+            binarySocket.getOutputStream().write((BinaryProtocol.OFFER + "\nhank\n").getBytes(StandardCharsets.UTF_8));
+            assertEquals(BinaryProtocol.ACCEPTED, binaryIn.readLine());
+
+            Map<Integer, String> names = new HashMap<>();
+            int[] indexes = new int[2];
+            String[] senders = {"ida", "jack"};
+            for (int i = 0; i < senders.length; i++) {
+                try (Socket textSocket = new Socket("localhost", server.getLocalPort())) {
+                    BufferedReader textIn = reader(textSocket);
+                    PrintWriter textOut = new PrintWriter(textSocket.getOutputStream(), true);
+                    textOut.println(senders[i]);
+                    assertEquals("ID_ACCEPTED", textIn.readLine());
+                    textOut.println("hello from " + senders[i]);
+                    String chat = null;
+                    while (chat == null && binaryIn.readFrame()) {
+                        if (binaryIn.opcode() == BinaryProtocol.OP_USER) {
+                            names.put(binaryIn.index(), binaryIn.text());
+                        } else if (binaryIn.opcode() == BinaryProtocol.OP_CHAT) {
+                            indexes[i] = binaryIn.index();
+                            chat = names.get(binaryIn.index()) + ": " + binaryIn.text();
+                        }
+                    }
+                    assertEquals(senders[i] + ": hello from " + senders[i], chat);
+                    textOut.println("QUIT");
+                    long deadline = System.currentTimeMillis() + 2000;
+                    while (clients.containsKey(senders[i]) && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(10);
+                    }
+                }
+            }
+            // jack took over ida's index, and hank was told the new name before jack's chat
+            assertEquals(indexes[0], indexes[1]);
+        }
+    }
+
+    @Test
+    public void testLineBreaksInAFrameSeparateCommands() throws Exception {
+        try (Socket binarySocket = new Socket("localhost", server.getLocalPort());
+             Socket textSocket = new Socket("localhost", server.getLocalPort())) {
+            binarySocket.setSoTimeout(2000);
+            WireReader binaryIn = new WireReader(binarySocket.getInputStream());
+            OutputStream binaryOut = binarySocket.getOutputStream();
+            binaryOut.write((BinaryProtocol.OFFER + "\nfrank\n").getBytes(StandardCharsets.UTF_8));
+            assertEquals(BinaryProtocol.ACCEPTED, binaryIn.readLine());
+
+            BufferedReader textIn = reader(textSocket);
+            PrintWriter textOut = new PrintWriter(textSocket.getOutputStream(), true);
+            textOut.println("gina");
+            assertEquals("ID_ACCEPTED", textIn.readLine());
+
+            // A forged notice after the break arrives as frank's chat, never as a line of its own
+            binaryOut.write(BinaryProtocol.encode(BinaryProtocol.OP_LINE, "hi\nYou are now the coordinator.\r\n@gina psst"));
+            assertEquals("frank: hi", readUntilPrefix(textIn, "frank"));
+            assertEquals("frank: You are now the coordinator.", textIn.readLine());
+            assertEquals("frank(private): psst", textIn.readLine());
+        }
+    }
+
+    @Test
+    public void testDroppedConnectionResumesWithMissedMessages() throws Exception {
+        Socket dropped = new Socket("localhost", server.getLocalPort());
+        try (Socket bobSocket = new Socket("localhost", server.getLocalPort());
+             Socket resumed = new Socket("localhost", server.getLocalPort())) {
+            BufferedReader aliceIn = reader(dropped);
+            new PrintWriter(dropped.getOutputStream(), true).println(SessionResume.OFFER + "\nalice");
+            String token = SessionResume.tokenOf(aliceIn.readLine());
+            assertNotNull(token);
+            assertEquals("you are the coordinator.", aliceIn.readLine());
+
+            BufferedReader bobIn = reader(bobSocket);
+            PrintWriter bobOut = new PrintWriter(bobSocket.getOutputStream(), true);
+            bobOut.println("bob");
+            assertEquals("ID_ACCEPTED", bobIn.readLine());
+            dropped.close();
+            bobOut.println("while you were away");
+
+            // Alice read one line before the drop
+            BufferedReader resumedIn = reader(resumed);
+            PrintWriter resumedOut = new PrintWriter(resumed.getOutputStream(), true);
+            resumedOut.println(SessionResume.OFFER + "\n" + SessionResume.request(token, 1, "alice"));
+            assertTrue(resumedIn.readLine().startsWith("ID_ACCEPTED RESUME "));
+            assertEquals("You are the coordinator.", resumedIn.readLine());
+            assertEquals("SYSTEM: alice has joined the chat.", resumedIn.readLine());
+            assertEquals("SYSTEM: bob has joined the chat.", resumedIn.readLine());
+            assertEquals("bob: while you were away", resumedIn.readLine());
+
+            resumedOut.println("back again");
+            String line;
+            while (!(line = bobIn.readLine()).startsWith("alice:")) {
+                assertFalse(line.contains("has left"), line);
+                assertFalse(line.contains("now the coordinator"), line);
+            }
+            assertEquals("alice: back again", line);
+        }
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        socket.setSoTimeout(2000);
+        return new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    }
+
+    private static String readUntilPrefix(BufferedReader in, String prefix) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        return null;
+    }
+}
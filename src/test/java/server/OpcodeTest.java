@@ -0,0 +1,60 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OpcodeTest {
+
+    @Test
+    public void testKeywordsMatchOnlyAsWholeWords() {
+        assertEquals(Opcode.QUIT, Opcode.of("QUIT"));
+        assertEquals(Opcode.PONG, Opcode.of("PONG"));
+        assertEquals(Opcode.PING_MEMBERS, Opcode.of("PING_MEMBERS"));
+        assertEquals(Opcode.ROOMS, Opcode.of("ROOMS"));
+        assertEquals(Opcode.REQUEST_DETAILS, Opcode.of("REQUEST_DETAILS"));
+        assertEquals(Opcode.MEMBERS, Opcode.of("MEMBERS"));
+        assertEquals(Opcode.MEMBERS, Opcode.of("MEMBERS #dev 10"));
+        assertEquals(Opcode.JOIN, Opcode.of("JOIN dev"));
+        assertEquals(Opcode.APPROVE_DETAILS, Opcode.of("APPROVE_DETAILS bob"));
+        assertEquals(Opcode.PRIVATE, Opcode.of("@bob hi"));
+        assertEquals(Opcode.ROOM_CHAT, Opcode.of("#dev hi"));
+
+        // Chat that happens to start like a command
+        assertEquals(Opcode.CHAT, Opcode.of("QUITTING time"));
+        assertEquals(Opcode.CHAT, Opcode.of("QUIT now"));
+        assertEquals(Opcode.CHAT, Opcode.of("JOIN"));
+        assertEquals(Opcode.CHAT, Opcode.of("JOINED dev"));
+        assertEquals(Opcode.CHAT, Opcode.of("PONGS"));
+        assertEquals(Opcode.CHAT, Opcode.of("Rooms are nice"));
+        assertEquals(Opcode.CHAT, Opcode.of("hello"));
+    }
+
+    @Test
+    public void testCommandsTakeOnlyArgumentsOfTheirShape() {
+        assertEquals(Opcode.JOIN, Opcode.of("JOIN #dev"));
+        assertEquals(Opcode.LEAVE, Opcode.of("LEAVE dev"));
+        assertEquals(Opcode.HISTORY, Opcode.of("HISTORY 20"));
+        assertEquals(Opcode.HISTORY, Opcode.of("HISTORY #dev SINCE 42"));
+        assertEquals(Opcode.MEMBERS, Opcode.of("MEMBERS PREFIX al AFTER alice 5"));
+
+        // Plain chat that starts with a keyword
+        assertEquals(Opcode.CHAT, Opcode.of("JOIN the club, it is fun"));
+        assertEquals(Opcode.CHAT, Opcode.of("LEAVE me alone"));
+        assertEquals(Opcode.CHAT, Opcode.of("HISTORY is fun"));
+        assertEquals(Opcode.CHAT, Opcode.of("HISTORY 101 starts today"));
+        assertEquals(Opcode.CHAT, Opcode.of("MEMBERS only, sorry"));
+        assertEquals(Opcode.CHAT, Opcode.of("HISTORY "));
+        assertEquals(Opcode.MEMBERS, Opcode.of("MEMBERS "));
+    }
+
+    @Test
+    public void testArgumentStartsAfterKeywordAndSpace() {
+        String line = "JOIN dev";
+        assertEquals("dev", line.substring(Opcode.JOIN.argumentStart()));
+        assertEquals("bob hi", "@bob hi".substring(Opcode.PRIVATE.argumentStart()));
+        assertEquals("hello", "hello".substring(Opcode.CHAT.argumentStart()));
+        assertEquals(ServerMetrics.Command.LIST_ROOMS, Opcode.ROOMS.counted);
+        assertEquals(RateLimiter.Traffic.CHAT, Opcode.ROOM_CHAT.traffic);
+    }
+}
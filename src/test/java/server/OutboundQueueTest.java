@@ -0,0 +1,199 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OutboundQueueTest {
+
+    @Test
+    void testFirstOfferSchedulesDrain() {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        assertEquals(OutboundQueue.OfferResult.SCHEDULE_DRAIN, queue.offer(OutboundMessage.of("a")));
+        assertEquals(OutboundQueue.OfferResult.QUEUED, queue.offer(OutboundMessage.of("b")));
+        assertEquals("a", queue.pollOrFinish().text());
+        assertEquals("b", queue.pollOrFinish().text());
+        assertNull(queue.pollOrFinish());
+        // The drain finished, so the next offer has to schedule a new one
+        assertEquals(OutboundQueue.OfferResult.SCHEDULE_DRAIN, queue.offer(OutboundMessage.of("c")));
+    }
+
+    @Test
+    void testHeldQueueWaitsForTheHandshakeReply() {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.hold();
+        assertEquals(OutboundQueue.OfferResult.QUEUED, queue.offer(OutboundMessage.of("early")));
+        assertEquals(OutboundQueue.OfferResult.SCHEDULE_DRAIN, queue.offer(OutboundMessage.handshake("ID_ACCEPTED")));
+        assertEquals("ID_ACCEPTED", queue.pollOrFinish().text());
+        assertEquals("early", queue.pollOrFinish().text());
+        assertNull(queue.pollOrFinish());
+    }
+
+    @Test
+    void testDropOldestKeepsNewestMessages() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer(OutboundMessage.of("a"));
+        queue.offer(OutboundMessage.of("b"));
+        queue.offer(OutboundMessage.of("c"));
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.droppedCount());
+        assertEquals("b", queue.poll().text());
+        assertEquals("c", queue.poll().text());
+    }
+
+    @Test
+    void testDisconnectPolicyReportsOverflow() {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DISCONNECT);
+        queue.offer(OutboundMessage.of("a"));
+        assertEquals(OutboundQueue.OfferResult.OVERFLOW, queue.offer(OutboundMessage.of("b")));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    void testCoalesceReplacesBacklogWithNotice() {
+        OutboundQueue queue = new OutboundQueue(3, OutboundQueue.OverflowPolicy.COALESCE);
+        for (int i = 0; i < 3; i++) {
+            queue.offer(OutboundMessage.of("m" + i));
+        }
+        queue.offer(OutboundMessage.of("m3"));
+        assertEquals("SYSTEM: 3 messages were skipped because you were falling behind.", queue.poll().text());
+        assertEquals("m3", queue.poll().text());
+        assertEquals(3, queue.highWaterMark());
+    }
+
+    @Test
+    void testReplayFollowsMessagesQueuedBeforeIt() {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer(OutboundMessage.of("before"));
+        Iterator<String> history = List.of("h1", "h2").iterator();
+        assertEquals(OutboundQueue.OfferResult.QUEUED, queue.replay(() -> history.hasNext() ? OutboundMessage.of(history.next()) : null));
+        assertEquals(OutboundQueue.OfferResult.BUSY, queue.replay(() -> null));
+        queue.offer(OutboundMessage.of("after"));
+
+        assertEquals("before", queue.poll().text());
+        assertEquals("h1", queue.poll().text());
+        assertEquals("h2", queue.poll().text());
+        assertEquals("after", queue.poll().text());
+        assertNull(queue.pollOrFinish());
+    }
+
+    @Test
+    void testReplayIsPulledWithoutHoldingUpSenders() {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        Iterator<String> history = List.of("h1").iterator();
+        queue.replay(() -> {
+            if (!history.hasNext()) {
+                return null;
+            }
+            // A sender on another thread gets through while the replay is being read
+            try {
+                CompletableFuture.runAsync(() -> queue.offer(OutboundMessage.of("meanwhile"))).get(5, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+            return OutboundMessage.of(history.next());
+        });
+
+        assertEquals("h1", queue.poll().text());
+        assertEquals("meanwhile", queue.poll().text());
+        assertNull(queue.pollOrFinish());
+    }
+
+    @Test
+    void testHandOverReplaysOnlyWhatTheClientMissed() {
+        OutboundQueue queue = new OutboundQueue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.keepForResume(3, 0);
+        queue.offer(OutboundMessage.handshake("ID_ACCEPTED"));
+        queue.offer(OutboundMessage.of("one"));
+        queue.offer(OutboundMessage.of("two\nthree"));
+        queue.offer(OutboundMessage.of("four"));
+        for (int i = 0; i < 4; i++) {
+            queue.poll();
+        }
+        queue.offer(OutboundMessage.of("queued"));
+
+        // The client read "one" and "two" but not "three"; a multi-line message is sent again whole
+        OutboundQueue successor = new OutboundQueue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        successor.offer(OutboundMessage.handshake("ID_ACCEPTED"));
+        queue.handOver(2, successor);
+        assertEquals(OutboundQueue.OfferResult.CLOSED, queue.offer(OutboundMessage.of("late")));
+        successor.offer(OutboundMessage.of("forwarded"));
+
+        assertEquals("ID_ACCEPTED", successor.poll().text());
+        assertEquals("two\nthree", successor.poll().text());
+        assertEquals("four", successor.poll().text());
+        assertEquals("queued", successor.poll().text());
+        assertEquals("forwarded", successor.poll().text());
+
+        // Asking from before the oldest kept message gets a notice first
+        OutboundQueue later = new OutboundQueue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        successor.keepForResume(1, 4);
+        successor.offer(OutboundMessage.of("five"));
+        successor.offer(OutboundMessage.of("six"));
+        successor.poll();
+        successor.poll();
+        successor.handOver(4, later);
+        assertEquals("SYSTEM: Some messages were lost while you were away.", later.poll().text());
+        assertEquals("six", later.poll().text());
+    }
+
+    @Test
+    void testHandOverCarriesOnWithARunningReplay() {
+        OutboundQueue queue = new OutboundQueue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.keepForResume(8, 0);
+        queue.offer(OutboundMessage.of("before"));
+        Iterator<String> history = List.of("h1", "h2", "HISTORY_END 2").iterator();
+        queue.replay(() -> history.hasNext() ? OutboundMessage.of(history.next()) : null);
+        queue.offer(OutboundMessage.of("after"));
+        assertEquals("before", queue.poll().text());
+        assertEquals("h1", queue.poll().text());
+
+        // The connection dropped before h1 reached the client; the rest of the replay still ends it
+        OutboundQueue successor = new OutboundQueue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.handOver(1, successor);
+        assertEquals("h1", successor.poll().text());
+        assertEquals("h2", successor.poll().text());
+        assertEquals("HISTORY_END 2", successor.poll().text());
+        assertEquals("after", successor.poll().text());
+        assertNull(successor.pollOrFinish());
+    }
+
+    @Test
+    void testResumeRingGrowsToItsCapacity() {
+        OutboundQueue queue = new OutboundQueue(64, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.keepForResume(20, 0);
+        for (int i = 1; i <= 30; i++) {
+            queue.offer(OutboundMessage.of("m" + i));
+            queue.poll();
+        }
+
+        // Only the newest 20 are kept, so a client that read 5 is told about the gap and gets m11 to m30
+        OutboundQueue successor = new OutboundQueue(64, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.handOver(5, successor);
+        assertEquals("SYSTEM: Some messages were lost while you were away.", successor.poll().text());
+        for (int i = 11; i <= 30; i++) {
+            assertEquals("m" + i, successor.poll().text());
+        }
+        assertNull(successor.poll());
+    }
+
+    @Test
+    void testQueueEmptiedAfterBurstStillTakesMessages() {
+        OutboundQueue queue = new OutboundQueue(64, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 40; i++) {
+            queue.offer(OutboundMessage.of("m" + i));
+        }
+        while (queue.pollOrFinish() != null) {
+            // Draining the burst lets its grown deque go
+        }
+        assertEquals(0, queue.size());
+        assertEquals(40, queue.highWaterMark());
+        assertEquals(OutboundQueue.OfferResult.SCHEDULE_DRAIN, queue.offer(OutboundMessage.of("next")));
+        assertEquals("next", queue.poll().text());
+    }
+}
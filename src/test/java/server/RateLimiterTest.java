@@ -0,0 +1,70 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimiterTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void testBucketAllowsBurstThenRefillsAtRate() {
+        long now = 0;
+        TokenBucket bucket = new TokenBucket(10, 5, now);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryTake(now));
+        }
+        assertFalse(bucket.tryTake(now));
+        assertFalse(bucket.isFull(now));
+
+        // One token every 100 ms
+        assertFalse(bucket.tryTake(now + SECOND / 20));
+        assertTrue(bucket.tryTake(now + SECOND / 10));
+        assertFalse(bucket.tryTake(now + SECOND / 10));
+        // A long pause refills it to the burst, not beyond
+        now += 10 * SECOND;
+        assertTrue(bucket.isFull(now));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryTake(now));
+        }
+        assertFalse(bucket.tryTake(now));
+    }
+
+    @Test
+    public void testLinesAreClassifiedByWhatTheyCost() {
+        assertEquals(RateLimiter.Traffic.CHAT, RateLimiter.classify("hello"));
+        assertEquals(RateLimiter.Traffic.CHAT, RateLimiter.classify("#dev hello"));
+        assertEquals(RateLimiter.Traffic.PRIVATE, RateLimiter.classify("@bob hi"));
+        assertEquals(RateLimiter.Traffic.PING_MEMBERS, RateLimiter.classify("PING_MEMBERS"));
+        assertEquals(RateLimiter.Traffic.REQUEST_DETAILS, RateLimiter.classify("REQUEST_DETAILS"));
+        assertNull(RateLimiter.classify("PONG"));
+        assertNull(RateLimiter.classify("QUIT"));
+        assertNull(RateLimiter.classify("JOIN dev"));
+        assertNull(RateLimiter.classify("MEMBERS AFTER bob 10"));
+        assertNull(RateLimiter.classify("APPROVE_DETAILS bob"));
+    }
+
+    @Test
+    public void testSessionsFromOneAddressShareItsBudget() {
+        RateLimiter limiter = new RateLimiter();
+        int admitted = 0;
+        // Each user stays within its own burst, but together they go well over the address's
+        for (int user = 0; user < 20; user++) {
+            RateLimiter.Budget budget = RateLimiter.userBudget();
+            for (int i = 0; i < 40; i++) {
+                if (limiter.admit(budget, "10.0.0.1", RateLimiter.Traffic.CHAT)) {
+                    admitted++;
+                }
+            }
+        }
+        assertTrue(admitted >= 400 && admitted < 500, "admitted: " + admitted);
+        // Another address is unaffected
+        assertTrue(limiter.admit(RateLimiter.userBudget(), "10.0.0.2", RateLimiter.Traffic.CHAT));
+        assertEquals(2, limiter.trackedAddresses());
+
+        // Budgets with tokens spent are kept until they have refilled
+        limiter.sweep();
+        assertEquals(2, limiter.trackedAddresses());
+    }
+}
@@ -0,0 +1,263 @@
+package server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RoomTest {
+
+    private Map<String, ServerHandler> clients;
+    private RoomRegistry rooms;
+
+    @BeforeEach
+    public void setUp() {
+        clients = new ConcurrentHashMap<>();
+        rooms = new RoomRegistry();
+    }
+
+    @Test
+    public void testRoomChatOnlyReachesMembers() throws Exception {
+        ByteArrayOutputStream aliceOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream bobOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream carolOut = new ByteArrayOutputStream();
+        ServerHandler alice = login("alice", aliceOut);
+        ServerHandler bob = login("bob", bobOut);
+        login("carol", carolOut);
+
+        alice.handleCommand("JOIN dev");
+        assertTrue(awaitOutput(aliceOut, "You are the coordinator of #dev.").contains("You are the coordinator of #dev."));
+        bob.handleCommand("JOIN #dev");
+        assertTrue(awaitOutput(bobOut, "Joined #dev, the current coordinator is alice.").contains("Joined #dev"));
+        assertTrue(awaitOutput(aliceOut, "bob has joined #dev.").contains("SYSTEM: bob has joined #dev."));
+
+        // Plain lines go to the room joined last; #room addresses one explicitly
+        bob.handleCommand("hello dev");
+        alice.handleCommand("#lobby hello everyone");
+        assertTrue(awaitOutput(aliceOut, "#dev bob: hello dev").contains("#dev bob: hello dev"));
+        assertTrue(awaitOutput(carolOut, "alice: hello everyone").contains("alice: hello everyone"));
+        assertFalse(carolOut.toString().contains("hello dev"));
+        assertEquals(2, rooms.get("dev").size());
+    }
+
+    @Test
+    public void testCoordinatorIsPerRoomAndMovesOnLeave() throws Exception {
+        ByteArrayOutputStream aliceOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream bobOut = new ByteArrayOutputStream();
+        ServerHandler alice = login("alice", aliceOut);
+        ServerHandler bob = login("bob", bobOut);
+
+        bob.handleCommand("JOIN ops");
+        alice.handleCommand("JOIN ops");
+        assertEquals("alice", rooms.lobby().coordinatorID());
+        assertEquals("bob", rooms.get("ops").coordinatorID());
+
+        bob.handleCommand("LEAVE ops");
+        assertEquals("alice", rooms.get("ops").coordinatorID());
+        assertTrue(awaitOutput(aliceOut, "alice is now the coordinator of #ops.").contains("SYSTEM: alice is now the coordinator of #ops."));
+        assertTrue(rooms.lobby().contains("bob"));
+
+        alice.handleCommand("LEAVE ops");
+        // The last member out drops the room
+        assertNull(rooms.get("ops"));
+    }
+
+    @Test
+    public void testDisconnectLeavesEveryRoom() throws Exception {
+        ByteArrayOutputStream aliceOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream bobOut = new ByteArrayOutputStream();
+        ServerHandler alice = login("alice", aliceOut);
+        ServerHandler bob = login("bob", bobOut);
+        alice.handleCommand("JOIN dev");
+        bob.handleCommand("JOIN dev");
+
+        alice.cleanUp();
+
+        assertFalse(clients.containsKey("alice"));
+        assertFalse(rooms.lobby().contains("alice"));
+        assertEquals("bob", rooms.lobby().coordinatorID());
+        assertEquals("bob", rooms.get("dev").coordinatorID());
+        String output = awaitOutput(bobOut, "bob is now the coordinator of #dev.");
+        assertTrue(output.contains("SYSTEM: alice has left the chat."));
+        assertTrue(output.contains("SYSTEM: alice has left #dev."));
+        assertTrue(output.contains("SYSTEM: bob is now the coordinator."));
+        assertFalse(output.contains("You are now the coordinator"));
+    }
+
+    @Test
+    public void testSuccessionFollowsJoinOrder() {
+        Room oldestFirst = new Room("oldest", Room.Succession.OLDEST);
+        Room newestFirst = new Room("newest", Room.Succession.NEWEST);
+        List<ServerHandler> handlers = new ArrayList<>();
+        // Joined in an order unrelated to the IDs' hash order
+        for (String userID : new String[] {"zed", "amy", "kim", "bo"}) {
+            ServerHandler handler = new ServerHandler(mock(Socket.class), clients, rooms);
+            handler.setUserID(userID);
+            handlers.add(handler);
+            oldestFirst.join(handler);
+            newestFirst.join(handler);
+        }
+        assertEquals("zed", oldestFirst.coordinatorID());
+        assertEquals("zed", newestFirst.coordinatorID());
+
+        assertSame(handlers.get(1), oldestFirst.leave(handlers.get(0)));
+        assertSame(handlers.get(3), newestFirst.leave(handlers.get(0)));
+        // A member who is not the coordinator leaving moves nothing
+        assertNull(oldestFirst.leave(handlers.get(2)));
+        assertSame(handlers.get(3), oldestFirst.leave(handlers.get(1)));
+        assertSame(handlers.get(2), newestFirst.leave(handlers.get(3)));
+
+        List<String> inJoinOrder = new ArrayList<>();
+        for (ServerHandler member : newestFirst.members()) {
+            inJoinOrder.add(member.getUserID());
+        }
+        assertEquals(List.of("amy", "kim"), inJoinOrder);
+    }
+
+    @Test
+    public void testListAndErrors() throws Exception {
+        ByteArrayOutputStream aliceOut = new ByteArrayOutputStream();
+        ServerHandler alice = login("alice", aliceOut);
+        alice.handleCommand("JOIN dev");
+        alice.handleCommand("ROOMS");
+        alice.handleCommand("LEAVE ops");
+        alice.handleCommand("JOIN bad!name");
+
+        String output = awaitOutput(aliceOut, "Room names are");
+        assertTrue(output.contains("ROOMS: #dev (1), #lobby (1)"));
+        assertTrue(output.contains("SYSTEM: You are not in #ops."));
+    }
+
+    @Test
+    public void testChatStartingLikeACommandIsChat() throws Exception {
+        ByteArrayOutputStream aliceOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream bobOut = new ByteArrayOutputStream();
+        ServerHandler alice = login("alice", aliceOut);
+        login("bob", bobOut);
+        alice.handleCommand("HISTORY is fun");
+        alice.handleCommand("JOIN the club");
+        alice.handleCommand("MEMBERS only tonight");
+        alice.handleCommand("#1 fan of this chat");
+
+        String output = awaitOutput(bobOut, "alice: #1 fan of this chat");
+        assertTrue(output.contains("alice: HISTORY is fun\nalice: JOIN the club\nalice: MEMBERS only tonight\n"
+                + "alice: #1 fan of this chat"), output);
+        assertNull(rooms.get("the"));
+    }
+
+    @Test
+    public void testConcurrentLoginsGetUniqueIDsAndOneCoordinator() throws Exception {
+        int threads = 8;
+        int ids = 100;
+        AtomicInteger accepted = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            done.add(pool.submit(() -> {
+                start.await();
+                // Every thread asks for every ID, so each one is contested
+                for (int i = 0; i < ids; i++) {
+                    Socket socket = mock(Socket.class);
+                    when(socket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+                    if (new ServerHandler(socket, clients, rooms).handleLogin("user" + i)) {
+                        accepted.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : done) {
+            future.get();
+        }
+        pool.shutdown();
+
+        assertEquals(ids, accepted.get());
+        assertEquals(ids, clients.size());
+        assertEquals(ids, rooms.lobby().size());
+        assertTrue(clients.containsKey(rooms.lobby().coordinatorID()));
+    }
+
+    @Test
+    public void testConcurrentJoinsAndLeavesKeepOneLiveCoordinator() throws Exception {
+        Room room = rooms.open("storm");
+        int members = 64;
+        List<ServerHandler> handlers = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            ServerHandler handler = new ServerHandler(mock(Socket.class), clients, rooms);
+            handler.setUserID("member" + i);
+            handlers.add(handler);
+        }
+        AtomicInteger coordinators = new AtomicInteger();
+        runConcurrently(handlers, handler -> {
+            if (room.join(handler) == Room.JoinResult.COORDINATOR) {
+                coordinators.incrementAndGet();
+            }
+        });
+        assertEquals(1, coordinators.get());
+
+        // Everyone but the last member leaves at once; the role must end up with the one who stayed
+        ServerHandler survivor = handlers.remove(members - 1);
+        runConcurrently(handlers, room::leave);
+        assertEquals(1, room.size());
+        assertEquals(survivor.getUserID(), room.coordinatorID());
+
+        // The last one out leaves the role vacant for the next joiner
+        room.leave(survivor);
+        assertNull(room.coordinatorID());
+        assertTrue(room.closeIfEmpty());
+        assertEquals(Room.JoinResult.CLOSED, room.join(survivor));
+    }
+
+    private static void runConcurrently(List<ServerHandler> handlers, Consumer<ServerHandler> action)
+            throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        for (ServerHandler handler : handlers) {
+            done.add(pool.submit(() -> {
+                start.await();
+                action.accept(handler);
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : done) {
+            future.get();
+        }
+        pool.shutdown();
+    }
+
+    private ServerHandler login(String userID, ByteArrayOutputStream out) throws IOException {
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(out);
+        ServerHandler handler = new ServerHandler(socket, clients, rooms);
+        assertTrue(handler.handleLogin(userID));
+        return handler;
+    }
+
+    private static String awaitOutput(ByteArrayOutputStream out, String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!out.toString().contains(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return out.toString();
+    }
+}
@@ -10,8 +10,12 @@ import java.io.IOException;
 import java.net.Socket;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
 
+import protocol.BinaryProtocol;
+import protocol.SessionResume;
+import protocol.WireReader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
@@ -21,17 +25,15 @@ public class ServerHandlerTest {
     @Mock
     private Socket socket;
     private Map<String, ServerHandler> clients;
-    private AtomicBoolean hasCoordinator;
     private ServerHandler serverHandler;
 
     @BeforeEach
     void setUp() throws Exception {
         MockitoAnnotations.openMocks(this);
         clients = new HashMap<>();
-        hasCoordinator = new AtomicBoolean(false);
         when(socket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
         when(socket.getInputStream()).thenReturn(new ByteArrayInputStream("".getBytes()));
-        serverHandler = new ServerHandler(socket, clients, hasCoordinator);
+        serverHandler = new ServerHandler(socket, clients);
     }
     @Test
 void testSendMessage() throws IOException {
@@ -40,8 +42,8 @@ void testSendMessage() throws IOException {
     when(socket.getOutputStream()).thenReturn(baos);
     serverHandler.sendMessage(testMessage);
 
-    // Assert that the message was written to the OutputStream
-    String output = baos.toString();
+    // Assert that the message was written to the OutputStream (writes are drained asynchronously)
+    String output = awaitOutput(baos, testMessage);
     assertTrue(output.contains(testMessage));
 }
 @Test
@@ -77,4 +79,266 @@ void testCleanUp() {
 }
 
 
+@Test
+void testBroadcastReachesEveryoneButSender() throws IOException {
+    ByteArrayOutputStream senderOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream firstOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream secondOut = new ByteArrayOutputStream();
+    clients.put("sender", handlerWithOutput("sender", senderOut));
+    clients.put("first", handlerWithOutput("first", firstOut));
+    clients.put("second", handlerWithOutput("second", secondOut));
+
+    serverHandler.broadcastMessage("sender: hello", "sender");
+
+    assertEquals("sender: hello\n", awaitOutput(firstOut, "sender: hello\n"));
+    assertEquals("sender: hello\n", awaitOutput(secondOut, "sender: hello\n"));
+    assertEquals("", senderOut.toString());
+}
+
+@Test
+void testPrivateMessageRoutesToRecipientOnly() throws IOException {
+    ByteArrayOutputStream senderOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream targetOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream otherOut = new ByteArrayOutputStream();
+    ServerHandler sender = handlerWithOutput("sender", senderOut);
+    clients.put("sender", sender);
+    clients.put("target", handlerWithOutput("target", targetOut));
+    clients.put("other", handlerWithOutput("other", otherOut));
+
+    sender.handlePrivateMessage("@target first");
+    sender.handlePrivateMessage("@target second");
+
+    assertEquals("sender(private): first\nsender(private): second\n", awaitOutput(targetOut, "second\n"));
+    assertEquals("", otherOut.toString());
+    assertEquals("", senderOut.toString());
+}
+
+@Test
+void testPrivateMessageToUnknownUserRepliesWithFailure() throws IOException {
+    ByteArrayOutputStream senderOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream targetOut = new ByteArrayOutputStream();
+    ServerHandler sender = handlerWithOutput("sender", senderOut);
+    ServerHandler target = handlerWithOutput("target", targetOut);
+    clients.put("sender", sender);
+    clients.put("target", target);
+
+    sender.handlePrivateMessage("@target hi");
+    awaitOutput(targetOut, "hi");
+    // The cached route must not outlive the recipient's session
+    target.cleanUp();
+    sender.handlePrivateMessage("@target are you there");
+    sender.handlePrivateMessage("@nobody hello");
+
+    String output = awaitOutput(senderOut, "nobody is not online");
+    assertTrue(output.contains("SYSTEM: Message not delivered: target is not online."));
+    assertTrue(output.contains("SYSTEM: Message not delivered: nobody is not online."));
+    assertFalse(targetOut.toString().contains("are you there"));
+}
+
+@Test
+void testOutboundQueueTracksHighWaterMark() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ServerHandler handler = handlerWithOutput("reader", out);
+    for (int i = 0; i < 5; i++) {
+        handler.sendMessage("line " + i);
+    }
+    awaitOutput(out, "line 4");
+    assertTrue(handler.getOutboundHighWaterMark() >= 1);
+    assertEquals(0, handler.getOutboundQueueDepth());
+    assertTrue(out.toString().startsWith("line 0\nline 1\n"));
+}
+
+@Test
+void testBinaryHandshakeSwitchesToFrames() throws Exception {
+    ByteArrayOutputStream input = new ByteArrayOutputStream();
+    input.write((BinaryProtocol.OFFER + "\nBinaryUser\n").getBytes());
+    input.write(BinaryProtocol.encode(BinaryProtocol.OP_LINE, "QUIT"));
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(input.toByteArray()));
+    when(socket.getOutputStream()).thenReturn(output);
+
+    Thread thread = new Thread(serverHandler);
+    thread.start();
+    thread.join(1000);
+    awaitOutput(output, "coordinator");
+
+    WireReader reader = new WireReader(new ByteArrayInputStream(output.toByteArray()));
+    assertEquals(BinaryProtocol.ACCEPTED, reader.readLine());
+    assertTrue(reader.readFrame());
+    assertEquals(BinaryProtocol.OP_LINE, reader.opcode());
+    assertEquals("you are the coordinator.", reader.text());
+}
+
+@Test
+void testResumeTakesSessionBackWithoutLeaving() throws Exception {
+    RoomRegistry rooms = new RoomRegistry();
+    ByteArrayOutputStream aliceOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream bobOut = new ByteArrayOutputStream();
+    ServerHandler alice = new ServerHandler(socketWithOutput(aliceOut), clients, rooms);
+    alice.handleLogin(SessionResume.OFFER);
+    assertTrue(alice.handleLogin("alice"));
+    String accepted = awaitOutput(aliceOut, "You are the coordinator.").split("\n")[0];
+    String token = SessionResume.tokenOf(accepted);
+    ServerHandler bob = new ServerHandler(socketWithOutput(bobOut), clients, rooms);
+    assertTrue(bob.handleLogin("bob"));
+
+    // The connection drops after alice read her two welcome lines; bob keeps talking
+    alice.connectionLost();
+    bob.handleCommand("are you there?");
+    awaitOutput(aliceOut, "bob: are you there?");
+
+    ByteArrayOutputStream resumedOut = new ByteArrayOutputStream();
+    ServerHandler resumed = new ServerHandler(socketWithOutput(resumedOut), clients, rooms);
+    resumed.handleLogin(SessionResume.OFFER);
+    assertFalse(resumed.handleLogin(SessionResume.request("wrong", 2, "alice")));
+    assertTrue(resumed.handleLogin(SessionResume.request(token, 2, "alice")));
+    String output = awaitOutput(resumedOut, "bob: are you there?");
+    assertTrue(output.startsWith(SessionResume.FAILED + "\nID_ACCEPTED RESUME "));
+    assertTrue(output.endsWith("SYSTEM: bob has joined the chat.\nbob: are you there?\n"));
+
+    assertEquals(resumed, clients.get("alice"));
+    assertEquals("alice", rooms.lobby().coordinatorID());
+    bob.handleCommand("welcome back");
+    assertTrue(awaitOutput(resumedOut, "bob: welcome back").contains("bob: welcome back"));
+    assertFalse(bobOut.toString().contains("has left"));
+}
+
+@Test
+void testIDWithControlCharactersIsRefused() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ServerHandler handler = new ServerHandler(socketWithOutput(out), clients, new RoomRegistry());
+    assertFalse(handler.handleLogin("bad\tid"));
+    assertFalse(handler.handleLogin("bad\rid"));
+    assertFalse(handler.handleLogin("SYSTEM"));
+    assertTrue(awaitOutput(out, "ID_TAKEN").startsWith("ID_TAKEN\n"));
+    assertTrue(handler.handleLogin("goodid"));
+    assertFalse(clients.containsKey("bad\tid"));
+}
+
+@Test
+void testSilentSessionIsPingedThenReaped() throws Exception {
+    RoomRegistry rooms = new RoomRegistry();
+    ByteArrayOutputStream aliceOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream bobOut = new ByteArrayOutputStream();
+    ServerHandler alice = new ServerHandler(socketWithOutput(aliceOut), clients, rooms);
+    assertTrue(alice.handleLogin("alice"));
+    ServerHandler bob = new ServerHandler(socketWithOutput(bobOut), clients, rooms);
+    assertTrue(bob.handleLogin("bob"));
+
+    long start = System.currentTimeMillis();
+    alice.checkLiveness(start + 10000);
+    alice.checkLiveness(start + 30000);
+    alice.checkLiveness(start + 35000);
+    assertTrue(awaitOutput(aliceOut, "PING").endsWith("SYSTEM: bob has joined the chat.\nPING\n"));
+
+    // The answer counts as activity and is not chat
+    alice.handleCommand("PONG");
+    alice.checkLiveness(start + 40000);
+    assertEquals("alice", clients.get("alice").getUserID());
+    bob.handleCommand("still here");
+    assertFalse(awaitOutput(bobOut, "bob: still here").contains("PONG"));
+
+    alice.checkLiveness(System.currentTimeMillis() + 45000);
+    assertTrue(awaitOutput(bobOut, "alice has left").contains("SYSTEM: alice has left the chat."));
+    assertFalse(clients.containsKey("alice"));
+}
+
+@Test
+void testBatchedSessionGathersMessagesIntoFewWrites() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int[] writes = new int[1];
+    OutputStreamCounter counting = new OutputStreamCounter(out, writes);
+    Socket clientSocket = mock(Socket.class);
+    when(clientSocket.getOutputStream()).thenReturn(counting);
+    ServerHandler handler = new ServerHandler(clientSocket, clients);
+    handler.setUserID("batched");
+    handler.batching = new WriteBatching(50_000, 16 * 1024);
+
+    long written = ServerHandler.metrics.getWriteCallsSaved();
+    for (int i = 0; i < 100; i++) {
+        handler.sendMessage("line " + i);
+    }
+    String output = awaitOutput(out, "line 99\n");
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+        expected.append("line ").append(i).append('\n');
+    }
+    assertEquals(expected.toString(), output);
+    // The first line goes out at once and most of the rest wait for the window together
+    assertTrue(writes[0] < 10, "writes: " + writes[0]);
+    assertTrue(ServerHandler.metrics.getWriteCallsSaved() >= written + 90);
+}
+
+@Test
+void testFloodIsShedBeforeFanOut() throws Exception {
+    RoomRegistry rooms = new RoomRegistry();
+    ByteArrayOutputStream aliceOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream bobOut = new ByteArrayOutputStream();
+    ServerHandler alice = new ServerHandler(socketWithOutput(aliceOut), clients, rooms);
+    assertTrue(alice.handleLogin("alice"));
+    ServerHandler bob = new ServerHandler(socketWithOutput(bobOut), clients, rooms);
+    assertTrue(bob.handleLogin("bob"));
+
+    long throttled = ServerHandler.metrics.throttledCount(RateLimiter.Traffic.CHAT);
+    bob.handleCommand("   ");
+    for (int i = 0; i < 200; i++) {
+        bob.handleCommand("spam " + i);
+    }
+    String aliceSaw = awaitOutput(aliceOut, "bob: spam 39\n");
+    // The burst gets through, the rest is dropped, and the sender is told once
+    assertTrue(aliceSaw.contains("bob: spam 0\n"));
+    assertFalse(aliceSaw.contains("bob: spam 199"));
+    assertFalse(aliceSaw.contains("bob: \n"));
+    assertTrue(ServerHandler.metrics.throttledCount(RateLimiter.Traffic.CHAT) - throttled >= 100);
+    String bobSaw = awaitOutput(bobOut, "sending too fast");
+    assertEquals(bobSaw.indexOf("sending too fast"), bobSaw.lastIndexOf("sending too fast"));
+    // Other kinds of traffic have budgets of their own
+    bob.handleCommand("@alice still allowed");
+    assertTrue(awaitOutput(aliceOut, "still allowed").contains("bob(private): still allowed"));
+}
+
+// Counts write calls on the way to the wrapped stream
+private static final class OutputStreamCounter extends java.io.FilterOutputStream {
+    private final int[] writes;
+
+    OutputStreamCounter(ByteArrayOutputStream out, int[] writes) {
+        super(out);
+        this.writes = writes;
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        writes[0]++;
+        out.write(bytes, offset, length);
+    }
+}
+
+// Outbound writes happen on a writer task, so poll briefly for the expected content
+private static String awaitOutput(ByteArrayOutputStream out, String expected) throws IOException {
+    long deadline = System.currentTimeMillis() + 2000;
+    while (!out.toString().contains(expected) && System.currentTimeMillis() < deadline) {
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+    return out.toString();
+}
+
+private static Socket socketWithOutput(ByteArrayOutputStream out) throws IOException {
+    Socket clientSocket = mock(Socket.class);
+    when(clientSocket.getOutputStream()).thenReturn(out);
+    return clientSocket;
+}
+
+private ServerHandler handlerWithOutput(String userID, ByteArrayOutputStream out) throws IOException {
+    Socket clientSocket = mock(Socket.class);
+    when(clientSocket.getOutputStream()).thenReturn(out);
+    ServerHandler handler = new ServerHandler(clientSocket, clients);
+    handler.setUserID(userID);
+    return handler;
+}
+
+
 }
@@ -0,0 +1,82 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ServerMetricsTest {
+
+    @Test
+    public void testCommandsAndBroadcastsAreCounted() throws Exception {
+        ServerMetrics metrics = ServerMetrics.shared();
+        Map<String, ServerHandler> clients = new HashMap<>();
+        RoomRegistry rooms = new RoomRegistry();
+        ServerHandler sender = handler("metricsSender", clients, rooms);
+        handler("metricsReader", clients, rooms);
+
+        long chats = metrics.receivedCount(ServerMetrics.Command.CHAT);
+        long privates = metrics.receivedCount(ServerMetrics.Command.PRIVATE);
+        long broadcasts = metrics.getBroadcasts();
+        long sent = metrics.getMessagesSent();
+
+        sender.handleCommand("hello");
+        sender.handleCommand("@metricsReader hi");
+
+        assertEquals(chats + 1, metrics.receivedCount(ServerMetrics.Command.CHAT));
+        assertEquals(privates + 1, metrics.receivedCount(ServerMetrics.Command.PRIVATE));
+        assertTrue(metrics.getBroadcasts() >= broadcasts + 1);
+        assertTrue(metrics.getMessagesSent() >= sent + 2);
+    }
+
+    @Test
+    public void testPrometheusTextOverHttpAndJmx() throws Exception {
+        ServerMetrics metrics = ServerMetrics.shared();
+        HttpServer endpoint = metrics.startHttpEndpoint(0);
+        try {
+            URL url = new URL("http://127.0.0.1:" + endpoint.getAddress().getPort() + "/metrics");
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType().startsWith("text/plain"));
+            String body;
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                in.transferTo(bytes);
+                body = bytes.toString(StandardCharsets.UTF_8);
+            }
+            assertTrue(body.contains("# TYPE chat_messages_received_total counter"));
+            assertTrue(body.contains("chat_messages_received_total{command=\"chat\"}"));
+            assertTrue(body.contains("chat_broadcast_seconds_bucket{le=\"+Inf\"}"));
+            assertTrue(body.contains("chat_log_write_seconds_count"));
+        } finally {
+            endpoint.stop(0);
+        }
+
+        Object connected = ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName("server:type=ServerMetrics"), "ConnectedClients");
+        assertNotNull(connected);
+    }
+
+    private static ServerHandler handler(String userID, Map<String, ServerHandler> clients, RoomRegistry rooms) throws Exception {
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        ServerHandler handler = new ServerHandler(socket, clients, rooms);
+        assertTrue(handler.handleLogin(userID));
+        return handler;
+    }
+}
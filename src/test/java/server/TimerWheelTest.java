@@ -0,0 +1,66 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimerWheelTest {
+
+    private final TimerWheel wheel = new TimerWheel("test-timers", 5, 8);
+
+    @AfterEach
+    void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    void testTasksRunAfterTheirDelay() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(2);
+        long start = System.nanoTime();
+        wheel.schedule(fired::countDown, 20);
+        wheel.schedule(fired::countDown, 0);
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    void testDelaysLongerThanOneTurnWaitExtraRounds() throws InterruptedException {
+        // Eight 5 ms buckets make a 40 ms turn
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(fired::countDown, 100);
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    void testStoppedWheelKeepsTasksUntilStartedAgain() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(fired::countDown, 20);
+        wheel.stop();
+        assertFalse(wheel.isRunning());
+        assertFalse(fired.await(100, TimeUnit.MILLISECONDS));
+
+        // Overdue by now, so it runs as soon as the wheel goes round again
+        wheel.start();
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testCancelledTasksNeverRun() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        TimerWheel.Timeout cancelled = wheel.schedule(runs::incrementAndGet, 10);
+        CountDownLatch later = new CountDownLatch(1);
+        TimerWheel.Timeout kept = wheel.schedule(later::countDown, 30);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(later.await(2, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+        assertFalse(kept.cancel());
+    }
+}
@@ -0,0 +1,30 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteBatchingTest {
+
+    @Test
+    public void testFirstWriteGoesOutAtOnce() {
+        WriteBatching batching = new WriteBatching(2000, 1024);
+        assertEquals(0, batching.delayNanos(10, System.nanoTime()));
+    }
+
+    @Test
+    public void testBusySessionWaitsOutTheWindowUnlessTheThresholdIsReached() {
+        WriteBatching batching = new WriteBatching(2000, 1024);
+        long now = System.nanoTime();
+        batching.wrote(now);
+
+        long window = TimeUnit.MICROSECONDS.toNanos(2000);
+        assertEquals(window, batching.delayNanos(10, now));
+        assertEquals(window / 2, batching.delayNanos(10, now + window / 2));
+        assertEquals(0, batching.delayNanos(1024, now));
+        // A quiet spell longer than the window means the next write goes out at once
+        assertEquals(0, batching.delayNanos(10, now + window));
+    }
+}